@@ -0,0 +1,270 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Parses without blocking the calling thread, for event loops and reactive pipelines where
+ * matching the rules would stall every other request of the thread.
+ *
+ * Results known without matching, from the cache of a {@link CachingParser} or from a
+ * {@link UserAgentDictionary}, are returned inline as completed futures. Only misses are
+ * parsed on the executor. By default that is a virtual thread per miss on Java 21 and later,
+ * picked by the multi-release jar, and a pool of one daemon thread per processor before.
+ *
+ * Virtual threads trade reuse for footprint. Misses waiting for an entry another thread is
+ * parsing block on a lock that unmounts a virtual thread, so they hold no platform thread,
+ * but a parse keeps its matchers and buffers in its thread, and on a new thread per miss
+ * every miss allocates them again. Where most calls miss, such as without a cache or while
+ * it warms up, supply an executor that reuses its threads, e.g. a fixed pool.
+ *
+ * The misses waiting for or running on the executor are bounded, and the calls beyond the
+ * bound are shed, not slowed down: their futures fail right away with a
+ * {@link RejectedExecutionException}, so the caller can drop or retry them instead of
+ * piling up work it cannot finish. On Java 9 and later, {@code ParseProcessor} parses a
+ * {@code java.util.concurrent.Flow} of user agents with backpressure instead.
+ *
+ * {@link #close()} shuts down the default executor; a supplied executor is left to its
+ * owner.
+ */
+public final class AsyncParser implements AutoCloseable {
+
+  static final int DEFAULT_MAXIMUM_PENDING = 1024;
+
+  private final Parser parser;
+  private final Executor executor;
+  // the default executor, shut down on close
+  private final ExecutorService ownExecutor;
+  private final int maximumPending;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Parses misses on a virtual thread each on Java 21 and later, and on a pool of one daemon
+   * thread per processor before, with at most {@value #DEFAULT_MAXIMUM_PENDING} pending;
+   * {@link #close()} shuts the executor down.
+   * @param parser the parser, typically a {@link CachingParser}
+   */
+  public AsyncParser(Parser parser) {
+    this(parser, DefaultExecutor.create(), DEFAULT_MAXIMUM_PENDING, true);
+  }
+
+  /**
+   * @param parser the parser, typically a {@link CachingParser}
+   * @param executor parses the misses, preferably on threads it reuses
+   * @param maximumPending the number of misses that may wait for or run on the executor at
+   *        once, a batch counting one per task
+   */
+  public AsyncParser(Parser parser, Executor executor, int maximumPending) {
+    this(parser, executor, maximumPending, false);
+  }
+
+  private AsyncParser(Parser parser, Executor executor, int maximumPending, boolean ownsExecutor) {
+    if (maximumPending <= 0) {
+      throw new IllegalArgumentException("Maximum pending misses must be greater than 0");
+    }
+    this.parser = parser;
+    this.executor = executor;
+    this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    this.maximumPending = maximumPending;
+  }
+
+  /**
+   * Parses a user agent, inline if its results are known and otherwise on the executor. The
+   * characters are copied before this returns, so the sequence can be reused right away.
+   * @param agentString the user agent
+   * @return the parsed client, null for a null user agent; fails with a
+   *         {@link RejectedExecutionException} if the miss is shed because too many are
+   *         pending, or if the parser is closed
+   */
+  public CompletableFuture<Client> parseAsync(CharSequence agentString) {
+    if (agentString == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Client known = parser.cached(agentString);
+    if (known != null) {
+      return CompletableFuture.completedFuture(known);
+    }
+    if (!admit(1)) {
+      return shed();
+    }
+    final String copy = agentString.toString();
+    final CompletableFuture<Client> future = new CompletableFuture<>();
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          future.complete(parser.parse(copy));
+        } catch (Throwable e) {
+          future.completeExceptionally(e);
+        } finally {
+          release(1);
+        }
+      }
+    }, future);
+    return future;
+  }
+
+  /**
+   * Parses a batch of user agents without blocking, see {@link Parser#parseAll(String[], Executor)}.
+   * The known results are looked up inline; the distinct misses are parsed on the executor in
+   * tasks of {@link BatchParse#AGENTS_PER_TASK}, each counting as one pending miss, and the
+   * batch is rejected as a whole if its tasks do not fit within the bound.
+   * @param agentStrings the user agents, null ones giving null results
+   * @return the results in the order of the user agents, all occurrences of a user agent
+   *         sharing one {@link Client}; fails with a {@link RejectedExecutionException} if
+   *         the batch is shed because too many misses are pending, or if the parser is closed
+   */
+  public CompletableFuture<List<Client>> parseAllAsync(List<String> agentStrings) {
+    Map<String, Integer> indexes = new HashMap<>();
+    final List<String> distinct = new ArrayList<>();
+    final int[] positions = new int[agentStrings.size()];
+    for (int i = 0; i < positions.length; i++) {
+      String agentString = agentStrings.get(i);
+      if (agentString == null) {
+        positions[i] = -1;
+        continue;
+      }
+      Integer index = indexes.get(agentString);
+      if (index == null) {
+        index = distinct.size();
+        indexes.put(agentString, index);
+        distinct.add(agentString);
+      }
+      positions[i] = index;
+    }
+
+    final Client[] results = new Client[distinct.size()];
+    final List<Integer> misses = new ArrayList<>();
+    for (int i = 0; i < results.length; i++) {
+      results[i] = parser.cached(distinct.get(i));
+      if (results[i] == null) {
+        misses.add(i);
+      }
+    }
+    if (misses.isEmpty()) {
+      return CompletableFuture.completedFuture(inOrder(positions, results));
+    }
+    int tasks = (misses.size() + BatchParse.AGENTS_PER_TASK - 1) / BatchParse.AGENTS_PER_TASK;
+    if (!admit(tasks)) {
+      return shed();
+    }
+
+    List<CompletableFuture<Void>> parsed = new ArrayList<>(tasks);
+    for (int start = 0; start < misses.size(); start += BatchParse.AGENTS_PER_TASK) {
+      final int from = start;
+      final int to = Math.min(misses.size(), start + BatchParse.AGENTS_PER_TASK);
+      final CompletableFuture<Void> task = new CompletableFuture<>();
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = from; i < to; i++) {
+              int index = misses.get(i);
+              results[index] = parser.parse(distinct.get(index));
+            }
+            task.complete(null);
+          } catch (Throwable e) {
+            task.completeExceptionally(e);
+          } finally {
+            release(1);
+          }
+        }
+      }, task);
+      parsed.add(task);
+    }
+    return CompletableFuture.allOf(parsed.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, List<Client>>() {
+      @Override
+      public List<Client> apply(Void done) {
+        return inOrder(positions, results);
+      }
+    });
+  }
+
+  /**
+   * @return the number of misses waiting for or running on the executor, batch tasks counting
+   *         one each
+   */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * @return the number of calls shed because too many misses were pending
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Shuts down the default executor, letting the misses already submitted finish. Later
+   * misses fail with a {@link RejectedExecutionException}; hits are still served.
+   */
+  @Override
+  public void close() {
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+    }
+  }
+
+  Parser parser() {
+    return parser;
+  }
+
+  /**
+   * Load shedding, not backpressure: admits the misses if they fit under the bound, and
+   * otherwise counts them as shed without waiting for room.
+   */
+  private boolean admit(int count) {
+    while (true) {
+      int current = pending.get();
+      if (current + count > maximumPending) {
+        rejected.incrementAndGet();
+        return false;
+      }
+      if (pending.compareAndSet(current, current + count)) {
+        return true;
+      }
+    }
+  }
+
+  private void release(int count) {
+    pending.addAndGet(-count);
+  }
+
+  /**
+   * Runs an admitted task, failing its future and releasing it if the executor rejects it.
+   */
+  private void execute(Runnable task, CompletableFuture<?> future) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      release(1);
+      future.completeExceptionally(e);
+    }
+  }
+
+  private <T> CompletableFuture<T> shed() {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(new RejectedExecutionException(maximumPending + " misses already pending"));
+    return future;
+  }
+
+  private static List<Client> inOrder(int[] positions, Client[] results) {
+    Client[] clients = new Client[positions.length];
+    for (int i = 0; i < clients.length; i++) {
+      clients[i] = positions[i] < 0 ? null : results[positions[i]];
+    }
+    return Arrays.asList(clients);
+  }
+}
@@ -0,0 +1,80 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs {@link Parser#parseAll(String[], Executor)}: the distinct user agents of the batch
+ * are parsed once each, as tasks of {@link #AGENTS_PER_TASK} on the executor, and every
+ * position of the batch gets the result of its user agent.
+ */
+final class BatchParse {
+
+  // distinct user agents per task, enough to outweigh scheduling the task
+  static final int AGENTS_PER_TASK = 64;
+
+  private BatchParse() {
+  }
+
+  static Client[] run(final Parser parser, String[] agentStrings, Executor executor) {
+    Map<String, Integer> indexes = new HashMap<>();
+    final List<String> distinct = new ArrayList<>();
+    int[] positions = new int[agentStrings.length];
+    for (int i = 0; i < agentStrings.length; i++) {
+      String agentString = agentStrings[i];
+      if (agentString == null) {
+        positions[i] = -1;
+        continue;
+      }
+      Integer index = indexes.get(agentString);
+      if (index == null) {
+        index = distinct.size();
+        indexes.put(agentString, index);
+        distinct.add(agentString);
+      }
+      positions[i] = index;
+    }
+
+    final Client[] distinctClients = new Client[distinct.size()];
+    if (distinct.size() <= AGENTS_PER_TASK) {
+      parse(parser, distinct, distinctClients, 0, distinct.size());
+    } else {
+      List<CompletableFuture<Void>> tasks = new ArrayList<>();
+      for (int start = 0; start < distinct.size(); start += AGENTS_PER_TASK) {
+        final int from = start;
+        final int to = Math.min(distinct.size(), start + AGENTS_PER_TASK);
+        tasks.add(CompletableFuture.runAsync(new Runnable() {
+          @Override
+          public void run() {
+            parse(parser, distinct, distinctClients, from, to);
+          }
+        }, executor));
+      }
+      try {
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    Client[] clients = new Client[agentStrings.length];
+    for (int i = 0; i < clients.length; i++) {
+      clients[i] = positions[i] < 0 ? null : distinctClients[positions[i]];
+    }
+    return clients;
+  }
+
+  private static void parse(Parser parser, List<String> agentStrings, Client[] clients, int from, int to) {
+    for (int i = from; i < to; i++) {
+      clients[i] = parser.parse(agentStrings.get(i));
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package ua_parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * The rules of a regexes.yaml in a binary form that loads without a YAML parser.
+ *
+ * The build converts the bundled regexes.yaml with {@link #main(String[])}, and
+ * {@link Parser#Parser()} loads the result when it is on the classpath. The file holds a
+ * magic number and format version, a table of the distinct strings, UTF-8 encoded, and the
+ * user agent, OS and device rules in order, each a list of attribute name and value indexes
+ * into the table.
+ */
+public final class BinaryRules {
+
+  static final int MAGIC = 0x55415052; // "UAPR"
+  static final int VERSION = 1;
+
+  static final List<String> SECTIONS = Collections.unmodifiableList(Arrays.asList(
+      "user_agent_parsers", "os_parsers", "device_parsers"));
+
+  private final Map<String, List<Map<String, String>>> config;
+
+  BinaryRules(Map<String, List<Map<String, String>>> config) {
+    this.config = config;
+  }
+
+  /**
+   * Parses a regexes.yaml.
+   * @param regexYaml the yaml file containing the regular expressions
+   * @param loaderOptions configuration for loading parser safe limits
+   */
+  public static BinaryRules fromYaml(InputStream regexYaml, LoaderOptions loaderOptions) {
+    Yaml yaml = new Yaml(new SafeConstructor(loaderOptions));
+    @SuppressWarnings("unchecked")
+    Map<String, List<Map<String, String>>> config = (Map<String, List<Map<String, String>>>) yaml.load(regexYaml);
+    return new BinaryRules(config);
+  }
+
+  /**
+   * Reads rules written by {@link #write(OutputStream)}.
+   * @throws IOException if the stream cannot be read or does not hold rules
+   */
+  public static BinaryRules read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a binary rules file");
+    }
+    int version = data.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary rules version " + version);
+    }
+    String[] strings = new String[data.readInt()];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[data.readInt()];
+      data.readFully(bytes);
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+    Map<String, List<Map<String, String>>> config = new HashMap<>();
+    for (String section : SECTIONS) {
+      int count = data.readInt();
+      List<Map<String, String>> rules = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        Map<String, String> rule = new LinkedHashMap<>();
+        for (int attributes = data.readInt(); attributes > 0; attributes--) {
+          String name = strings[data.readInt()];
+          int value = data.readInt();
+          rule.put(name, value < 0 ? null : strings[value]);
+        }
+        rules.add(rule);
+      }
+      config.put(section, rules);
+    }
+    return new BinaryRules(config);
+  }
+
+  /**
+   * Writes the rules in the binary form.
+   * @throws IllegalArgumentException if a section of rules is missing
+   */
+  public void write(OutputStream out) throws IOException {
+    Map<String, Integer> indexes = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    for (String section : SECTIONS) {
+      for (Map<String, String> rule : section(section)) {
+        for (Map.Entry<String, String> attribute : rule.entrySet()) {
+          index(attribute.getKey(), indexes, strings);
+          index(attribute.getValue(), indexes, strings);
+        }
+      }
+    }
+
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(strings.size());
+    for (String s : strings) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      data.writeInt(bytes.length);
+      data.write(bytes);
+    }
+    for (String section : SECTIONS) {
+      List<Map<String, String>> rules = section(section);
+      data.writeInt(rules.size());
+      for (Map<String, String> rule : rules) {
+        data.writeInt(rule.size());
+        for (Map.Entry<String, String> attribute : rule.entrySet()) {
+          data.writeInt(index(attribute.getKey(), indexes, strings));
+          data.writeInt(index(attribute.getValue(), indexes, strings));
+        }
+      }
+    }
+    data.flush();
+  }
+
+  /**
+   * @return the rules of a section, in order
+   * @throws IllegalArgumentException if the section is missing
+   */
+  List<Map<String, String>> section(String name) {
+    List<Map<String, String>> rules = config.get(name);
+    if (rules == null) {
+      throw new IllegalArgumentException(name + " is missing from yaml");
+    }
+    return rules;
+  }
+
+  private static int index(Object value, Map<String, Integer> indexes, List<String> strings) {
+    if (value == null) {
+      return -1;
+    }
+    String s = value.toString();
+    Integer index = indexes.get(s);
+    if (index == null) {
+      index = strings.size();
+      indexes.put(s, index);
+      strings.add(s);
+    }
+    return index;
+  }
+
+  /**
+   * Converts a regexes.yaml to the binary form.
+   *
+   * Usage: {@code BinaryRules <regexes.yaml> <output>}
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: BinaryRules <regexes.yaml> <output>");
+      System.exit(1);
+    }
+    BinaryRules rules;
+    try (InputStream in = new FileInputStream(args[0])) {
+      rules = fromYaml(in, Parser.getDefaultLoaderOptions());
+    }
+    try (OutputStream out = new FileOutputStream(args[1])) {
+      rules.write(out);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package ua_parser;
+
+/**
+ * Bounded thread-safe cache behind {@link CachingParser}.
+ */
+interface Cache<K, V> {
+
+  /**
+   * @return the cached value, or null if there is none
+   */
+  V get(K key);
+
+  /**
+   * Adds or replaces the value of the key, evicting entries if the cache is full. Putting
+   * the value already cached weighs it again, for values that grow in place.
+   */
+  void put(K key, V value);
+
+  /**
+   * Adds the value unless the key already has one, evicting entries if the cache is full.
+   * @return the value already cached for the key, or null if there was none
+   */
+  V putIfAbsent(K key, V value);
+
+  /**
+   * @return the number of entries
+   */
+  int size();
+
+  /**
+   * @return the estimated total weight of the entries
+   */
+  long weight();
+
+  /**
+   * Visits the entries, those most worth keeping first. Entries added or evicted meanwhile
+   * may or may not be visited.
+   */
+  void forEach(Visitor<? super K, ? super V> visitor);
+
+  /**
+   * Estimates the weight, e.g. the retained bytes, of an entry.
+   */
+  interface Weigher<K, V> {
+    int weigh(K key, V value);
+  }
+
+  interface Visitor<K, V> {
+    void visit(K key, V value);
+  }
+}
@@ -0,0 +1,31 @@
+package ua_parser;
+
+/**
+ * Receives the events of the cache of a {@link CachingParser}, to feed a metrics system.
+ *
+ * The methods are called on the parsing thread, so they should be quick and must not throw.
+ * For periodic polling, {@link CachingParser#getCacheStats()} is simpler.
+ */
+public interface CacheListener {
+
+  /**
+   * A call was answered from the cache.
+   */
+  void onHit();
+
+  /**
+   * A call found no or incomplete results in the cache.
+   */
+  void onMiss();
+
+  /**
+   * Results were computed for a call that missed.
+   * @param nanos time spent parsing
+   */
+  void onLoad(long nanos);
+
+  /**
+   * A user agent was dropped, or not admitted, because the cache was full.
+   */
+  void onEviction();
+}
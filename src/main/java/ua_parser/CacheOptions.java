@@ -0,0 +1,107 @@
+package ua_parser;
+
+/**
+ * Configuration of the cache of a {@link CachingParser}.
+ *
+ * The cache is bounded by its number of entries unless a maximum number of bytes is set, in
+ * which case it is bounded by the estimated heap retained by its keys and results instead.
+ *
+ * With compact keys the cache keeps a 128-bit hash of each user agent rather than the user
+ * agent itself, see {@link #setCompactKeys(boolean)}.
+ */
+public class CacheOptions {
+
+  private int maximumSize = 1000;
+  private long maximumBytes = 0;
+  private boolean compactKeys = false;
+  private boolean verifyOnHit = false;
+  private CacheListener listener;
+
+  /**
+   * @return the maximum number of cached user agents
+   */
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * @param maximumSize the maximum number of cached user agents, ignored if a maximum number
+   *        of bytes is set
+   */
+  public void setMaximumSize(int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("Invalid cache size " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * @return the maximum estimated size of the cache in bytes, or 0 if it is bounded by its
+   *         number of entries
+   */
+  public long getMaximumBytes() {
+    return maximumBytes;
+  }
+
+  /**
+   * @param maximumBytes the maximum estimated size of the cache in bytes, or 0 to bound it by
+   *        its number of entries
+   */
+  public void setMaximumBytes(long maximumBytes) {
+    if (maximumBytes < 0) {
+      throw new IllegalArgumentException("Invalid cache bytes " + maximumBytes);
+    }
+    this.maximumBytes = maximumBytes;
+  }
+
+  /**
+   * @return whether user agents are cached by their hash
+   */
+  public boolean isCompactKeys() {
+    return compactKeys;
+  }
+
+  /**
+   * Caches user agents by a 128-bit hash instead of keeping the strings, which saves their
+   * heap (often a few hundred bytes each) at the cost of hashing on every lookup. Distinct
+   * user agents of a cache of n entries get the same hash, and so each other's results, with
+   * a probability of about n&sup2; / 2&sup1;&sup2;&sup9;. The hash is not cryptographic
+   * though, so if the user agents come from untrusted clients that could craft collisions,
+   * see {@link #setVerifyOnHit(boolean)}. Compact keys are bounded by number of entries only,
+   * they cannot be combined with a maximum number of bytes.
+   * @param compactKeys whether to cache user agents by their hash
+   */
+  public void setCompactKeys(boolean compactKeys) {
+    this.compactKeys = compactKeys;
+  }
+
+  /**
+   * @return whether compact keys are checked against the user agent on every hit
+   */
+  public boolean isVerifyOnHit() {
+    return verifyOnHit;
+  }
+
+  /**
+   * @param verifyOnHit whether to also keep the user agents of a compact cache and compare
+   *        them on every hit, ruling out collisions but retaining the strings again
+   */
+  public void setVerifyOnHit(boolean verifyOnHit) {
+    this.verifyOnHit = verifyOnHit;
+  }
+
+  /**
+   * @return the listener of the cache events, or null
+   */
+  public CacheListener getListener() {
+    return listener;
+  }
+
+  /**
+   * @param listener receives the hits, misses, loads and evictions of the cache as they
+   *        happen, or null
+   */
+  public void setListener(CacheListener listener) {
+    this.listener = listener;
+  }
+}
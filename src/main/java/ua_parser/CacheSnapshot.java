@@ -0,0 +1,162 @@
+package ua_parser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file of parse results, written by {@link CachingParser#saveSnapshot(Path)} and
+ * memory-mapped by {@link CachingParser#loadSnapshot(Path)}.
+ *
+ * The file starts with a magic number, a format version and the fingerprint of the rules
+ * that gave the results, followed by a table of the distinct strings, each its length and
+ * its UTF-16 code units so that any string round-trips, lone surrogates included, and the
+ * entries as indexes into that table: the user agent, the 4 user agent fields, the 5 OS
+ * fields and the device family, -1 standing for null. Families and versions repeat across
+ * entries, so each is only stored once.
+ */
+final class CacheSnapshot {
+
+  static final int MAGIC = 0x55415043; // "UAPC"
+  static final int VERSION = 2;
+
+  private static final int FIELDS = 11;
+
+  private CacheSnapshot() {
+  }
+
+  /**
+   * Writes the results to a temporary file next to the target and renames it, so readers
+   * never see a partial snapshot. On a file system that cannot rename atomically the target
+   * is replaced by a plain rename instead, during which a reader may find no file.
+   * @return the number of entries written
+   */
+  static int write(Path file, byte[] fingerprint, Map<String, Client> entries) throws IOException {
+    Map<String, Integer> indexes = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    int[] fields = new int[entries.size() * FIELDS];
+    int i = 0;
+    for (Map.Entry<String, Client> entry : entries.entrySet()) {
+      Client client = entry.getValue();
+      UserAgent ua = client.userAgent;
+      OS os = client.os;
+      Device device = client.device;
+      String[] values = {
+          entry.getKey(),
+          ua == null ? null : ua.family, ua == null ? null : ua.major, ua == null ? null : ua.minor, ua == null ? null : ua.patch,
+          os == null ? null : os.family, os == null ? null : os.major, os == null ? null : os.minor, os == null ? null : os.patch,
+          os == null ? null : os.patchMinor,
+          device == null ? null : device.family };
+      for (String value : values) {
+        fields[i++] = index(value, indexes, strings);
+      }
+    }
+
+    Path directory = file.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fingerprint.length);
+        out.write(fingerprint);
+        out.writeInt(strings.size());
+        for (String s : strings) {
+          out.writeInt(s.length());
+          out.writeChars(s);
+        }
+        out.writeInt(entries.size());
+        for (int field : fields) {
+          out.writeInt(field);
+        }
+      }
+      try {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return entries.size();
+  }
+
+  /**
+   * Maps the file and gives its entries to the sink, unless it was written for other rules.
+   * @return the number of entries read, or -1 if the fingerprint does not match
+   * @throws IOException if the file cannot be read or is not a snapshot
+   */
+  static int read(Path file, byte[] fingerprint, Cache.Visitor<String, Client> sink) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a cache snapshot: " + file);
+      }
+      if (buffer.getInt() != VERSION) {
+        return -1;
+      }
+      byte[] written = new byte[buffer.getInt()];
+      buffer.get(written);
+      if (!Arrays.equals(written, fingerprint)) {
+        return -1;
+      }
+      String[] strings = new String[buffer.getInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = string(buffer, buffer.getInt());
+      }
+      int count = buffer.getInt();
+      String[] values = new String[FIELDS];
+      for (int i = 0; i < count; i++) {
+        for (int field = 0; field < FIELDS; field++) {
+          int index = buffer.getInt();
+          values[field] = index < 0 ? null : strings[index];
+        }
+        UserAgent ua = new UserAgent(values[1], values[2], values[3], values[4]);
+        OS os = new OS(values[5], values[6], values[7], values[8], values[9]);
+        Device device = new Device(values[10]);
+        sink.visit(values[0], new Client(ua, os, device));
+      }
+      return count;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new IOException("Corrupt cache snapshot: " + file, e);
+    }
+  }
+
+  private static int index(String s, Map<String, Integer> indexes, List<String> strings) {
+    if (s == null) {
+      return -1;
+    }
+    Integer index = indexes.get(s);
+    if (index == null) {
+      index = strings.size();
+      indexes.put(s, index);
+      strings.add(s);
+    }
+    return index;
+  }
+
+  private static String string(ByteBuffer buffer, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = buffer.getChar();
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,81 @@
+package ua_parser;
+
+/**
+ * Counters of the cache of a {@link CachingParser} at one point in time, see
+ * {@link CachingParser#getCacheStats()}.
+ *
+ * A hit is a call answered from the cache, and a miss a call that had to parse, completely
+ * or only the components not yet cached. Each miss that parsed counts as one load.
+ */
+public final class CacheStats {
+
+  private final long hitCount;
+  private final long missCount;
+  private final long loadCount;
+  private final long totalLoadTime;
+  private final long evictionCount;
+  private final int size;
+
+  public CacheStats(long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount, int size) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.loadCount = loadCount;
+    this.totalLoadTime = totalLoadTime;
+    this.evictionCount = evictionCount;
+    this.size = size;
+  }
+
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * @return the share of calls answered from the cache, 1 if there were none
+   */
+  public double getHitRate() {
+    long requests = hitCount + missCount;
+    return requests == 0 ? 1.0 : (double) hitCount / requests;
+  }
+
+  public long getLoadCount() {
+    return loadCount;
+  }
+
+  /**
+   * @return the time spent parsing on misses, in nanoseconds
+   */
+  public long getTotalLoadTime() {
+    return totalLoadTime;
+  }
+
+  /**
+   * @return the average time spent parsing on a miss, in nanoseconds
+   */
+  public double getAverageLoadPenalty() {
+    return loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount;
+  }
+
+  /**
+   * @return the number of user agents dropped, or not admitted, because the cache was full
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return the number of cached user agents
+   */
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("{\"hits\": %d, \"misses\": %d, \"loads\": %d, \"total_load_time\": %d, \"evictions\": %d, \"size\": %d}",
+                         hitCount, missCount, loadCount, totalLoadTime, evictionCount, size);
+  }
+}
@@ -1,9 +1,14 @@
 package ua_parser;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
 import java.util.Map;
-
-import org.apache.commons.collections4.map.LRUMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * When doing webanalytics (with for example PIG) the main pattern is to process
@@ -12,11 +17,38 @@ import org.apache.commons.collections4.map.LRUMap;
  * effect that the same useragent will appear in the logfiles and we will see
  * the need to parse the same useragent over and over again.
  *
- * This class introduces a very simple LRU cache to reduce the number of times
- * the parsing is actually done. The default cache size is 1000 and can be
- * configured as object creation.
+ * This class introduces a cache to reduce the number of times the parsing is
+ * actually done. The default cache size is 1000 and can be configured as object
+ * creation. The cache is thread-safe and keeps the user agents that are seen
+ * most often, so a burst of one-off user agents does not evict the common ones.
+ *
+ * There is one cache entry per user agent, shared by all parsing methods: the
+ * user agent, OS and device are filled in as they are asked for, so parseOS
+ * after parse is a hit, and parse after parseOS only computes the rest. Threads
+ * missing the same user agent at the same time parse it once: the first one
+ * parses, the others wait for its result, a budgeted parse no longer than its
+ * budget allows, see {@link #parse(CharSequence, ParseBudget)}.
+ *
+ * With {@link CacheOptions#setMaximumBytes(long)} the cache is bounded by the
+ * estimated heap its entries retain rather than by their number, see
+ * {@link #getEstimatedCacheBytes()}. With {@link CacheOptions#setCompactKeys(boolean)}
+ * the user agents are cached by a 128-bit hash instead of being kept.
+ *
+ * The cache can be saved to a file and loaded by the next instance, so that a
+ * restarted service does not pay for parsing all its common user agents again,
+ * see {@link #saveSnapshot(Path)}. User agents of a {@link UserAgentDictionary}
+ * are answered from it and not cached.
  *
- * Note: The object handles one cache per parsing method - be carefull when using big sizes.
+ * User agents given as bytes, see {@link #parse(byte[], int, int)}, or as other
+ * character sequences, see {@link #parse(CharSequence)}, are looked up in the cache
+ * without being copied into a string, so a hit on them allocates nothing.
+ *
+ * Hits, misses, parse time and evictions are counted, see {@link #getCacheStats()}
+ * and {@link CacheOptions#setListener(CacheListener)}.
+ *
+ * When the rules are replaced, see {@link #reload(BinaryRules)}, the cache is replaced
+ * with an empty one along with them. Calls that started with the old rules finish with
+ * them and fill the old cache, so the new cache only ever holds results of the new rules.
  *
  * @author Niels Basjes
  *
@@ -25,111 +57,594 @@ public class CachingParser extends Parser {
 
   private static final String    INVALID_CACHE_SIZE_ERROR_MESSAGE = "Invalid cache size provided - Should be greater than 0";
 
-  private int                    cacheSize     = 1000;
+  // map and cache nodes, the entry, its lock and the client, on top of the key and the results
+  private static final int       ENTRY_OVERHEAD = 32 + 48 + 32 + 48 + 24;
+  private static final int       AVERAGE_ENTRY_BYTES = 512;
 
-  private Map<String, Client>    cacheClient    = null;
-  private Map<String, UserAgent> cacheUserAgent = null;
-  private Map<String, Device>    cacheDevice    = null;
-  private Map<String, OS>        cacheOS        = null;
+  private final CacheOptions cacheOptions;
+  private final StatsCounter stats;
+  private volatile Generation generation;
 
   // ------------------------------------------
 
   public CachingParser() {
-    super();
+    this(new CacheOptions());
   }
 
   public CachingParser(InputStream regexYaml) {
-    super(regexYaml);
+    this(regexYaml, new CacheOptions());
   }
 
   public CachingParser(int cacheSize) {
-    super();
-    assert cacheSize > 0: INVALID_CACHE_SIZE_ERROR_MESSAGE;
-    this.cacheSize = cacheSize;
+    this(sizeOptions(cacheSize));
   }
 
   public CachingParser(InputStream regexYaml, int cacheSize) {
+    this(regexYaml, sizeOptions(cacheSize));
+  }
+
+  /**
+   * Creates a caching parser using the regular expression yaml file bundled in the jar,
+   * sharing the compiled rules with other parsers, see {@link RuleSet#getDefault()}.
+   * @param cacheOptions configuration of the cache
+   */
+  public CachingParser(CacheOptions cacheOptions) {
+    super();
+    this.cacheOptions = cacheOptions;
+    this.stats = new StatsCounter(cacheOptions.getListener());
+    this.generation = new Generation(getRuleSet(), createCache(cacheOptions, stats));
+  }
+
+  /**
+   * Creates a caching parser sharing compiled rules.
+   * @param rules the rules
+   * @param cacheOptions configuration of the cache
+   */
+  public CachingParser(RuleSet rules, CacheOptions cacheOptions) {
+    super(rules);
+    this.cacheOptions = cacheOptions;
+    this.stats = new StatsCounter(cacheOptions.getListener());
+    this.generation = new Generation(getRuleSet(), createCache(cacheOptions, stats));
+  }
+
+  /**
+   * Creates a caching parser using the supplied regular expression yaml file.
+   * @param regexYaml the yaml file containing the regular expressions
+   * @param cacheOptions configuration of the cache
+   */
+  public CachingParser(InputStream regexYaml, CacheOptions cacheOptions) {
     super(regexYaml);
+    this.cacheOptions = cacheOptions;
+    this.stats = new StatsCounter(cacheOptions.getListener());
+    this.generation = new Generation(getRuleSet(), createCache(cacheOptions, stats));
+  }
+
+  private static CacheOptions sizeOptions(int cacheSize) {
     assert cacheSize > 0: INVALID_CACHE_SIZE_ERROR_MESSAGE;
-    this.cacheSize = cacheSize;
+    CacheOptions options = new CacheOptions();
+    options.setMaximumSize(cacheSize);
+    return options;
+  }
+
+  private static Cache<CharSequence, Entry> createCache(CacheOptions options, StatsCounter stats) {
+    if (options.isCompactKeys()) {
+      if (options.getMaximumBytes() > 0) {
+        throw new IllegalArgumentException("Compact keys cannot be bounded by bytes");
+      }
+      return new CompactCache<>(options.getMaximumSize(), options.isVerifyOnHit(), new Cache.Weigher<CharSequence, Entry>() {
+        @Override
+        public int weigh(CharSequence agentString, Entry entry) {
+          // the table accounts for the keys
+          return entry.estimateBytes(null);
+        }
+      }, stats);
+    }
+    // only strings are put, other character sequences are only looked up
+    Cache.Weigher<CharSequence, Entry> weigher = new Cache.Weigher<CharSequence, Entry>() {
+      @Override
+      public int weigh(CharSequence agentString, Entry entry) {
+        return entry.estimateBytes(agentString.toString());
+      }
+    };
+    if (options.getMaximumBytes() > 0) {
+      return ConcurrentCache.ofWeight(options.getMaximumBytes(), AVERAGE_ENTRY_BYTES, weigher, stats);
+    }
+    return ConcurrentCache.ofSize(options.getMaximumSize(), weigher, stats);
+  }
+
+  /**
+   * @return the counters of the cache since the parser was created; calls answered from a
+   *         {@link UserAgentDictionary} are not counted
+   */
+  public CacheStats getCacheStats() {
+    return stats.snapshot(generation.cache.size());
+  }
+
+  /**
+   * @return the estimated heap retained by the cached user agents and results, in bytes
+   */
+  public long getEstimatedCacheBytes() {
+    return generation.cache.weight();
+  }
+
+  /**
+   * Writes the fully parsed user agents in the cache to a file, so that a restarted parser
+   * can start with them, see {@link #loadSnapshot(Path)}. Call it on shutdown or
+   * periodically; the file is replaced atomically where the file system supports it.
+   * @param file the snapshot file
+   * @return the number of user agents written
+   * @throws IllegalStateException if the cache has compact keys without verification, and
+   *         so does not retain the user agents
+   */
+  public int saveSnapshot(Path file) throws IOException {
+    Generation generation = this.generation;
+    Cache<CharSequence, Entry> cache = generation.cache;
+    if (cache instanceof CompactCache && !((CompactCache<?>) cache).retainsKeys()) {
+      throw new IllegalStateException("Compact keys do not retain the user agents to save");
+    }
+    final Map<String, Client> clients = new LinkedHashMap<>();
+    cache.forEach(new Cache.Visitor<Object, Entry>() {
+      @Override
+      public void visit(Object agentString, Entry entry) {
+        Client client = entry.client;
+        if (client != null && !(client instanceof PartialClient)) {
+          clients.put(agentString.toString(), client);
+        }
+      }
+    });
+    return CacheSnapshot.write(file, generation.rules.fingerprint(), clients);
   }
 
+  /**
+   * Adds the user agents of a snapshot to the cache. The file is memory-mapped, and ignored
+   * if it was saved by a parser with other rules, since their results may differ. The user
+   * agents are saved most valuable first, so those are the ones kept if the cache is smaller
+   * than the one that saved them.
+   * @param file the snapshot file
+   * @return the number of user agents read, 0 if the file does not exist or is stale
+   * @throws IOException if the file cannot be read or is not a snapshot
+   */
+  public int loadSnapshot(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    Generation generation = this.generation;
+    final Cache<CharSequence, Entry> cache = generation.cache;
+    int count = CacheSnapshot.read(file, generation.rules.fingerprint(), new Cache.Visitor<String, Client>() {
+      @Override
+      public void visit(String agentString, Client client) {
+        Entry entry = new Entry();
+        entry.userAgent = client.userAgent;
+        entry.os = client.os;
+        entry.device = client.device;
+        entry.client = client;
+        cache.putIfAbsent(agentString, entry);
+      }
+    });
+    return Math.max(0, count);
+  }
 
   // ------------------------------------------
 
+  /**
+   * @return the results from the dictionary or the cache, or null; a hit is counted, a
+   *         miss is left for the parse that follows it
+   */
   @Override
-  public Client parse(String agentString) {
+  Client cached(CharSequence agentString) {
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known;
+    }
+    Entry cached = generation.cached(agentString);
+    Client client = cached == null ? null : cached.client;
+    if (client != null) {
+      stats.recordHit();
+    }
+    return client;
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Looks the characters up in the cache as they are, and only copies them into a string
+   * to parse and cache on a miss.
+   */
+  @Override
+  public Client parse(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
-    if (cacheClient == null) {
-      cacheClient = new LRUMap<>(cacheSize);
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known;
+    }
+    Generation generation = this.generation;
+    Entry cached = generation.cached(agentString);
+    Client client = cached == null ? null : cached.client;
+    if (client != null) {
+      stats.recordHit();
+      return client;
+    }
+    String key = agentString.toString();
+    return load(generation, key, generation.entry(key, cached), LOAD_CLIENT);
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Waits for another thread parsing the same user agent only until the deadline of the
+   * budget, and returns a {@link PartialClient} with what is known if it is not done by
+   * then. A budget limited in characters only does not wait at all: the user agent is
+   * parsed again within the budget instead.
+   */
+  @Override
+  public Client parse(CharSequence agentString, ParseBudget budget) {
+    if (agentString == null) {
+      return parse(agentString);
     }
-    Client client = cacheClient.get(agentString);
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known;
+    }
+    long deadline = budget.deadline();
+    Generation generation = this.generation;
+    Entry cached = generation.cached(agentString);
+    Client client = cached == null ? null : cached.client;
     if (client != null) {
+      stats.recordHit();
       return client;
     }
-    client = super.parse(agentString);
-    cacheClient.put(agentString, client);
+    String key = agentString.toString();
+    Entry entry = generation.entry(key, cached);
+    client = load(generation, key, entry, new BudgetedLoader(budget, deadline));
+    if (client != null) {
+      return client;
+    }
+    // another thread is parsing it
+    stats.recordMiss();
+    if (deadline != Long.MAX_VALUE) {
+      return new PartialClient(entry.userAgent, entry.os, entry.device,
+          entry.userAgent == null, entry.os == null, entry.device == null);
+    }
+    long start = System.nanoTime();
+    client = parse(generation.rules, key, budget.start(key, deadline), entry.userAgent, entry.os, entry.device);
+    stats.recordLoad(System.nanoTime() - start);
     return client;
   }
 
   // ------------------------------------------
 
   @Override
-  public UserAgent parseUserAgent(String agentString) {
+  public UserAgent parseUserAgent(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
-    if (cacheUserAgent == null) {
-      cacheUserAgent = new LRUMap<>(cacheSize);
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known.userAgent;
     }
-    UserAgent userAgent = cacheUserAgent.get(agentString);
+    Generation generation = this.generation;
+    Entry cached = generation.cached(agentString);
+    UserAgent userAgent = cached == null ? null : cached.userAgent;
     if (userAgent != null) {
+      stats.recordHit();
       return userAgent;
     }
-    userAgent = super.parseUserAgent(agentString);
-    cacheUserAgent.put(agentString, userAgent);
-    return userAgent;
+    String key = agentString.toString();
+    return load(generation, key, generation.entry(key, cached), LOAD_USER_AGENT);
   }
 
   // ------------------------------------------
 
   @Override
-  public Device parseDevice(String agentString) {
+  public Device parseDevice(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
-    if (cacheDevice == null) {
-      cacheDevice = new LRUMap<>(cacheSize);
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known.device;
     }
-    Device device = cacheDevice.get(agentString);
+    Generation generation = this.generation;
+    Entry cached = generation.cached(agentString);
+    Device device = cached == null ? null : cached.device;
     if (device != null) {
+      stats.recordHit();
       return device;
     }
-    device = super.parseDevice(agentString);
-    cacheDevice.put(agentString, device);
-    return device;
+    String key = agentString.toString();
+    return load(generation, key, generation.entry(key, cached), LOAD_DEVICE);
   }
 
   // ------------------------------------------
 
   @Override
-  public OS parseOS(String agentString) {
+  public OS parseOS(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
-
-    if (cacheOS == null) {
-      cacheOS = new LRUMap<>(cacheSize);
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known.os;
     }
-    OS os = cacheOS.get(agentString);
+    Generation generation = this.generation;
+    Entry cached = generation.cached(agentString);
+    OS os = cached == null ? null : cached.os;
     if (os != null) {
+      stats.recordHit();
       return os;
     }
-    os = super.parseOS(agentString);
-    cacheOS.put(agentString, os);
-    return os;
+    String key = agentString.toString();
+    return load(generation, key, generation.entry(key, cached), LOAD_OS);
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Replaces the rules, and the cache with an empty one.
+   */
+  @Override
+  public synchronized void setRuleSet(RuleSet rules) {
+    super.setRuleSet(rules);
+    generation = new Generation(rules, createCache(cacheOptions, stats));
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Fills the result the loader wants into the entry of the user agent and puts the entry
+   * back into the cache, holding the entry's lock while parsing so that concurrent misses
+   * on the same user agent parse it once. All parse methods miss through here.
+   * @param entry the entry from {@link Generation#entry(String, Entry)}
+   * @return the result, or null if the loader did not get the lock
+   */
+  private <T> T load(Generation generation, String key, Entry entry, Loader<T> loader) {
+    if (!loader.lock(entry)) {
+      // the thread holding the entry takes it out of loading once done
+      return null;
+    }
+    T result;
+    try {
+      try {
+        result = loader.cached(entry);
+        if (result != null) {
+          stats.recordHit();
+          return result;
+        }
+        stats.recordMiss();
+        long start = System.nanoTime();
+        result = loader.load(generation.rules, key, entry);
+        stats.recordLoad(System.nanoTime() - start);
+      } finally {
+        entry.lock.unlock();
+      }
+      generation.cache.put(key, entry);
+    } finally {
+      generation.loading.remove(key, entry);
+    }
+    return result;
+  }
+
+  /**
+   * Which result of an entry {@link #load} fills in, and how.
+   */
+  private abstract static class Loader<T> {
+
+    /**
+     * Waits for the lock of the entry.
+     * @return whether it was acquired
+     */
+    boolean lock(Entry entry) {
+      entry.lock.lock();
+      return true;
+    }
+
+    /**
+     * @return the result already in the entry, or null
+     */
+    abstract T cached(Entry entry);
+
+    /**
+     * Parses the result and sets it in the entry, along with what it was parsed from.
+     */
+    abstract T load(RuleSet rules, String key, Entry entry);
+  }
+
+  private static final Loader<Client> LOAD_CLIENT = new Loader<Client>() {
+    @Override
+    Client cached(Entry entry) {
+      return entry.client;
+    }
+
+    @Override
+    Client load(RuleSet rules, String key, Entry entry) {
+      UserAgent ua = entry.userAgent;
+      if (ua == null) {
+        entry.userAgent = ua = rules.getUserAgentParser().parse(key);
+      }
+      OS os = entry.os;
+      if (os == null) {
+        entry.os = os = rules.getOSParser().parse(key);
+      }
+      Device device = entry.device;
+      if (device == null) {
+        entry.device = device = rules.getDeviceParser().parse(key);
+      }
+      return entry.client = new Client(ua, os, device);
+    }
+  };
+
+  private static final Loader<UserAgent> LOAD_USER_AGENT = new Loader<UserAgent>() {
+    @Override
+    UserAgent cached(Entry entry) {
+      return entry.userAgent;
+    }
+
+    @Override
+    UserAgent load(RuleSet rules, String key, Entry entry) {
+      return entry.userAgent = rules.getUserAgentParser().parse(key);
+    }
+  };
+
+  private static final Loader<OS> LOAD_OS = new Loader<OS>() {
+    @Override
+    OS cached(Entry entry) {
+      return entry.os;
+    }
+
+    @Override
+    OS load(RuleSet rules, String key, Entry entry) {
+      return entry.os = rules.getOSParser().parse(key);
+    }
+  };
+
+  private static final Loader<Device> LOAD_DEVICE = new Loader<Device>() {
+    @Override
+    Device cached(Entry entry) {
+      return entry.device;
+    }
+
+    @Override
+    Device load(RuleSet rules, String key, Entry entry) {
+      return entry.device = rules.getDeviceParser().parse(key);
+    }
+  };
+
+  /**
+   * Parses within a budget and waits for the entry no longer than its deadline. Keeps the
+   * results that were completed, so that only the rest is tried again, and caches the
+   * client only if it is complete.
+   */
+  private static final class BudgetedLoader extends Loader<Client> {
+    private final ParseBudget budget;
+    private final long deadline;
+
+    BudgetedLoader(ParseBudget budget, long deadline) {
+      this.budget = budget;
+      this.deadline = deadline;
+    }
+
+    @Override
+    boolean lock(Entry entry) {
+      return entry.tryLock(deadline);
+    }
+
+    @Override
+    Client cached(Entry entry) {
+      return entry.client;
+    }
+
+    @Override
+    Client load(RuleSet rules, String key, Entry entry) {
+      Client client = parse(rules, key, budget.start(key, deadline), entry.userAgent, entry.os, entry.device);
+      if (client.userAgent != null) {
+        entry.userAgent = client.userAgent;
+      }
+      if (client.os != null) {
+        entry.os = client.os;
+      }
+      if (client.device != null) {
+        entry.device = client.device;
+      }
+      if (!(client instanceof PartialClient)) {
+        entry.client = client;
+      }
+      return client;
+    }
+  }
+
+  // ------------------------------------------
+
+  /**
+   * The rules and the cache of their results, replaced together. A call reads the
+   * generation once and works with it throughout.
+   */
+  private static final class Generation {
+    final RuleSet rules;
+    final Cache<CharSequence, Entry> cache;
+    // entries being filled, until the cache has them
+    final ConcurrentHashMap<String, Entry> loading = new ConcurrentHashMap<>();
+
+    Generation(RuleSet rules, Cache<CharSequence, Entry> cache) {
+      this.rules = rules;
+      this.cache = cache;
+    }
+
+    /**
+     * @return the cached entry of the user agent, or null; a sequence that is not a string
+     *         is looked up by its characters, see {@link ContentKey}
+     */
+    Entry cached(CharSequence agentString) {
+      CharSequence key = ContentKey.of(agentString);
+      try {
+        return cache.get(key);
+      } finally {
+        ContentKey.release(key);
+      }
+    }
+
+    /**
+     * @param cached the entry {@link #cached(CharSequence)} found, or null
+     * @return the cached entry, or else the one being filled by another thread, or else a
+     *         new one, registered as being filled until the caller's {@code loading.remove}
+     */
+    Entry entry(String agentString, Entry cached) {
+      if (cached != null) {
+        return cached;
+      }
+      Entry entry = new Entry();
+      // the cache may decline a new entry, this still lets concurrent misses find it
+      Entry inFlight = loading.putIfAbsent(agentString, entry);
+      if (inFlight != null) {
+        return inFlight;
+      }
+      Entry existing = cache.putIfAbsent(agentString, entry);
+      if (existing != null) {
+        loading.remove(agentString, entry);
+        entry = existing;
+      }
+      return entry;
+    }
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Results for one user agent, filled in component by component. A thread missing a
+   * component parses it while holding the entry's lock, so concurrent misses on the same
+   * user agent wait for that parse instead of repeating it. The entry is put again after
+   * it grew, so the cache can account for its new size.
+   */
+  private static final class Entry {
+    // not a monitor, so that waiting for it can be bounded, see #tryLock(long)
+    final ReentrantLock lock = new ReentrantLock();
+    volatile UserAgent userAgent;
+    volatile OS os;
+    volatile Device device;
+    volatile Client client;
+
+    /**
+     * @param deadline the {@link System#nanoTime()} to wait until, or Long.MAX_VALUE not to
+     *        wait if another thread holds the lock
+     * @return whether the lock was acquired
+     */
+    boolean tryLock(long deadline) {
+      if (deadline == Long.MAX_VALUE) {
+        return lock.tryLock();
+      }
+      try {
+        return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    int estimateBytes(String agentString) {
+      long bytes = ENTRY_OVERHEAD + HeapSize.of(agentString) + HeapSize.of(userAgent) + HeapSize.of(os) + HeapSize.of(device);
+      return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
   }
 
   // ------------------------------------------
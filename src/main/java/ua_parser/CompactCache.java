@@ -0,0 +1,463 @@
+package ua_parser;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bounded thread-safe cache keyed by a 128-bit hash of the text instead of the text itself.
+ *
+ * The hashes live in primitive long arrays with open addressing (linear probing, deletion by
+ * backward shift) and index the values in a parallel array, so an entry costs a few dozen
+ * bytes on top of its value no matter how long its key is. The table is split into stripes,
+ * each with its own {@link StampedLock}: lookups read optimistically and only fall back to
+ * the read lock if a writer got in the way. A full stripe evicts with CLOCK, and admits a new
+ * entry only if the {@link FrequencySketch} estimates it is used at least as often as the
+ * entry it would replace. Lookups record their accesses in a {@link ReadBuffer} rather than
+ * in the sketch itself.
+ *
+ * The hash is MurmurHash3 (x64, 128 bits) of the UTF-16 code units. Two distinct keys of a
+ * cache holding n entries share a hash with probability about n&sup2; / 2&sup1;&sup2;&sup9;,
+ * 10<sup>-25</sup> for ten million entries, far below the odds of a hardware fault. Murmur is
+ * not a cryptographic hash though, and keys can be crafted to collide; with verification on,
+ * the keys are kept as well and compared on every hit, trading the memory savings for
+ * certainty.
+ */
+final class CompactCache<V> implements Cache<CharSequence, V> {
+
+  private static final int MIN_STRIPE_CAPACITY = 64;
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private static final ThreadLocal<long[]> HASH = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[2];
+    }
+  };
+
+  private final Stripe<V>[] stripes;
+  private final int stripeMask;
+  private final ReadBuffer reads;
+  private final boolean verify;
+  private final Weigher<? super CharSequence, V> weigher;
+
+  /**
+   * @param maximumSize the maximum number of entries
+   * @param verify whether to keep the keys and compare them on hits
+   * @param weigher weighs the values for {@link #weight()}, or null
+   */
+  CompactCache(int maximumSize, boolean verify, Weigher<? super CharSequence, V> weigher) {
+    this(maximumSize, verify, weigher, null);
+  }
+
+  /**
+   * @param maximumSize the maximum number of entries
+   * @param verify whether to keep the keys and compare them on hits
+   * @param weigher weighs the values for {@link #weight()}, or null
+   * @param stats records the evictions, or null
+   */
+  CompactCache(int maximumSize, boolean verify, Weigher<? super CharSequence, V> weigher, StatsCounter stats) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("Invalid cache size " + maximumSize);
+    }
+    int stripeCount = FrequencySketch.ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+    while (stripeCount > 1 && maximumSize / stripeCount < MIN_STRIPE_CAPACITY) {
+      stripeCount >>>= 1;
+    }
+    @SuppressWarnings("unchecked")
+    Stripe<V>[] stripes = (Stripe<V>[]) new Stripe<?>[stripeCount];
+    this.stripes = stripes;
+    this.stripeMask = stripeCount - 1;
+    this.verify = verify;
+    this.weigher = weigher;
+    FrequencySketch[] sketches = new FrequencySketch[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe<>(maximumSize / stripeCount + (i < maximumSize % stripeCount ? 1 : 0), verify, stats);
+      sketches[i] = stripes[i].sketch;
+    }
+    this.reads = new ReadBuffer(sketches);
+  }
+
+  @Override
+  public V get(CharSequence key) {
+    long[] hash = hash(key);
+    long h1 = hash[0], h2 = hash[1];
+    int stripe = stripeIndex(h2);
+    reads.record(stripe, Stripe.sketchHash(h1, h2));
+    return stripes[stripe].get(h1, h2, verify ? key : null);
+  }
+
+  @Override
+  public void put(CharSequence key, V value) {
+    put(key, value, false);
+  }
+
+  @Override
+  public V putIfAbsent(CharSequence key, V value) {
+    return put(key, value, true);
+  }
+
+  private V put(CharSequence key, V value, boolean onlyIfAbsent) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    int weight = weigher == null ? 0 : weigher.weigh(key, value);
+    long[] hash = hash(key);
+    long h1 = hash[0], h2 = hash[1];
+    reads.drain();
+    return stripes[stripeIndex(h2)].put(h1, h2, verify ? key.toString() : null, value, weight, onlyIfAbsent);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Stripe<V> stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the heap taken by the tables plus the weight of the values
+   */
+  @Override
+  public long weight() {
+    long weight = 0;
+    for (Stripe<V> stripe : stripes) {
+      weight += stripe.weight();
+    }
+    return weight;
+  }
+
+  /**
+   * Visits the entries in table order, one stripe at a time. Only a cache that verifies its
+   * keys retains them; without verification there is nothing to visit.
+   */
+  @Override
+  public void forEach(Visitor<? super CharSequence, ? super V> visitor) {
+    if (!verify) {
+      return;
+    }
+    for (Stripe<V> stripe : stripes) {
+      String[] keys;
+      Object[] values;
+      long stamp = stripe.lock.readLock();
+      try {
+        keys = stripe.keys.clone();
+        values = stripe.values.clone();
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != null) {
+          @SuppressWarnings("unchecked")
+          V value = (V) values[i];
+          visitor.visit(keys[i], value);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return whether the keys are retained, and so visited by {@link #forEach(Visitor)}
+   */
+  boolean retainsKeys() {
+    return verify;
+  }
+
+  private int stripeIndex(long h2) {
+    return (int) (h2 >>> 32) & stripeMask;
+  }
+
+  /**
+   * MurmurHash3 x64 128 of the UTF-16 code units, eight per block, into a per-thread array.
+   */
+  static long[] hash(CharSequence s) {
+    int length = s.length();
+    long h1 = 0, h2 = 0;
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      long k1 = s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48;
+      long k2 = s.charAt(i + 4) | (long) s.charAt(i + 5) << 16 | (long) s.charAt(i + 6) << 32 | (long) s.charAt(i + 7) << 48;
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+    long k1 = 0, k2 = 0;
+    for (int j = 0; i + j < length; j++) {
+      long c = s.charAt(i + j);
+      if (j < 4) {
+        k1 |= c << (16 * j);
+      } else {
+        k2 |= c << (16 * (j - 4));
+      }
+    }
+    if (i < length) {
+      h1 ^= mixK1(k1);
+      h2 ^= mixK2(k2);
+    }
+    h1 ^= 2L * length;
+    h2 ^= 2L * length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    // (0, 0) marks an empty slot
+    if (h1 == 0 && h2 == 0) {
+      h2 = 1;
+    }
+    long[] hash = HASH.get();
+    hash[0] = h1;
+    hash[1] = h2;
+    return hash;
+  }
+
+  private static long mixK1(long k1) {
+    return Long.rotateLeft(k1 * C1, 31) * C2;
+  }
+
+  private static long mixK2(long k2) {
+    return Long.rotateLeft(k2 * C2, 33) * C1;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static final class Stripe<V> {
+    final StampedLock lock = new StampedLock();
+    final FrequencySketch sketch;
+    final StatsCounter stats;
+    final int capacity, tableMask;
+    // hash of slot i at 2i and 2i + 1
+    final long[] hashes;
+    final Object[] values;
+    final String[] keys;
+    final int[] weights;
+    // set by readers without locking, cleared by the clock hand
+    final boolean[] referenced;
+    // the arrays, which keep their size
+    final long tableWeight;
+    int size, hand;
+    // the values and the kept keys, maintained on every change so that reading it is cheap
+    long weight;
+
+    Stripe(int capacity, boolean verify, StatsCounter stats) {
+      int tableSize = FrequencySketch.ceilingPowerOfTwo(Math.max(2, 2 * capacity));
+      this.sketch = new FrequencySketch(capacity);
+      this.stats = stats;
+      this.capacity = capacity;
+      this.tableMask = tableSize - 1;
+      this.hashes = new long[2 * tableSize];
+      this.values = new Object[tableSize];
+      this.keys = verify ? new String[tableSize] : null;
+      this.weights = new int[tableSize];
+      this.referenced = new boolean[tableSize];
+      long tableWeight = HeapSize.align(HeapSize.ARRAY_HEADER + 8L * hashes.length)
+          + HeapSize.align(HeapSize.ARRAY_HEADER + (long) HeapSize.REFERENCE * values.length)
+          + HeapSize.align(HeapSize.ARRAY_HEADER + 4L * weights.length)
+          + HeapSize.align(HeapSize.ARRAY_HEADER + referenced.length);
+      if (keys != null) {
+        tableWeight += HeapSize.align(HeapSize.ARRAY_HEADER + (long) HeapSize.REFERENCE * keys.length);
+      }
+      this.tableWeight = tableWeight;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long h1, long h2, CharSequence key) {
+      long stamp = lock.tryOptimisticRead();
+      int slot = find(h1, h2);
+      Object value = slot < 0 ? null : values[slot];
+      String storedKey = slot < 0 || key == null ? null : keys[slot];
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          slot = find(h1, h2);
+          value = slot < 0 ? null : values[slot];
+          storedKey = slot < 0 || key == null ? null : keys[slot];
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      if (value == null || (key != null && !contentEquals(storedKey, key))) {
+        return null;
+      }
+      if (!referenced[slot]) {
+        referenced[slot] = true;
+      }
+      return (V) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long h1, long h2, String key, V value, int valueWeight, boolean onlyIfAbsent) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = find(h1, h2);
+        if (slot >= 0 && (key == null || key.equals(keys[slot]))) {
+          V existing = (V) values[slot];
+          if (!onlyIfAbsent) {
+            values[slot] = value;
+            weight += valueWeight - weights[slot];
+            weights[slot] = valueWeight;
+          }
+          referenced[slot] = true;
+          return existing;
+        }
+        if (slot >= 0) {
+          // same hash, different key: the newer key takes the slot
+          remove(slot);
+        } else if (size >= capacity) {
+          int victim = victim();
+          if (sketch.frequency(sketchHash(h1, h2)) < sketch.frequency(sketchHash(hashes[2 * victim], hashes[2 * victim + 1]))) {
+            // not admitted, which is not an eviction
+            return null;
+          }
+          remove(victim);
+          if (stats != null) {
+            stats.recordEviction();
+          }
+        }
+        slot = (int) h1 & tableMask;
+        while (values[slot] != null) {
+          slot = (slot + 1) & tableMask;
+        }
+        hashes[2 * slot] = h1;
+        hashes[2 * slot + 1] = h2;
+        values[slot] = value;
+        if (keys != null) {
+          keys[slot] = key;
+          weight += HeapSize.of(key);
+        }
+        weights[slot] = valueWeight;
+        referenced[slot] = false;
+        size++;
+        weight += valueWeight;
+        return null;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    int size() {
+      long stamp = lock.readLock();
+      try {
+        return size;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    long weight() {
+      long stamp = lock.tryOptimisticRead();
+      long weight = this.weight;
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          weight = this.weight;
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return tableWeight + weight;
+    }
+
+    /**
+     * @return the slot holding the hash, or -1; bounded so that torn optimistic reads end
+     */
+    private int find(long h1, long h2) {
+      int slot = (int) h1 & tableMask;
+      for (int i = 0; i <= tableMask; i++) {
+        if (values[slot] == null) {
+          return -1;
+        }
+        if (hashes[2 * slot] == h1 && hashes[2 * slot + 1] == h2) {
+          return slot;
+        }
+        slot = (slot + 1) & tableMask;
+      }
+      return -1;
+    }
+
+    /**
+     * @return the first occupied slot from the clock hand on that was not referenced since
+     *         the hand last passed it
+     */
+    private int victim() {
+      for (int i = 0; i <= 2 * tableMask + 1; i++) {
+        int slot = hand;
+        hand = (hand + 1) & tableMask;
+        if (values[slot] == null) {
+          continue;
+        }
+        if (!referenced[slot]) {
+          return slot;
+        }
+        referenced[slot] = false;
+      }
+      // every entry was referenced again while going round
+      while (values[hand] == null) {
+        hand = (hand + 1) & tableMask;
+      }
+      return hand;
+    }
+
+    /**
+     * Empties the slot, shifting back later entries of its probe sequence so that lookups
+     * never stop at a gap before reaching them.
+     */
+    private void remove(int slot) {
+      size--;
+      weight -= weights[slot];
+      if (keys != null) {
+        weight -= HeapSize.of(keys[slot]);
+      }
+      int gap = slot;
+      int next = slot;
+      while (true) {
+        next = (next + 1) & tableMask;
+        if (values[next] == null) {
+          break;
+        }
+        int home = (int) hashes[2 * next] & tableMask;
+        // move the entry into the gap unless its home lies cyclically within (gap, next]
+        boolean stays = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+        if (!stays) {
+          hashes[2 * gap] = hashes[2 * next];
+          hashes[2 * gap + 1] = hashes[2 * next + 1];
+          values[gap] = values[next];
+          if (keys != null) {
+            keys[gap] = keys[next];
+          }
+          weights[gap] = weights[next];
+          referenced[gap] = referenced[next];
+          gap = next;
+        }
+      }
+      hashes[2 * gap] = 0;
+      hashes[2 * gap + 1] = 0;
+      values[gap] = null;
+      if (keys != null) {
+        keys[gap] = null;
+      }
+      weights[gap] = 0;
+      referenced[gap] = false;
+    }
+
+    static int sketchHash(long h1, long h2) {
+      return (int) (h1 >>> 32) ^ (int) h2;
+    }
+
+    private static boolean contentEquals(String stored, CharSequence key) {
+      return stored != null && stored.contentEquals(key);
+    }
+  }
+}
@@ -0,0 +1,400 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded thread-safe cache with W-TinyLFU eviction.
+ *
+ * Entries live in a {@link ConcurrentHashMap}, so lookups take no locks. Eviction order is
+ * kept per stripe, each stripe owning a share of the capacity, the keys hashing to it and a
+ * lock that is only taken to add or reweigh an entry. Within a stripe new entries enter a
+ * small window (1% of the stripe); entries leaving the window are admitted to the main space
+ * only if the {@link FrequencySketch} estimates they are used more often than the entry they
+ * would evict. This keeps one-off keys from flushing the frequently used ones. The main space
+ * is split into a probation and a protected segment (20% and 80%).
+ *
+ * Lookups do not reorder the queues; they set a reference bit on the entry instead, and the
+ * queues give referenced entries a second chance when they reach the eviction end (CLOCK).
+ * A hit on an entry whose bit is already set writes nothing to the entry, and the access is
+ * counted through a {@link ReadBuffer} rather than in the sketch directly, so hot entries can
+ * be read from many threads without contention.
+ *
+ * The capacity is either a number of entries or a total weight. In both cases the entries
+ * are weighed if a {@link Cache.Weigher} is given, and the total is available from {@link #weight()}.
+ */
+final class ConcurrentCache<K, V> implements Cache<K, V> {
+
+  // keep stripes large enough for the frequency comparison to be meaningful
+  private static final int MIN_STRIPE_CAPACITY = 64;
+
+  private final ConcurrentHashMap<K, Node<K, V>> map;
+  private final Stripe<K, V>[] stripes;
+  private final int stripeMask;
+  private final ReadBuffer reads;
+  private final Weigher<K, V> weigher;
+
+  /**
+   * @param maximumSize the maximum number of entries
+   * @param weigher weighs the entries for {@link #weight()}, or null
+   */
+  static <K, V> ConcurrentCache<K, V> ofSize(int maximumSize, Weigher<K, V> weigher) {
+    return ofSize(maximumSize, weigher, null);
+  }
+
+  /**
+   * @param maximumSize the maximum number of entries
+   * @param weigher weighs the entries for {@link #weight()}, or null
+   * @param stats records the evictions, or null
+   */
+  static <K, V> ConcurrentCache<K, V> ofSize(int maximumSize, Weigher<K, V> weigher, StatsCounter stats) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("Invalid cache size " + maximumSize);
+    }
+    return new ConcurrentCache<>(maximumSize, maximumSize, true, weigher, stats);
+  }
+
+  /**
+   * @param maximumWeight the maximum total weight of the entries
+   * @param averageWeight the expected weight of an entry, used to size the internal structures
+   * @param weigher weighs the entries
+   */
+  static <K, V> ConcurrentCache<K, V> ofWeight(long maximumWeight, int averageWeight, Weigher<K, V> weigher) {
+    return ofWeight(maximumWeight, averageWeight, weigher, null);
+  }
+
+  /**
+   * @param maximumWeight the maximum total weight of the entries
+   * @param averageWeight the expected weight of an entry, used to size the internal structures
+   * @param weigher weighs the entries
+   * @param stats records the evictions, or null
+   */
+  static <K, V> ConcurrentCache<K, V> ofWeight(long maximumWeight, int averageWeight, Weigher<K, V> weigher,
+                                               StatsCounter stats) {
+    if (maximumWeight <= 0) {
+      throw new IllegalArgumentException("Invalid cache weight " + maximumWeight);
+    }
+    int expectedSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, maximumWeight / averageWeight));
+    return new ConcurrentCache<>(maximumWeight, expectedSize, false, weigher, stats);
+  }
+
+  private ConcurrentCache(long maximum, int expectedSize, boolean bySize, Weigher<K, V> weigher, StatsCounter stats) {
+    int stripeCount = FrequencySketch.ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+    while (stripeCount > 1 && expectedSize / stripeCount < MIN_STRIPE_CAPACITY) {
+      stripeCount >>>= 1;
+    }
+    this.map = new ConcurrentHashMap<>(Math.min(expectedSize, 1 << 16), 0.75f, stripeCount);
+    @SuppressWarnings("unchecked")
+    Stripe<K, V>[] stripes = (Stripe<K, V>[]) new Stripe<?, ?>[stripeCount];
+    this.stripes = stripes;
+    this.stripeMask = stripeCount - 1;
+    this.weigher = weigher;
+    FrequencySketch[] sketches = new FrequencySketch[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      long capacity = maximum / stripeCount + (i < maximum % stripeCount ? 1 : 0);
+      stripes[i] = new Stripe<>(map, capacity, expectedSize / stripeCount, bySize, stats);
+      sketches[i] = stripes[i].sketch;
+    }
+    this.reads = new ReadBuffer(sketches);
+  }
+
+  @Override
+  public V get(K key) {
+    int hash = spread(key.hashCode());
+    Node<K, V> node = map.get(key);
+    reads.record(hash & stripeMask, hash);
+    if (node == null) {
+      return null;
+    }
+    if (!node.referenced) {
+      node.referenced = true;
+    }
+    return node.value;
+  }
+
+  @Override
+  public void put(K key, V value) {
+    reads.drain();
+    stripe(key).put(node(key, value), false);
+  }
+
+  @Override
+  public V putIfAbsent(K key, V value) {
+    reads.drain();
+    return stripe(key).put(node(key, value), true);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  /**
+   * @return the total weight of the entries, or 0 if there is no weigher
+   */
+  @Override
+  public long weight() {
+    long weight = 0;
+    for (Stripe<K, V> stripe : stripes) {
+      weight += stripe.weight();
+    }
+    return weight;
+  }
+
+  /**
+   * Visits the protected entries, then those on probation and in the window, one stripe at
+   * a time. The stripe lock is only held while taking a copy of its queues.
+   */
+  @Override
+  public void forEach(Visitor<? super K, ? super V> visitor) {
+    List<Node<K, V>> nodes = new ArrayList<>();
+    for (Stripe<K, V> stripe : stripes) {
+      nodes.clear();
+      stripe.copyTo(nodes);
+      for (Node<K, V> node : nodes) {
+        visitor.visit(node.key, node.value);
+      }
+    }
+  }
+
+  private Node<K, V> node(K key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    int weight = weigher == null ? 0 : weigher.weigh(key, value);
+    return new Node<>(key, spread(key.hashCode()), value, weight);
+  }
+
+  private Stripe<K, V> stripe(K key) {
+    return stripes[spread(key.hashCode()) & stripeMask];
+  }
+
+  private static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Node<K, V> {
+    final K key;
+    final int hash;
+    volatile V value;
+    // set by readers without synchronization, cleared by the stripe when it gives a second chance
+    boolean referenced;
+
+    // guarded by the stripe lock
+    int weight;
+    Queue<K, V> queue;
+    Node<K, V> prev, next;
+
+    Node(K key, int hash, V value, int weight) {
+      this.key = key;
+      this.hash = hash;
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Circular doubly linked list with a sentinel, oldest entry first.
+   */
+  private static final class Queue<K, V> {
+    final Node<K, V> head = new Node<>(null, 0, null, 0);
+    int size;
+    long weight;
+
+    Queue() {
+      head.prev = head.next = head;
+    }
+
+    Node<K, V> first() {
+      return head.next == head ? null : head.next;
+    }
+
+    void addLast(Node<K, V> node) {
+      node.prev = head.prev;
+      node.next = head;
+      head.prev.next = node;
+      head.prev = node;
+      node.queue = this;
+      size++;
+      weight += node.weight;
+    }
+
+    void remove(Node<K, V> node) {
+      node.prev.next = node.next;
+      node.next.prev = node.prev;
+      node.prev = node.next = null;
+      node.queue = null;
+      size--;
+      weight -= node.weight;
+    }
+
+    void moveToLast(Node<K, V> node) {
+      remove(node);
+      addLast(node);
+    }
+  }
+
+  private static final class Stripe<K, V> {
+    final ConcurrentHashMap<K, Node<K, V>> map;
+    final FrequencySketch sketch;
+    final StatsCounter stats;
+    final boolean bySize;
+    final long capacity, windowMax, protectedMax;
+    final Queue<K, V> window = new Queue<>(), probation = new Queue<>(), protectedQueue = new Queue<>();
+
+    Stripe(ConcurrentHashMap<K, Node<K, V>> map, long capacity, int expectedSize, boolean bySize, StatsCounter stats) {
+      this.map = map;
+      this.sketch = new FrequencySketch(expectedSize);
+      this.stats = stats;
+      this.bySize = bySize;
+      this.capacity = capacity;
+      this.windowMax = Math.max(1, capacity / 100);
+      this.protectedMax = Math.max(0, capacity - windowMax) * 4 / 5;
+    }
+
+    synchronized V put(Node<K, V> node, boolean onlyIfAbsent) {
+      Node<K, V> existing = map.get(node.key);
+      if (existing != null) {
+        V value = existing.value;
+        if (!onlyIfAbsent) {
+          existing.value = node.value;
+          existing.queue.weight += node.weight - existing.weight;
+          existing.weight = node.weight;
+          evict();
+        }
+        existing.referenced = true;
+        return value;
+      }
+      map.put(node.key, node);
+      window.addLast(node);
+      evict();
+      return null;
+    }
+
+    synchronized long weight() {
+      return window.weight + probation.weight + protectedQueue.weight;
+    }
+
+    synchronized void copyTo(List<Node<K, V>> nodes) {
+      // most recently added or promoted first
+      for (Queue<K, V> queue : Arrays.asList(protectedQueue, probation, window)) {
+        for (Node<K, V> node = queue.head.prev; node != queue.head; node = node.prev) {
+          nodes.add(node);
+        }
+      }
+    }
+
+    private long measure(Queue<K, V> queue) {
+      return bySize ? queue.size : queue.weight;
+    }
+
+    private long measure(Node<K, V> node) {
+      return bySize ? 1 : node.weight;
+    }
+
+    /**
+     * Moves the overflow of the window towards the main space and brings the stripe back
+     * within its capacity. An entry leaving the window is only admitted to a full main space
+     * if it is used more often than the entry it would replace; the loser is dropped.
+     */
+    private void evict() {
+      List<Node<K, V>> candidates = null;
+      long pending = 0;
+      while (measure(window) > windowMax) {
+        Node<K, V> node = evictFrom(window);
+        window.remove(node);
+        if (candidates == null) {
+          candidates = new ArrayList<>(2);
+        }
+        candidates.add(node);
+        pending += measure(node);
+      }
+      int next = 0;
+      while (measure(window) + measure(probation) + measure(protectedQueue) + pending > capacity) {
+        Node<K, V> candidate = candidates != null && next < candidates.size() ? candidates.get(next) : null;
+        Node<K, V> victim = mainVictim();
+        if (candidate == null) {
+          Node<K, V> node = victim != null ? victim : evictFrom(window);
+          if (node == null) {
+            break;
+          }
+          node.queue.remove(node);
+          evicted(node);
+        } else if (victim == null || sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+          evicted(candidate);
+          pending -= measure(candidate);
+          next++;
+        } else {
+          probation.remove(victim);
+          evicted(victim);
+        }
+      }
+      if (candidates != null) {
+        for (; next < candidates.size(); next++) {
+          probation.addLast(candidates.get(next));
+        }
+      }
+    }
+
+    private void evicted(Node<K, V> node) {
+      map.remove(node.key, node);
+      if (stats != null) {
+        stats.recordEviction();
+      }
+    }
+
+    /**
+     * @return the oldest entry of the queue that was not referenced since it was last visited
+     */
+    private Node<K, V> evictFrom(Queue<K, V> queue) {
+      // bounded, since readers may keep setting bits while we go round
+      for (int i = queue.size; i > 0; i--) {
+        Node<K, V> node = queue.first();
+        if (!node.referenced) {
+          return node;
+        }
+        node.referenced = false;
+        queue.moveToLast(node);
+      }
+      return queue.first();
+    }
+
+    /**
+     * @return the probation entry to compare a candidate with, after promoting referenced
+     *         probation entries to the protected segment, or null if the main space is empty
+     */
+    private Node<K, V> mainVictim() {
+      for (int i = probation.size + protectedQueue.size; i > 0; i--) {
+        Node<K, V> node = probation.first();
+        if (node == null) {
+          demote();
+          continue;
+        }
+        if (!node.referenced) {
+          return node;
+        }
+        node.referenced = false;
+        probation.remove(node);
+        protectedQueue.addLast(node);
+        while (measure(protectedQueue) > protectedMax && protectedQueue.size > 1) {
+          demote();
+        }
+      }
+      if (probation.size == 0) {
+        demote();
+      }
+      return probation.first();
+    }
+
+    private void demote() {
+      Node<K, V> node = evictFrom(protectedQueue);
+      if (node != null) {
+        protectedQueue.remove(node);
+        probation.addLast(node);
+      }
+    }
+  }
+}
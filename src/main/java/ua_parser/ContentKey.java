@@ -0,0 +1,99 @@
+package ua_parser;
+
+/**
+ * Looks up any character sequence in the caches keyed by strings. Sequences such as a
+ * {@link StringBuilder} hash and compare by identity, so they are looked up through this
+ * view instead, which hashes like the string of the characters and is equal to any
+ * character sequence with the same characters. Like {@link Latin1CharSequence}, it is only
+ * equal to strings as the receiver, it is reused by its thread and must not be kept.
+ */
+final class ContentKey implements CharSequence {
+
+  private static final ThreadLocal<ContentKey> KEY = new ThreadLocal<ContentKey>() {
+    @Override
+    protected ContentKey initialValue() {
+      return new ContentKey();
+    }
+  };
+
+  private CharSequence sequence;
+  private int hash;
+  private boolean hashed;
+
+  private ContentKey() {
+  }
+
+  /**
+   * @return the sequence itself if it already hashes and compares by its characters, or
+   *         else the key of this thread over it, until {@link #release(CharSequence)}
+   */
+  static CharSequence of(CharSequence sequence) {
+    if (sequence instanceof String || sequence instanceof Latin1CharSequence) {
+      return sequence;
+    }
+    ContentKey key = KEY.get();
+    key.sequence = sequence;
+    key.hashed = false;
+    return key;
+  }
+
+  /**
+   * Drops the sequence of a key returned by {@link #of(CharSequence)}, if it is one.
+   */
+  static void release(CharSequence key) {
+    if (key instanceof ContentKey) {
+      ((ContentKey) key).sequence = null;
+    }
+  }
+
+  @Override
+  public int length() {
+    return sequence.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return sequence.charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return sequence.subSequence(start, end);
+  }
+
+  @Override
+  public int hashCode() {
+    if (!hashed) {
+      int h = 0;
+      for (int i = 0, length = sequence.length(); i < length; i++) {
+        h = 31 * h + sequence.charAt(i);
+      }
+      hash = h;
+      hashed = true;
+    }
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof CharSequence)) {
+      return false;
+    }
+    CharSequence other = (CharSequence) o;
+    int length = sequence.length();
+    if (other.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (other.charAt(i) != sequence.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return sequence.toString();
+  }
+}
@@ -0,0 +1,30 @@
+package ua_parser;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executor an {@link AsyncParser} parses misses on when none is supplied: here a
+ * pool of one daemon thread per processor. The jar is multi-release, and on Java 21 and later
+ * the version of this class under {@code META-INF/versions/21} starts a virtual thread per
+ * miss instead.
+ */
+final class DefaultExecutor {
+
+  static final String THREAD_NAME = "ua-parser-async";
+
+  private DefaultExecutor() {
+  }
+
+  static ExecutorService create() {
+    return Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+}
@@ -20,7 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Matcher;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 /**
@@ -31,19 +31,43 @@ import java.util.regex.Pattern;
 public class DeviceParser {
 
   private final List<DevicePattern> patterns;
+  private final LiteralPrefilter prefilter;
+  private final ThreadLocal<ReusableMatchers> matchers;
 
   public DeviceParser(List<DevicePattern> patterns) {
     this.patterns = patterns;
+    this.prefilter = prefilter(patterns);
+    this.matchers = ReusableMatchers.perThread(prefilter, patterns.size());
   }
 
   public Device parse(String agentString) {
+    return parse((CharSequence) agentString);
+  }
+
+  /**
+   * Parses the characters of any sequence, such as a slice of a log line, without copying
+   * them; only the values of the result are strings. The sequence must not change during
+   * the call.
+   */
+  public Device parse(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
 
+    return parse(agentString, agentString);
+  }
+
+  /**
+   * Runs the candidate patterns for agentString against matchInput, a view of the same
+   * characters such as a budgeted one.
+   */
+  Device parse(CharSequence agentString, CharSequence matchInput) {
     String device;
-    for (DevicePattern p : patterns) {
-      if ((device = p.match(agentString)) != null) {
+    ReusableMatchers matchers = this.matchers.get();
+    long[] candidates = prefilter.candidates(agentString, matchers.candidates);
+    for (int i = LiteralPrefilter.nextCandidate(candidates, 0); i >= 0; i = LiteralPrefilter.nextCandidate(candidates, i + 1)) {
+      DevicePattern pattern = patterns.get(i);
+      if ((device = pattern.match(matchers.matcher(i, pattern.pattern, matchInput))) != null) {
         return new Device(device);
       }
     }
@@ -56,52 +80,84 @@ public class DeviceParser {
    * @return a device parser
    */
   public static DeviceParser fromList(List<Map<String,String>> configList) {
-    List<DevicePattern> configPatterns = new ArrayList<>();
-    for (Map<String,String> configMap : configList) {
-      configPatterns.add(DeviceParser.patternFromMap(configMap));
-    }
+    return fromList(configList, RegexEngine.JDK);
+  }
+
+  /**
+   * Constructs a thread-safe DeviceParser whose patterns are compiled by the given engine.
+   * @param configList configure a device parser from a list of regexp hashmaps
+   * @param regexEngine engine compiling the regular expressions
+   * @return a device parser
+   */
+  public static DeviceParser fromList(List<Map<String,String>> configList, RegexEngine regexEngine) {
+    List<DevicePattern> configPatterns = RuleCompiler.compile("device_parsers", configList, compiler(regexEngine));
     return new DeviceParser(new CopyOnWriteArrayList<>(configPatterns));
   }
 
+  /**
+   * @return compiles a rule of the list with the given engine
+   */
+  static Function<Map<String,String>, DevicePattern> compiler(final RegexEngine regexEngine) {
+    return new Function<Map<String,String>, DevicePattern>() {
+      @Override
+      public DevicePattern apply(Map<String,String> configMap) {
+        return patternFromMap(configMap, regexEngine);
+      }
+    };
+  }
+
+  private static LiteralPrefilter prefilter(List<DevicePattern> patterns) {
+    List<String[]> literals = new ArrayList<>(patterns.size());
+    for (DevicePattern p : patterns) {
+      literals.add(p.literals);
+    }
+    return new LiteralPrefilter(literals);
+  }
+
   protected static DevicePattern patternFromMap(Map<String, String> configMap) {
+    return patternFromMap(configMap, RegexEngine.JDK);
+  }
+
+  protected static DevicePattern patternFromMap(Map<String, String> configMap, RegexEngine regexEngine) {
     String regex = configMap.get("regex");
     if (regex == null) {
       throw new IllegalArgumentException("Device is missing regex");
     }    
-    Pattern pattern = "i".equals(configMap.get("regex_flag")) // no ohter flags used (by now) 
-    		? Pattern.compile(regex, Pattern.CASE_INSENSITIVE) : Pattern.compile(regex);
+    RegexPattern pattern = "i".equals(configMap.get("regex_flag")) // no ohter flags used (by now) 
+    		? regexEngine.compile(regex, Pattern.CASE_INSENSITIVE) : regexEngine.compile(regex, 0);
     return new DevicePattern(pattern, configMap.get("device_replacement"));
   }
 
   protected static class DevicePattern {
-	private static final Pattern SUBSTITUTIONS_PATTERN = Pattern.compile("\\$\\d");
-    private final Pattern pattern;
-    private final String deviceReplacement;
+    private final RegexPattern pattern;
+    private final String[] literals;
+    private final Replacement deviceReplacement;
 
     public DevicePattern(Pattern pattern, String deviceReplacement) {
+      this(JdkRegexEngine.wrap(pattern), deviceReplacement);
+    }
+
+    public DevicePattern(RegexPattern pattern, String deviceReplacement) {
       this.pattern = pattern;
-      this.deviceReplacement = deviceReplacement;
+      this.literals = RegexLiterals.requiredLiterals(pattern.pattern(), pattern.flags());
+      this.deviceReplacement = deviceReplacement == null ? null : Replacement.allGroups(deviceReplacement);
     }
 
     public String match(String agentString) {
-      Matcher matcher = pattern.matcher(agentString);
+      return match((CharSequence) agentString);
+    }
+
+    public String match(CharSequence agentString) {
+      return match(pattern.matcher(agentString));
+    }
+
+    String match(RegexMatcher matcher) {
       if (!matcher.find()) {
         return null;
       }
       String device = null;
       if (deviceReplacement != null) {
-        if (deviceReplacement.contains("$")) {
-          device = deviceReplacement;
-          for (String substitution : getSubstitutions(deviceReplacement)) {    	  
-        	int i = Integer.valueOf(substitution.substring(1));
-            String replacement = matcher.groupCount() >= i && matcher.group(i) != null 
-        			  ? Matcher.quoteReplacement(matcher.group(i)) : "";
-              device = device.replaceFirst("\\" + substitution, replacement);  
-          }
-          device = device.trim();
-    	} else {
-          device = deviceReplacement;
-        } 
+        device = deviceReplacement.expand(matcher);
       } else if (matcher.groupCount() >= 1) {
         device = matcher.group(1);
       }
@@ -109,15 +165,6 @@ public class DeviceParser {
       return device;
     }
     
-    private List<String> getSubstitutions(String deviceReplacement) {
-      Matcher matcher = SUBSTITUTIONS_PATTERN.matcher(deviceReplacement);
-      List<String> substitutions = new ArrayList<>();
-      while (matcher.find()) {
-        substitutions.add(matcher.group());
-      }
-      return substitutions;
-    }
-    
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package ua_parser;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often keys were accessed recently,
+ * used for TinyLFU admission by {@link ConcurrentCache}.
+ *
+ * Each key maps to four counters spread over a table of longs, sixteen counters per long.
+ * The estimate is the smallest of the four. Once the number of increments reaches ten
+ * times the table's capacity all counters are halved, so the sketch follows changes in
+ * popularity.
+ *
+ * Increments are made without synchronization and may occasionally be lost when threads
+ * race, which only makes the estimate a little less accurate. A counter that has reached
+ * its maximum is not written again, so the counters of hot keys do not bounce between CPU
+ * caches.
+ */
+final class FrequencySketch {
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param capacity number of keys whose frequencies should be told apart
+   */
+  FrequencySketch(int capacity) {
+    int length = Math.max(8, ceilingPowerOfTwo(Math.max(1, capacity)));
+    table = new long[length];
+    tableMask = length - 1;
+    sampleSize = 10 * Math.max(1, capacity);
+  }
+
+  /**
+   * @return the estimated number of recent accesses of the key, at most 15
+   */
+  int frequency(int hash) {
+    int frequency = Integer.MAX_VALUE;
+    for (int depth = 0; depth < 4; depth++) {
+      int h = rehash(hash, depth);
+      frequency = Math.min(frequency, (int) ((table[h & tableMask] >>> offset(h)) & 0xfL));
+    }
+    return frequency;
+  }
+
+  /**
+   * Records an access of the key.
+   */
+  void increment(int hash) {
+    boolean added = false;
+    for (int depth = 0; depth < 4; depth++) {
+      int h = rehash(hash, depth);
+      int index = h & tableMask;
+      int offset = offset(h);
+      long word = table[index];
+      if (((word >>> offset) & 0xfL) != 0xfL) {
+        table[index] = word + (1L << offset);
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions = additions >>> 1;
+  }
+
+  private static int rehash(int hash, int depth) {
+    int h = (hash + SEEDS[depth]) * SEEDS[depth];
+    return h ^ (h >>> 17);
+  }
+
+  private static int offset(int h) {
+    // counter within the long, taken from bits not used for the table index
+    return (h >>> 28) << 2;
+  }
+
+  static int ceilingPowerOfTwo(int x) {
+    return x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1;
+  }
+}
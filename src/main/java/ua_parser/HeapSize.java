@@ -0,0 +1,62 @@
+package ua_parser;
+
+/**
+ * Rough estimates of the heap retained by parse results, assuming a 64-bit JVM with
+ * compressed references: 12 byte object headers, 4 byte references and 8 byte alignment.
+ * Strings shared between results are counted once per result.
+ */
+final class HeapSize {
+
+  // Latin-1 strings take one byte per character since Java 9
+  private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version", "").startsWith("1.");
+
+  static final int OBJECT_HEADER = 12;
+  static final int ARRAY_HEADER = 16;
+  static final int REFERENCE = 4;
+
+  private HeapSize() {
+  }
+
+  static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  static long of(String s) {
+    if (s == null) {
+      return 0;
+    }
+    int bytesPerChar = 2;
+    if (COMPACT_STRINGS) {
+      bytesPerChar = 1;
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) > 0xff) {
+          bytesPerChar = 2;
+          break;
+        }
+      }
+    }
+    // value, hash and coder fields
+    return align(OBJECT_HEADER + REFERENCE + 4 + 4) + align(ARRAY_HEADER + (long) s.length() * bytesPerChar);
+  }
+
+  static long of(UserAgent ua) {
+    if (ua == null) {
+      return 0;
+    }
+    return align(OBJECT_HEADER + 4 * REFERENCE) + of(ua.family) + of(ua.major) + of(ua.minor) + of(ua.patch);
+  }
+
+  static long of(OS os) {
+    if (os == null) {
+      return 0;
+    }
+    return align(OBJECT_HEADER + 5 * REFERENCE) + of(os.family) + of(os.major) + of(os.minor) + of(os.patch) + of(os.patchMinor);
+  }
+
+  static long of(Device device) {
+    if (device == null) {
+      return 0;
+    }
+    return align(OBJECT_HEADER + REFERENCE) + of(device.family);
+  }
+}
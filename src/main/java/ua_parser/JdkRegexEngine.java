@@ -0,0 +1,60 @@
+package ua_parser;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link RegexEngine} backed by java.util.regex.
+ */
+final class JdkRegexEngine implements RegexEngine {
+
+  @Override
+  public RegexPattern compile(String regex, int flags) {
+    return wrap(Pattern.compile(regex, flags));
+  }
+
+  static RegexPattern wrap(final Pattern pattern) {
+    return new RegexPattern() {
+      @Override
+      public String pattern() {
+        return pattern.pattern();
+      }
+
+      @Override
+      public int flags() {
+        return pattern.flags();
+      }
+
+      @Override
+      public RegexMatcher matcher(CharSequence input) {
+        final Matcher matcher = pattern.matcher(input);
+        return new RegexMatcher() {
+          @Override
+          public boolean find() {
+            return matcher.find();
+          }
+
+          @Override
+          public void reset(CharSequence input) {
+            matcher.reset(input);
+          }
+
+          @Override
+          public int groupCount() {
+            return matcher.groupCount();
+          }
+
+          @Override
+          public String group(int group) {
+            return matcher.group(group);
+          }
+        };
+      }
+
+      @Override
+      public String toString() {
+        return pattern.toString();
+      }
+    };
+  }
+}
@@ -0,0 +1,167 @@
+package ua_parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of bytes as ISO-8859-1 characters, one character per byte, over an array
+ * or a buffer, heap or direct, without copying them.
+ *
+ * The view hashes and compares like the string of its characters, so it can look up the
+ * caches keyed by strings: {@code hashCode} is that of the string and {@code equals} is true
+ * for any character sequence with the same characters. It is not symmetric, a string is
+ * never equal to a view, and lookups rely on the view being the receiver, as specified by
+ * {@link java.util.Map#get(Object)}. The bytes may change after the call that created the
+ * view, so it must not be kept: {@link #toString()} copies them into a string to keep.
+ */
+final class Latin1CharSequence implements CharSequence {
+
+  private static final ThreadLocal<Latin1CharSequence> VIEW = new ThreadLocal<Latin1CharSequence>() {
+    @Override
+    protected Latin1CharSequence initialValue() {
+      return new Latin1CharSequence();
+    }
+  };
+
+  private byte[] bytes;
+  private ByteBuffer buffer;
+  private int offset;
+  private int length;
+  // the bytes do not change while the view is in use, and a lookup hashes the key repeatedly
+  private int hash;
+  private boolean hashed;
+
+  private Latin1CharSequence() {
+  }
+
+  /**
+   * @return the view of this thread over the bytes, until {@link #release()}
+   * @throws IndexOutOfBoundsException if the range is not within the array
+   */
+  static Latin1CharSequence of(byte[] bytes, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > bytes.length - length) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + bytes.length);
+    }
+    Latin1CharSequence view = VIEW.get();
+    view.bytes = bytes;
+    view.offset = offset;
+    view.length = length;
+    view.hashed = false;
+    return view;
+  }
+
+  /**
+   * @return the view of this thread over the bytes from the position to the limit of the
+   *         buffer, until {@link #release()}; the position of the buffer is left as is
+   */
+  static Latin1CharSequence of(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return of(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    Latin1CharSequence view = VIEW.get();
+    view.buffer = buffer;
+    view.offset = buffer.position();
+    view.length = buffer.remaining();
+    view.hashed = false;
+    return view;
+  }
+
+  /**
+   * Drops the bytes, so that the view of the thread does not keep them reachable.
+   */
+  void release() {
+    bytes = null;
+    buffer = null;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new StringIndexOutOfBoundsException(index);
+    }
+    return (char) ((bytes != null ? bytes[offset + index] : buffer.get(offset + index)) & 0xff);
+  }
+
+  /**
+   * @return a copy of the characters, since matchers only take sub sequences to keep the
+   *         groups they captured
+   */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new StringIndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+    }
+    return copy(offset + start, end - start);
+  }
+
+  @Override
+  public int hashCode() {
+    if (!hashed) {
+      hash = hash();
+      hashed = true;
+    }
+    return hash;
+  }
+
+  private int hash() {
+    int hash = 0;
+    if (bytes != null) {
+      for (int i = offset; i < offset + length; i++) {
+        hash = 31 * hash + (bytes[i] & 0xff);
+      }
+    } else {
+      for (int i = offset; i < offset + length; i++) {
+        hash = 31 * hash + (buffer.get(i) & 0xff);
+      }
+    }
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof CharSequence)) {
+      return false;
+    }
+    CharSequence other = (CharSequence) o;
+    if (other.length() != length) {
+      return false;
+    }
+    if (bytes != null && o instanceof String) {
+      // the cached keys
+      String string = (String) o;
+      for (int i = 0; i < length; i++) {
+        if (string.charAt(i) != (bytes[offset + i] & 0xff)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    for (int i = 0; i < length; i++) {
+      if (other.charAt(i) != charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return copy(offset, length);
+  }
+
+  private String copy(int from, int count) {
+    if (bytes != null) {
+      return new String(bytes, from, count, StandardCharsets.ISO_8859_1);
+    }
+    byte[] copy = new byte[count];
+    ByteBuffer source = buffer.duplicate();
+    source.position(from);
+    source.get(copy);
+    return new String(copy, StandardCharsets.ISO_8859_1);
+  }
+}
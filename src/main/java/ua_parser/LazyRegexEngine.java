@@ -0,0 +1,95 @@
+package ua_parser;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * {@link RegexEngine} that defers compiling each pattern to another engine until the pattern
+ * is first tried. Many rules are never tried, since the literal prefilter rules them out,
+ * so a parser built with this engine starts faster and retains less heap.
+ *
+ * A compiled pattern is published through a volatile field: threads trying a pattern for the
+ * first time at once may each compile it, the first to finish wins, and afterwards matching
+ * reads it without locking.
+ * An invalid regular expression is only reported when its pattern is first tried, by the
+ * parse call that tries it.
+ */
+public final class LazyRegexEngine implements RegexEngine {
+
+  private final RegexEngine engine;
+  private final AtomicInteger patternCount = new AtomicInteger();
+  private final AtomicInteger compiledCount = new AtomicInteger();
+
+  /**
+   * @param engine the engine compiling the patterns when they are first tried
+   */
+  public LazyRegexEngine(RegexEngine engine) {
+    this.engine = engine;
+  }
+
+  @Override
+  public RegexPattern compile(String regex, int flags) {
+    patternCount.incrementAndGet();
+    return new LazyPattern(this, regex, flags);
+  }
+
+  /**
+   * @return the number of patterns handed out by this engine
+   */
+  public int getPatternCount() {
+    return patternCount.get();
+  }
+
+  /**
+   * @return the number of patterns compiled so far
+   */
+  public int getCompiledCount() {
+    return compiledCount.get();
+  }
+
+  private static final class LazyPattern implements RegexPattern {
+    private static final AtomicReferenceFieldUpdater<LazyPattern, RegexPattern> COMPILED =
+        AtomicReferenceFieldUpdater.newUpdater(LazyPattern.class, RegexPattern.class, "compiled");
+
+    private final LazyRegexEngine lazyEngine;
+    private final String regex;
+    private final int flags;
+    private volatile RegexPattern compiled;
+
+    LazyPattern(LazyRegexEngine lazyEngine, String regex, int flags) {
+      this.lazyEngine = lazyEngine;
+      this.regex = regex;
+      this.flags = flags;
+    }
+
+    @Override
+    public String pattern() {
+      return regex;
+    }
+
+    @Override
+    public int flags() {
+      return flags;
+    }
+
+    @Override
+    public RegexMatcher matcher(CharSequence input) {
+      RegexPattern pattern = compiled;
+      if (pattern == null) {
+        pattern = lazyEngine.engine.compile(regex, flags);
+        // the first compilation wins, so all threads share one pattern
+        if (COMPILED.compareAndSet(this, null, pattern)) {
+          lazyEngine.compiledCount.incrementAndGet();
+        } else {
+          pattern = compiled;
+        }
+      }
+      return pattern.matcher(input);
+    }
+
+    @Override
+    public String toString() {
+      return regex;
+    }
+  }
+}
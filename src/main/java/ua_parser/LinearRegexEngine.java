@@ -0,0 +1,951 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@link RegexEngine} compiling expressions into a program for a Pike VM.
+ *
+ * The VM advances every alternative of the expression in lockstep over the input, keeping
+ * at most one thread per program instruction, so a search costs O(input length * program size)
+ * whatever the input. Threads are kept in priority order, which yields the same match and
+ * the same capturing groups as the backtracking java.util.regex engine.
+ *
+ * Only the syntax used by uap-core is supported: literals and escaped literals, character
+ * classes (including \d, \w, \s and their negations), '.', capturing and non-capturing groups,
+ * inline case-insensitivity, alternation, greedy and lazy quantifiers and the anchors ^, $,
+ * \b and \B. Matching mirrors java.util.regex without MULTILINE, DOTALL or UNICODE_CASE.
+ */
+final class LinearRegexEngine implements RegexEngine {
+
+  private static final int CHAR = 0, CLASS = 1, MATCH = 2, SPLIT = 3, JMP = 4, SAVE = 5,
+      BEGIN = 6, DOLLAR = 7, WORD_BOUNDARY = 8, NOT_WORD_BOUNDARY = 9;
+
+  /** Upper bound on the instructions of a program, mostly reached through counted repetition. */
+  private static final int MAX_PROGRAM_SIZE = 1 << 16;
+
+  /** Whether \b treats non-ASCII letters as word characters, which changed in java 19. */
+  private static final boolean UNICODE_WORD_BOUNDARY = Pattern.compile("\\b").matcher("\u00e9").find();
+
+  private static final CharClass DOT = new CharClass(false, true)
+      .add('\n', '\n').add('\r', '\r').add('\u0085', '\u0085').add('\u2028', '\u2029');
+
+  @Override
+  public RegexPattern compile(String regex, int flags) {
+    if ((flags & ~Pattern.CASE_INSENSITIVE) != 0) {
+      throw new IllegalArgumentException("Unsupported flags " + flags + " for regex " + regex);
+    }
+    RegexParser parser = new RegexParser(regex, (flags & Pattern.CASE_INSENSITIVE) != 0);
+    Node root = parser.parse();
+    ProgramBuilder builder = new ProgramBuilder();
+    builder.emit(SAVE, 0, 0);
+    root.emit(builder);
+    builder.emit(SAVE, 1, 0);
+    builder.emit(MATCH, 0, 0);
+    return new Program(regex, flags, parser.groups, builder);
+  }
+
+  // ------------------------------------------
+
+  private abstract static class Node {
+    abstract void emit(ProgramBuilder c);
+  }
+
+  private static final class Single extends Node {
+    final int codePoint, otherCase;
+
+    Single(int codePoint, boolean caseInsensitive) {
+      this.codePoint = codePoint;
+      this.otherCase = caseInsensitive ? otherAsciiCase(codePoint) : codePoint;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      c.emit(CHAR, codePoint, otherCase);
+    }
+  }
+
+  private static final class Set extends Node {
+    final CharClass charClass;
+
+    Set(CharClass charClass) {
+      this.charClass = charClass;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      c.emit(CLASS, c.classIndex(charClass), 0);
+    }
+  }
+
+  private static final class Assertion extends Node {
+    final int op;
+
+    Assertion(int op) {
+      this.op = op;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      c.emit(op, 0, 0);
+    }
+  }
+
+  private static final class Group extends Node {
+    final int index;
+    final Node body;
+
+    Group(int index, Node body) {
+      this.index = index;
+      this.body = body;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      if (index < 0) {
+        body.emit(c);
+        return;
+      }
+      c.emit(SAVE, 2 * index, 0);
+      body.emit(c);
+      c.emit(SAVE, 2 * index + 1, 0);
+    }
+  }
+
+  private static final class Concat extends Node {
+    final List<Node> nodes;
+
+    Concat(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      for (Node node : nodes) {
+        node.emit(c);
+      }
+    }
+  }
+
+  private static final class Alternation extends Node {
+    final List<Node> branches;
+
+    Alternation(List<Node> branches) {
+      this.branches = branches;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      List<Integer> jumps = new ArrayList<>();
+      for (int i = 0; i < branches.size(); i++) {
+        if (i < branches.size() - 1) {
+          int split = c.emit(SPLIT, 0, 0);
+          c.x[split] = c.size;
+          branches.get(i).emit(c);
+          jumps.add(c.emit(JMP, 0, 0));
+          c.y[split] = c.size;
+        } else {
+          branches.get(i).emit(c);
+        }
+      }
+      for (int jump : jumps) {
+        c.x[jump] = c.size;
+      }
+    }
+  }
+
+  private static final class Repeat extends Node {
+    final Node body;
+    final int min, max;
+    final boolean greedy;
+
+    Repeat(Node body, int min, int max, boolean greedy) {
+      this.body = body;
+      this.min = min;
+      this.max = max;
+      this.greedy = greedy;
+    }
+
+    @Override
+    void emit(ProgramBuilder c) {
+      for (int i = 0; i < min; i++) {
+        body.emit(c);
+      }
+      if (max < 0) {
+        int loop = c.emit(SPLIT, 0, 0);
+        int start = c.size;
+        body.emit(c);
+        c.emit(JMP, loop, 0);
+        c.branch(loop, start, c.size, greedy);
+        return;
+      }
+      List<Integer> splits = new ArrayList<>();
+      for (int i = min; i < max; i++) {
+        int split = c.emit(SPLIT, 0, 0);
+        c.x[split] = c.size;
+        splits.add(split);
+        body.emit(c);
+      }
+      for (int split : splits) {
+        c.branch(split, c.x[split], c.size, greedy);
+      }
+    }
+  }
+
+  // ------------------------------------------
+
+  private static final class ProgramBuilder {
+    int[] op = new int[64], x = new int[64], y = new int[64];
+    int size;
+    final List<CharClass> classes = new ArrayList<>();
+
+    int emit(int opcode, int a, int b) {
+      if (size == op.length) {
+        if (size == MAX_PROGRAM_SIZE) {
+          throw new IllegalArgumentException("Regex too large for the linear engine");
+        }
+        op = Arrays.copyOf(op, size * 2);
+        x = Arrays.copyOf(x, size * 2);
+        y = Arrays.copyOf(y, size * 2);
+      }
+      op[size] = opcode;
+      x[size] = a;
+      y[size] = b;
+      return size++;
+    }
+
+    /** Points a split at its two targets, the preferred one first. */
+    void branch(int split, int repeat, int skip, boolean greedy) {
+      x[split] = greedy ? repeat : skip;
+      y[split] = greedy ? skip : repeat;
+    }
+
+    int classIndex(CharClass charClass) {
+      classes.add(charClass);
+      return classes.size() - 1;
+    }
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Character set of a class expression. ASCII membership, including case folding, is
+   * precomputed; other code points are looked up in the ranges.
+   */
+  private static final class CharClass {
+    private final boolean caseInsensitive, negated;
+    private final boolean[] ascii = new boolean[128];
+    private int[] ranges = new int[0];
+    private boolean allNonAscii;
+
+    CharClass(boolean caseInsensitive, boolean negated) {
+      this.caseInsensitive = caseInsensitive;
+      this.negated = negated;
+    }
+
+    CharClass add(int lo, int hi) {
+      for (int c = 0; c < 128; c++) {
+        if (inRange(lo, c, hi) || (caseInsensitive && (inRange(lo, upper(c), hi) || inRange(lo, lower(c), hi)))) {
+          ascii[c] = true;
+        }
+      }
+      if (hi >= 128) {
+        ranges = Arrays.copyOf(ranges, ranges.length + 2);
+        ranges[ranges.length - 2] = Math.max(lo, 128);
+        ranges[ranges.length - 1] = hi;
+      }
+      return this;
+    }
+
+    /** Adds one of the predefined ASCII classes \d, \w, \s or their negation \D, \W, \S. */
+    CharClass addPredefined(char name) {
+      char lowerName = (char) lower(name);
+      boolean negate = lowerName != name;
+      for (int c = 0; c < 128; c++) {
+        if (predefined(lowerName, c) != negate) {
+          ascii[c] = true;
+        }
+      }
+      allNonAscii |= negate;
+      return this;
+    }
+
+    boolean matches(int c) {
+      boolean in;
+      if (c < 128) {
+        in = ascii[c];
+      } else {
+        in = allNonAscii;
+        for (int i = 0; !in && i < ranges.length; i += 2) {
+          in = inRange(ranges[i], c, ranges[i + 1]);
+        }
+      }
+      return in != negated;
+    }
+
+    private static boolean predefined(char name, int c) {
+      switch (name) {
+        case 'd':
+          return c >= '0' && c <= '9';
+        case 'w':
+          return c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        default:
+          return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+      }
+    }
+
+    private static boolean inRange(int lo, int c, int hi) {
+      return lo <= c && c <= hi;
+    }
+  }
+
+  private static int upper(int c) {
+    return c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c;
+  }
+
+  private static int lower(int c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  private static int otherAsciiCase(int c) {
+    int u = upper(c);
+    return u != c ? u : lower(c);
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Recursive descent parser for the supported subset of java.util.regex syntax.
+   */
+  private static final class RegexParser {
+    private final String regex;
+    private int pos;
+    private boolean caseInsensitive;
+    int groups;
+
+    RegexParser(String regex, boolean caseInsensitive) {
+      this.regex = regex;
+      this.caseInsensitive = caseInsensitive;
+    }
+
+    Node parse() {
+      Node node = alternation();
+      if (pos < regex.length()) {
+        throw error("Unmatched closing ')'");
+      }
+      return node;
+    }
+
+    private Node alternation() {
+      List<Node> branches = new ArrayList<>();
+      branches.add(concat());
+      while (peek() == '|') {
+        pos++;
+        branches.add(concat());
+      }
+      return branches.size() == 1 ? branches.get(0) : new Alternation(branches);
+    }
+
+    private Node concat() {
+      List<Node> nodes = new ArrayList<>();
+      while (pos < regex.length() && peek() != '|' && peek() != ')') {
+        Node atom = atom();
+        if (atom != null) {
+          nodes.add(quantified(atom));
+        }
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new Concat(nodes);
+    }
+
+    private Node atom() {
+      char c = regex.charAt(pos++);
+      switch (c) {
+        case '(':
+          return group();
+        case '[':
+          return new Set(charClass());
+        case '.':
+          return new Set(DOT);
+        case '^':
+          return new Assertion(BEGIN);
+        case '$':
+          return new Assertion(DOLLAR);
+        case '\\':
+          return escape();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+          throw error("Dangling meta character '" + c + "'");
+        default:
+          pos--;
+          return new Single(codePoint(), caseInsensitive);
+      }
+    }
+
+    private Node group() {
+      boolean outerCaseInsensitive = caseInsensitive;
+      int index = -1;
+      if (peek() == '?') {
+        pos++;
+        char kind = next();
+        if (kind == '<' && peek() != '=' && peek() != '!') {
+          int end = regex.indexOf('>', pos);
+          if (end < 0) {
+            throw error("Unterminated group name");
+          }
+          pos = end + 1;
+          index = ++groups;
+        } else if (kind != ':') {
+          pos--;
+          boolean enable = true;
+          while (true) {
+            char flag = next();
+            if (flag == 'i') {
+              caseInsensitive = enable;
+            } else if (flag == '-') {
+              enable = false;
+            } else if (flag == ')') {
+              // flags apply to the rest of the enclosing group
+              return null;
+            } else if (flag == ':') {
+              break;
+            } else {
+              throw error("Unsupported group or flag '" + flag + "'");
+            }
+          }
+        }
+      } else {
+        index = ++groups;
+      }
+      Node body = alternation();
+      if (next() != ')') {
+        throw error("Unclosed group");
+      }
+      caseInsensitive = outerCaseInsensitive;
+      return new Group(index, body);
+    }
+
+    private Node quantified(Node atom) {
+      int min, max;
+      char c = peek();
+      if (c == '?') {
+        min = 0;
+        max = 1;
+      } else if (c == '*') {
+        min = 0;
+        max = -1;
+      } else if (c == '+') {
+        min = 1;
+        max = -1;
+      } else if (c == '{') {
+        int end = regex.indexOf('}', pos);
+        if (end < 0) {
+          throw error("Unclosed counted closure");
+        }
+        String bounds = regex.substring(pos + 1, end);
+        int comma = bounds.indexOf(',');
+        try {
+          min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+          max = comma < 0 ? min : comma == bounds.length() - 1 ? -1 : Integer.parseInt(bounds.substring(comma + 1));
+        } catch (NumberFormatException e) {
+          throw error("Illegal repetition");
+        }
+        if (max >= 0 && max < min) {
+          throw error("Illegal repetition range");
+        }
+        pos = end;
+      } else {
+        return atom;
+      }
+      pos++;
+      boolean greedy = true;
+      if (peek() == '?') {
+        pos++;
+        greedy = false;
+      } else if (peek() == '+') {
+        throw error("Possessive quantifiers are not supported");
+      }
+      c = peek();
+      if (c == '?' || c == '*' || c == '+' || c == '{') {
+        throw error("Stacked quantifiers are not supported");
+      }
+      return new Repeat(atom, min, max, greedy);
+    }
+
+    private Node escape() {
+      char c = next();
+      switch (c) {
+        case 'd':
+        case 'D':
+        case 'w':
+        case 'W':
+        case 's':
+        case 'S':
+          return new Set(new CharClass(false, false).addPredefined(c));
+        case 'b':
+          return new Assertion(WORD_BOUNDARY);
+        case 'B':
+          return new Assertion(NOT_WORD_BOUNDARY);
+        default:
+          return new Single(escapedLiteral(c), caseInsensitive);
+      }
+    }
+
+    /** Code point of an escape sequence standing for a single character. */
+    private int escapedLiteral(char c) {
+      switch (c) {
+        case 't':
+          return '\t';
+        case 'n':
+          return '\n';
+        case 'r':
+          return '\r';
+        case 'f':
+          return '\f';
+        case 'a':
+          return '\u0007';
+        case 'e':
+          return '\u001B';
+        case 'x':
+          return hex(2);
+        case 'u':
+          return hex(4);
+        default:
+          if (Character.isLetterOrDigit(c)) {
+            throw error("Unsupported escape sequence \\" + c);
+          }
+          pos--;
+          return codePoint();
+      }
+    }
+
+    private CharClass charClass() {
+      boolean negated = peek() == '^';
+      if (negated) {
+        pos++;
+      }
+      CharClass charClass = new CharClass(caseInsensitive, negated);
+      boolean first = true;
+      while (true) {
+        if (pos >= regex.length()) {
+          throw error("Unclosed character class");
+        }
+        char c = regex.charAt(pos);
+        if (c == ']' && !first) {
+          pos++;
+          return charClass;
+        }
+        first = false;
+        if (c == '[' || regex.startsWith("&&", pos)) {
+          throw error("Nested character classes are not supported");
+        }
+        int lo;
+        if (c == '\\') {
+          pos++;
+          char e = next();
+          if ("dDwWsS".indexOf(e) >= 0) {
+            charClass.addPredefined(e);
+            continue;
+          }
+          lo = escapedLiteral(e);
+        } else {
+          lo = codePoint();
+        }
+        int hi = lo;
+        if (peek() == '-' && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+          pos++;
+          if (peek() == '\\') {
+            pos++;
+            hi = escapedLiteral(next());
+          } else {
+            hi = codePoint();
+          }
+          if (hi < lo) {
+            throw error("Illegal character range");
+          }
+        }
+        charClass.add(lo, hi);
+      }
+    }
+
+    private int hex(int digits) {
+      if (pos + digits > regex.length()) {
+        throw error("Illegal hexadecimal escape sequence");
+      }
+      try {
+        int value = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+        pos += digits;
+        return value;
+      } catch (NumberFormatException e) {
+        throw error("Illegal hexadecimal escape sequence");
+      }
+    }
+
+    private int codePoint() {
+      int cp = regex.codePointAt(pos);
+      pos += Character.charCount(cp);
+      return cp;
+    }
+
+    private char peek() {
+      return pos < regex.length() ? regex.charAt(pos) : 0;
+    }
+
+    private char next() {
+      if (pos >= regex.length()) {
+        throw error("Unexpected end of regex");
+      }
+      return regex.charAt(pos++);
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " near index " + pos + " of regex " + regex);
+    }
+  }
+
+  // ------------------------------------------
+
+  private static final class Program implements RegexPattern {
+    private final String regex;
+    private final int flags;
+    private final int groups;
+    private final int[] op, x, y;
+    private final CharClass[] classes;
+    private final boolean wordBoundaries;
+
+    Program(String regex, int flags, int groups, ProgramBuilder builder) {
+      this.regex = regex;
+      this.flags = flags;
+      this.groups = groups;
+      this.op = Arrays.copyOf(builder.op, builder.size);
+      this.x = Arrays.copyOf(builder.x, builder.size);
+      this.y = Arrays.copyOf(builder.y, builder.size);
+      this.classes = builder.classes.toArray(new CharClass[0]);
+      boolean wordBoundaries = false;
+      for (int opcode : op) {
+        wordBoundaries |= opcode == WORD_BOUNDARY || opcode == NOT_WORD_BOUNDARY;
+      }
+      this.wordBoundaries = wordBoundaries;
+    }
+
+    @Override
+    public String pattern() {
+      return regex;
+    }
+
+    @Override
+    public int flags() {
+      return flags;
+    }
+
+    @Override
+    public RegexMatcher matcher(CharSequence input) {
+      return new VM(this, input);
+    }
+
+    @Override
+    public String toString() {
+      return regex;
+    }
+  }
+
+  /**
+   * Thread list of one step of the VM: instructions in priority order with their capture slots.
+   * Capture storage grows with the number of live threads rather than the program size.
+   */
+  private static final class Threads {
+    int[] pcs = new int[0];
+    int[] captures = new int[0];
+    int size;
+
+    void ensureCapacity(int programSize) {
+      if (pcs.length < programSize) {
+        pcs = new int[programSize];
+      }
+    }
+
+    void add(int pc, int[] threadCaptures, int slots) {
+      int offset = size * slots;
+      if (captures.length < offset + slots) {
+        captures = Arrays.copyOf(captures, Math.max(offset + slots, 2 * captures.length));
+      }
+      pcs[size] = pc;
+      System.arraycopy(threadCaptures, 0, captures, offset, slots);
+      size++;
+    }
+  }
+
+  /**
+   * Working state of the VM while it searches. Only one search runs at a time on a thread, so
+   * the matchers of all patterns share the state of their thread, sized by the largest program
+   * and the most live threads seen, instead of each matcher holding state for its program.
+   */
+  private static final class Scratch {
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+      @Override
+      protected Scratch initialValue() {
+        return new Scratch();
+      }
+    };
+
+    final Thread owner = Thread.currentThread();
+    Threads current = new Threads(), next = new Threads();
+    int[] visited = new int[0], stack = new int[0], work = new int[0];
+    int generation;
+
+    /**
+     * @param scratch the state last used by the caller, reused if it belongs to this thread
+     */
+    static Scratch get(Scratch scratch, int programSize, int slots) {
+      if (scratch == null || scratch.owner != Thread.currentThread()) {
+        scratch = SCRATCH.get();
+      }
+      scratch.current.ensureCapacity(programSize);
+      scratch.next.ensureCapacity(programSize);
+      if (scratch.visited.length < programSize) {
+        scratch.visited = new int[programSize];
+        scratch.stack = new int[3 * programSize + 3];
+      }
+      if (scratch.work.length < slots) {
+        scratch.work = new int[slots];
+      }
+      return scratch;
+    }
+
+    int nextGeneration() {
+      if (generation == Integer.MAX_VALUE) {
+        // the marks of earlier generations would otherwise come round again
+        Arrays.fill(visited, 0);
+        generation = 0;
+      }
+      return ++generation;
+    }
+  }
+
+  private static final class VM implements RegexMatcher {
+    private final Program program;
+    private CharSequence input;
+    private final int slots;
+    private final int[] matched;
+    private boolean found;
+
+    // state of the current search, from the scratch of the thread
+    private Scratch scratch;
+    private int[] visited, stack, work;
+    // whether the nearest character before the position that is not a non spacing mark is a
+    // letter or digit, which makes such marks word characters for \b
+    private boolean markBase;
+
+    VM(Program program, CharSequence input) {
+      this.program = program;
+      this.input = input;
+      this.slots = 2 * (program.groups + 1);
+      this.matched = new int[slots];
+    }
+
+    @Override
+    public boolean find() {
+      Scratch scratch = this.scratch = Scratch.get(this.scratch, program.op.length, slots);
+      visited = scratch.visited;
+      stack = scratch.stack;
+      work = scratch.work;
+      try {
+        return find(scratch);
+      } finally {
+        visited = stack = work = null;
+      }
+    }
+
+    private boolean find(Scratch scratch) {
+      Threads current = scratch.current, next = scratch.next;
+      int length = input.length();
+      found = false;
+      markBase = false;
+      current.size = 0;
+      Arrays.fill(work, 0, slots, -1);
+      addThread(current, 0, 0, scratch.nextGeneration());
+
+      for (int pos = 0; current.size > 0 || !found; ) {
+        int c = pos < length ? Character.codePointAt(input, pos) : -1;
+        int nextPos = c < 0 ? pos : pos + Character.charCount(c);
+        int step = scratch.nextGeneration();
+        next.size = 0;
+        if (program.wordBoundaries && c >= 0) {
+          markBase = markBase(c);
+        }
+        for (int t = 0; t < current.size; t++) {
+          int pc = current.pcs[t];
+          int opcode = program.op[pc];
+          boolean advance;
+          if (opcode == MATCH) {
+            System.arraycopy(current.captures, t * slots, matched, 0, slots);
+            found = true;
+            // lower priority threads can no longer win
+            break;
+          } else if (opcode == CHAR) {
+            advance = c == program.x[pc] || c == program.y[pc];
+          } else {
+            advance = c >= 0 && program.classes[program.x[pc]].matches(c);
+          }
+          if (advance) {
+            System.arraycopy(current.captures, t * slots, work, 0, slots);
+            addThread(next, pc + 1, nextPos, step);
+          }
+        }
+        if (c < 0) {
+          break;
+        }
+        if (!found) {
+          // a match starting at the next position, with lower priority than those started earlier
+          Arrays.fill(work, 0, slots, -1);
+          addThread(next, 0, nextPos, step);
+        }
+        Threads swap = current;
+        current = next;
+        next = swap;
+        pos = nextPos;
+      }
+      return found;
+    }
+
+    /**
+     * @return whether a non spacing mark right after c, or after a run of marks following c, is
+     *         a word character
+     */
+    private boolean markBase(int c) {
+      if (c < 128) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+      }
+      if (c > Character.MAX_VALUE) {
+        // java.util.regex scans back by char and stops at the low surrogate
+        return false;
+      }
+      return Character.getType(c) == Character.NON_SPACING_MARK ? markBase : Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Follows the empty transitions from pc in priority order and appends every consuming or
+     * MATCH instruction reached to the list. Captures set on the way are undone when backing
+     * out, using the stack for both pending branches and saved capture values.
+     */
+    private void addThread(Threads list, int pc0, int pos, int generation) {
+      int[] captures = work;
+      int top = 0;
+      stack[top++] = pc0;
+      while (top > 0) {
+        int entry = stack[--top];
+        if (entry < 0) {
+          captures[-1 - entry] = stack[--top];
+          continue;
+        }
+        int pc = entry;
+        while (visited[pc] != generation) {
+          visited[pc] = generation;
+          int opcode = program.op[pc];
+          if (opcode == SPLIT) {
+            stack[top++] = program.y[pc];
+            pc = program.x[pc];
+          } else if (opcode == JMP) {
+            pc = program.x[pc];
+          } else if (opcode == SAVE) {
+            int slot = program.x[pc];
+            stack[top++] = captures[slot];
+            stack[top++] = -1 - slot;
+            captures[slot] = pos;
+            pc++;
+          } else if (opcode <= MATCH) {
+            list.add(pc, captures, slots);
+            break;
+          } else if (assertion(opcode, pos)) {
+            pc++;
+          } else {
+            break;
+          }
+        }
+      }
+    }
+
+    private boolean assertion(int opcode, int pos) {
+      switch (opcode) {
+        case BEGIN:
+          return pos == 0;
+        case DOLLAR:
+          return dollar(pos);
+        case WORD_BOUNDARY:
+          return wordBoundary(pos);
+        default:
+          return !wordBoundary(pos);
+      }
+    }
+
+    /** $ without MULTILINE: at the end of input or before a final line terminator. */
+    private boolean dollar(int pos) {
+      int length = input.length();
+      if (pos == length) {
+        return true;
+      }
+      if (pos == length - 2) {
+        return input.charAt(pos) == '\r' && input.charAt(pos + 1) == '\n';
+      }
+      if (pos == length - 1) {
+        char c = input.charAt(pos);
+        if (c == '\n') {
+          return pos == 0 || input.charAt(pos - 1) != '\r';
+        }
+        return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+      }
+      return false;
+    }
+
+    /**
+     * Like java.util.regex, a non spacing mark is a word character when the nearest preceding
+     * character that is not a mark is a letter or digit; that is tracked while stepping forward
+     * so the test takes constant time however long the run of marks.
+     */
+    private boolean wordBoundary(int pos) {
+      boolean left = false, right = false;
+      if (pos > 0) {
+        int c = Character.codePointBefore(input, pos);
+        left = isWord(c) || (Character.getType(c) == Character.NON_SPACING_MARK && markBase);
+      }
+      if (pos < input.length()) {
+        int c = Character.codePointAt(input, pos);
+        right = isWord(c) || (Character.getType(c) == Character.NON_SPACING_MARK && markBase);
+      }
+      return left != right;
+    }
+
+    private static boolean isWord(int c) {
+      if (UNICODE_WORD_BOUNDARY) {
+        return c == '_' || Character.isLetterOrDigit(c);
+      }
+      return c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    @Override
+    public void reset(CharSequence input) {
+      this.input = input;
+      found = false;
+    }
+
+    @Override
+    public int groupCount() {
+      return program.groups;
+    }
+
+    @Override
+    public String group(int group) {
+      if (!found) {
+        throw new IllegalStateException("No match found");
+      }
+      if (group < 0 || group > program.groups) {
+        throw new IndexOutOfBoundsException("No group " + group);
+      }
+      int start = matched[2 * group], end = matched[2 * group + 1];
+      return start < 0 || end < 0 ? null : input.subSequence(start, end).toString();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package ua_parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over the required literals of an ordered list of patterns.
+ *
+ * A single pass over the (case folded) input yields the set of patterns that can
+ * possibly match, so the parsers only need to run the regular expressions of those
+ * candidates. Patterns without known literals are always candidates. The candidate
+ * set is returned as a bit set indexed by pattern position, which lets the parsers
+ * keep trying patterns in their original order.
+ */
+final class LiteralPrefilter {
+
+  private final long[] alwaysCandidates;
+
+  // trie flattened into arrays, transitions of each state sorted by character
+  private final int[] transitionStart;
+  private final char[] transitionChars;
+  private final int[] transitionTargets;
+  private final int[] fail;
+  private final int[][] outputs;
+
+  /**
+   * @param literals per pattern, the folded literals of which one is required, or null if unknown
+   */
+  LiteralPrefilter(List<String[]> literals) {
+    int patternCount = literals.size();
+    alwaysCandidates = new long[words(patternCount)];
+
+    List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+    List<List<Integer>> matches = new ArrayList<>();
+    trie.add(new TreeMap<Character, Integer>());
+    matches.add(new ArrayList<Integer>());
+
+    for (int i = 0; i < patternCount; i++) {
+      String[] required = literals.get(i);
+      if (required == null || required.length == 0) {
+        alwaysCandidates[i >>> 6] |= 1L << i;
+        continue;
+      }
+      for (String literal : required) {
+        int state = 0;
+        for (int j = 0; j < literal.length(); j++) {
+          Integer next = trie.get(state).get(literal.charAt(j));
+          if (next == null) {
+            next = trie.size();
+            trie.add(new TreeMap<Character, Integer>());
+            matches.add(new ArrayList<Integer>());
+            trie.get(state).put(literal.charAt(j), next);
+          }
+          state = next;
+        }
+        matches.get(state).add(i);
+      }
+    }
+
+    int states = trie.size();
+    transitionStart = new int[states + 1];
+    int transitions = 0;
+    for (int s = 0; s < states; s++) {
+      transitionStart[s] = transitions;
+      transitions += trie.get(s).size();
+    }
+    transitionStart[states] = transitions;
+    transitionChars = new char[transitions];
+    transitionTargets = new int[transitions];
+    for (int s = 0, t = 0; s < states; s++) {
+      for (Map.Entry<Character, Integer> e : trie.get(s).entrySet()) {
+        transitionChars[t] = e.getKey();
+        transitionTargets[t++] = e.getValue();
+      }
+    }
+
+    // breadth first, so the failure state of every state is final before its children are visited
+    fail = new int[states];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int t = transitionStart[0]; t < transitionStart[1]; t++) {
+      queue.add(transitionTargets[t]);
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      matches.get(state).addAll(matches.get(fail[state]));
+      for (int t = transitionStart[state]; t < transitionStart[state + 1]; t++) {
+        int child = transitionTargets[t];
+        int f = fail[state];
+        int next;
+        while ((next = transition(f, transitionChars[t])) < 0 && f != 0) {
+          f = fail[f];
+        }
+        fail[child] = next < 0 ? 0 : next;
+        queue.add(child);
+      }
+    }
+
+    outputs = new int[states][];
+    for (int s = 0; s < states; s++) {
+      List<Integer> m = matches.get(s);
+      int[] out = new int[m.size()];
+      for (int j = 0; j < out.length; j++) {
+        out[j] = m.get(j);
+      }
+      outputs[s] = out;
+    }
+  }
+
+  /**
+   * @return bit set of the patterns that may match the input
+   */
+  long[] candidates(CharSequence input) {
+    return candidates(input, newCandidateSet());
+  }
+
+  /**
+   * Overwrites a bit set obtained from {@link #newCandidateSet()} with the patterns that may match the input.
+   * @return the given bit set
+   */
+  long[] candidates(CharSequence input, long[] candidates) {
+    System.arraycopy(alwaysCandidates, 0, candidates, 0, alwaysCandidates.length);
+    int state = 0;
+    for (int i = 0, len = input.length(); i < len; i++) {
+      char c = RegexLiterals.fold(input.charAt(i));
+      int next;
+      while ((next = transition(state, c)) < 0 && state != 0) {
+        state = fail[state];
+      }
+      state = next < 0 ? 0 : next;
+      for (int pattern : outputs[state]) {
+        candidates[pattern >>> 6] |= 1L << pattern;
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * @return an empty bit set sized for the patterns of this prefilter
+   */
+  long[] newCandidateSet() {
+    return new long[alwaysCandidates.length];
+  }
+
+  /**
+   * @return the first candidate at or after {@code from}, or -1 if there is none
+   */
+  static int nextCandidate(long[] candidates, int from) {
+    int word = from >>> 6;
+    if (word >= candidates.length) {
+      return -1;
+    }
+    long bits = candidates[word] & (-1L << from);
+    while (true) {
+      if (bits != 0) {
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+      }
+      if (++word == candidates.length) {
+        return -1;
+      }
+      bits = candidates[word];
+    }
+  }
+
+  private int transition(int state, char c) {
+    int lo = transitionStart[state], hi = transitionStart[state + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char m = transitionChars[mid];
+      if (m < c) {
+        lo = mid + 1;
+      } else if (m > c) {
+        hi = mid - 1;
+      } else {
+        return transitionTargets[mid];
+      }
+    }
+    return -1;
+  }
+
+  private static int words(int bits) {
+    return (bits + 63) >>> 6;
+  }
+}
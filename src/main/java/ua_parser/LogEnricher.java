@@ -0,0 +1,492 @@
+package ua_parser;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Adds the parse results to the lines of an access log, or counts the user agent, OS and
+ * device families of the log.
+ *
+ * The log is memory-mapped in chunks of whole lines that are processed in parallel with one
+ * shared parser. The user agent is found by scanning the bytes of each line, either as the
+ * third quoted field of the combined log format or as a field of delimited lines, and only
+ * the user agent is decoded. Enriched lines are written in the order of the log, each
+ * followed by the user agent family and major version, the OS family and major version and
+ * the device family, separated by tabs.
+ */
+public final class LogEnricher {
+
+  static final int CHUNK_SIZE = 32 << 20;
+  private static final int CACHE_SIZE = 10000;
+  private static final int BLOCK_SIZE = 1 << 20;
+  // distinct results whose columns a chunk keeps encoded
+  private static final int MAX_COLUMNS = 4096;
+
+  private static final int COMBINED = -1;
+  private static final byte QUOTE = '"';
+  private static final byte ESCAPE = '\\';
+
+  private final Parser parser;
+  private final int field;
+  private final byte delimiter;
+  private final int chunkSize;
+  // chunks submitted and not yet written or merged, bounding the memory of their results
+  private final int window;
+
+  /**
+   * @param field the index of the user agent among the fields of a line, or -1 for the
+   *        combined log format
+   * @param delimiter the byte separating the fields
+   * @param threads the number of threads of the executor; twice as many chunks are in
+   *        flight at most
+   */
+  LogEnricher(Parser parser, int field, byte delimiter, int chunkSize, int threads) {
+    this.parser = parser;
+    this.field = field;
+    this.delimiter = delimiter;
+    this.chunkSize = chunkSize;
+    this.window = 2 * threads;
+  }
+
+  /**
+   * Writes the lines of the log with the parse results appended, in order.
+   * @return the number of lines
+   */
+  long enrich(Path log, OutputStream out, ExecutorService executor) throws IOException {
+    long lines = 0;
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+      Deque<Future<Enriched>> pending = new ArrayDeque<>();
+      long[] bounds = chunks(channel);
+      for (int i = 0; i + 1 < bounds.length; i++) {
+        final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+        pending.add(executor.submit(new Callable<Enriched>() {
+          @Override
+          public Enriched call() {
+            return enrich(chunk);
+          }
+        }));
+        // bounds the enriched chunks held in memory
+        if (pending.size() >= window) {
+          lines += write(pending.removeFirst(), out);
+        }
+      }
+      while (!pending.isEmpty()) {
+        lines += write(pending.removeFirst(), out);
+      }
+    }
+    out.flush();
+    return lines;
+  }
+
+  /**
+   * Counts the lines of the log by user agent, OS and device family.
+   * @return the counts of each family, by "user_agent", "os" and "device"
+   */
+  Map<String, Map<String, Long>> count(Path log, ExecutorService executor) throws IOException {
+    Map<String, Map<String, Long>> counts = newCounts();
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+      Deque<Future<Map<String, Map<String, Long>>>> pending = new ArrayDeque<>();
+      long[] bounds = chunks(channel);
+      for (int i = 0; i + 1 < bounds.length; i++) {
+        final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+        pending.add(executor.submit(new Callable<Map<String, Map<String, Long>>>() {
+          @Override
+          public Map<String, Map<String, Long>> call() {
+            return count(chunk);
+          }
+        }));
+        // bounds the chunks mapped and queued at once
+        if (pending.size() >= window) {
+          merge(counts, get(pending.removeFirst()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        merge(counts, get(pending.removeFirst()));
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Splits the file at the line ends closest after each multiple of the chunk size.
+   * @return the offsets of the chunks, starting with 0 and ending with the file size
+   */
+  private long[] chunks(FileChannel channel) throws IOException {
+    long size = channel.size();
+    List<Long> bounds = new ArrayList<>();
+    bounds.add(0L);
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long position = chunkSize;
+    while (position < size) {
+      probe.clear();
+      int read = channel.read(probe, position);
+      int newline = -1;
+      for (int i = 0; i < read; i++) {
+        if (probe.get(i) == '\n') {
+          newline = i;
+          break;
+        }
+      }
+      if (newline < 0) {
+        position += Math.max(read, 1);
+        continue;
+      }
+      position += newline + 1;
+      if (position < size) {
+        bounds.add(position);
+      }
+      position += chunkSize;
+    }
+    bounds.add(size);
+    long[] offsets = new long[bounds.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = bounds.get(i);
+    }
+    return offsets;
+  }
+
+  private Enriched enrich(ByteBuffer chunk) {
+    final Enriched out = new Enriched();
+    // the cached results are shared, so most lines reuse the encoded columns of a previous one
+    final Map<Client, byte[]> columns = new IdentityHashMap<>();
+    scan(chunk, new LineVisitor() {
+      @Override
+      public void visit(byte[] bytes, int start, int end, Client client) {
+        out.write(bytes, start, end - start);
+        byte[] encoded = columns.get(client);
+        if (encoded == null) {
+          encoded = columns(client);
+          if (columns.size() < MAX_COLUMNS) {
+            columns.put(client, encoded);
+          }
+        }
+        out.write(encoded, 0, encoded.length);
+        out.lines++;
+      }
+    });
+    return out;
+  }
+
+  private Map<String, Map<String, Long>> count(ByteBuffer chunk) {
+    final Map<Client, long[]> clients = new IdentityHashMap<>();
+    scan(chunk, new LineVisitor() {
+      @Override
+      public void visit(byte[] bytes, int start, int end, Client client) {
+        if (client != null) {
+          long[] count = clients.get(client);
+          if (count == null) {
+            clients.put(client, count = new long[1]);
+          }
+          count[0]++;
+        }
+      }
+    });
+    Map<String, Map<String, Long>> counts = newCounts();
+    for (Map.Entry<Client, long[]> entry : clients.entrySet()) {
+      Client client = entry.getKey();
+      long count = entry.getValue()[0];
+      add(counts.get("user_agent"), client.userAgent == null ? null : client.userAgent.family, count);
+      add(counts.get("os"), client.os == null ? null : client.os.family, count);
+      add(counts.get("device"), client.device == null ? null : client.device.family, count);
+    }
+    return counts;
+  }
+
+  private interface LineVisitor {
+    /**
+     * @param client the results for the user agent of the line, or null if it has none
+     */
+    void visit(byte[] bytes, int start, int end, Client client);
+  }
+
+  /**
+   * Copies the chunk to the heap a block at a time, which scans much faster than reading the
+   * mapped buffer byte by byte, and visits its lines without their line terminator.
+   */
+  private void scan(ByteBuffer chunk, LineVisitor visitor) {
+    byte[] block = new byte[BLOCK_SIZE];
+    int length = 0;
+    while (chunk.hasRemaining() || length > 0) {
+      int read = Math.min(block.length - length, chunk.remaining());
+      chunk.get(block, length, read);
+      length += read;
+      boolean last = !chunk.hasRemaining();
+      int start = 0;
+      while (start < length) {
+        int end = indexOf(block, (byte) '\n', start, length);
+        if (end < 0) {
+          if (!last) {
+            break;
+          }
+          end = length;
+        }
+        int contentEnd = end > start && block[end - 1] == '\r' ? end - 1 : end;
+        visitor.visit(block, start, contentEnd, parse(block, start, contentEnd));
+        start = end + 1;
+      }
+      // keep the incomplete last line for the next block
+      if (start >= length) {
+        length = 0;
+      } else {
+        System.arraycopy(block, start, block, 0, length - start);
+        length -= start;
+        if (length == block.length) {
+          block = Arrays.copyOf(block, 2 * block.length);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the results for the user agent of the line, or null if it has none
+   */
+  private Client parse(byte[] bytes, int start, int end) {
+    long bounds = field == COMBINED ? quotedField(bytes, start, end, 3) : delimitedField(bytes, start, end);
+    if (bounds < 0) {
+      return null;
+    }
+    int from = (int) (bounds >>> 32), to = (int) bounds;
+    boolean ascii = true;
+    for (int i = from; i < to; i++) {
+      ascii &= bytes[i] >= 0;
+    }
+    // ASCII, by far the most common, is looked up as bytes and only decoded on a cache miss
+    if (ascii) {
+      return parser.parse(bytes, from, to - from);
+    }
+    return parser.parse(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return the start and end of the n-th quoted field packed in a long, or -1
+   */
+  private static long quotedField(byte[] bytes, int start, int end, int n) {
+    int quoted = 0;
+    for (int i = start; i < end; i++) {
+      if (bytes[i] != QUOTE) {
+        continue;
+      }
+      int open = i + 1;
+      for (i = open; i < end && bytes[i] != QUOTE; i++) {
+        if (bytes[i] == ESCAPE) {
+          i++;
+        }
+      }
+      if (i >= end) {
+        return -1;
+      }
+      if (++quoted == n) {
+        return (long) open << 32 | i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the start and end of the user agent field packed in a long, or -1
+   */
+  private long delimitedField(byte[] bytes, int start, int end) {
+    int index = 0;
+    int from = start;
+    for (int i = start; i <= end; i++) {
+      if (i == end || bytes[i] == delimiter) {
+        if (index++ == field) {
+          return (long) from << 32 | i;
+        }
+        from = i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(byte[] bytes, byte b, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the columns appended to a line, with the line feed
+   */
+  private static byte[] columns(Client client) {
+    StringBuilder columns = new StringBuilder();
+    UserAgent ua = client == null ? null : client.userAgent;
+    OS os = client == null ? null : client.os;
+    Device device = client == null ? null : client.device;
+    appendColumn(columns, ua == null ? null : ua.family);
+    appendColumn(columns, ua == null ? null : ua.major);
+    appendColumn(columns, os == null ? null : os.family);
+    appendColumn(columns, os == null ? null : os.major);
+    appendColumn(columns, device == null ? null : device.family);
+    return columns.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendColumn(StringBuilder columns, String value) {
+    columns.append('\t');
+    if (value != null) {
+      columns.append(value);
+    }
+  }
+
+  private static long write(Future<Enriched> chunk, OutputStream out) throws IOException {
+    Enriched enriched = get(chunk);
+    for (int i = 0; i < enriched.blocks.size(); i++) {
+      byte[] block = enriched.blocks.get(i);
+      out.write(block, 0, i == enriched.blocks.size() - 1 ? enriched.size : block.length);
+    }
+    return enriched.lines;
+  }
+
+  private static Map<String, Map<String, Long>> newCounts() {
+    Map<String, Map<String, Long>> counts = new HashMap<>();
+    counts.put("user_agent", new HashMap<String, Long>());
+    counts.put("os", new HashMap<String, Long>());
+    counts.put("device", new HashMap<String, Long>());
+    return counts;
+  }
+
+  private static void merge(Map<String, Map<String, Long>> counts, Map<String, Map<String, Long>> chunk) {
+    for (Map.Entry<String, Map<String, Long>> component : chunk.entrySet()) {
+      Map<String, Long> total = counts.get(component.getKey());
+      for (Map.Entry<String, Long> family : component.getValue().entrySet()) {
+        add(total, family.getKey(), family.getValue());
+      }
+    }
+  }
+
+  private static void add(Map<String, Long> counts, String family, long count) {
+    String key = family == null ? "" : family;
+    Long total = counts.get(key);
+    counts.put(key, total == null ? count : total + count);
+  }
+
+  private static <T> T get(Future<T> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * The enriched lines of a chunk, in blocks allocated as they fill up, so that a chunk only
+   * holds what it wrote and nothing is copied to grow it.
+   */
+  private static final class Enriched {
+    final List<byte[]> blocks = new ArrayList<>();
+    // bytes written to the last block
+    int size = BLOCK_SIZE;
+    long lines;
+
+    void write(byte[] b, int offset, int length) {
+      while (length > 0) {
+        if (size == BLOCK_SIZE) {
+          blocks.add(new byte[BLOCK_SIZE]);
+          size = 0;
+        }
+        int count = Math.min(length, BLOCK_SIZE - size);
+        System.arraycopy(b, offset, blocks.get(blocks.size() - 1), size, count);
+        size += count;
+        offset += count;
+        length -= count;
+      }
+    }
+  }
+
+  /**
+   * Enriches an access log, or counts its families.
+   *
+   * Usage: {@code LogEnricher [--field <index> [--delimiter <char>]] [--counts] [--threads <n>] <log> [<output>]},
+   * where without a field index the log is in the combined log format, the delimiter
+   * defaults to a tab, and without an output file the result goes to the standard output.
+   * The counts are written as lines of component, family and count, most frequent first.
+   */
+  public static void main(String[] args) throws IOException {
+    int field = COMBINED;
+    byte delimiter = '\t';
+    boolean counts = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if ("--field".equals(args[i]) && i + 1 < args.length) {
+        field = Integer.parseInt(args[++i]);
+      } else if ("--delimiter".equals(args[i]) && i + 1 < args.length) {
+        String value = args[++i];
+        delimiter = "\\t".equals(value) ? (byte) '\t' : (byte) value.charAt(0);
+      } else if ("--counts".equals(args[i])) {
+        counts = true;
+      } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        files.add(args[i]);
+      }
+    }
+    if (files.isEmpty() || files.size() > 2 || field < COMBINED || threads <= 0) {
+      System.err.println("Usage: LogEnricher [--field <index> [--delimiter <char>]] [--counts] [--threads <n>] <log> [<output>]");
+      System.exit(1);
+    }
+
+    LogEnricher enricher = new LogEnricher(new CachingParser(CACHE_SIZE), field, delimiter, CHUNK_SIZE, threads);
+    Path log = Paths.get(files.get(0));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (OutputStream out = new BufferedOutputStream(files.size() > 1
+        ? new FileOutputStream(files.get(1)) : new FileOutputStream(FileDescriptor.out), 1 << 16)) {
+      if (counts) {
+        PrintStream printer = new PrintStream(out, false, "UTF-8");
+        Map<String, Map<String, Long>> families = enricher.count(log, executor);
+        for (String component : Arrays.asList("user_agent", "os", "device")) {
+          List<Map.Entry<String, Long>> entries = new ArrayList<>(families.get(component).entrySet());
+          Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+              return Long.compare(b.getValue(), a.getValue());
+            }
+          });
+          for (Map.Entry<String, Long> entry : entries) {
+            printer.print(component + "\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+          }
+        }
+        printer.flush();
+      } else {
+        enricher.enrich(log, out, executor);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -20,7 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Matcher;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 /**
@@ -31,9 +31,13 @@ import java.util.regex.Pattern;
 public class OSParser {
 
   private final List<OSPattern> patterns;
+  private final LiteralPrefilter prefilter;
+  private final ThreadLocal<ReusableMatchers> matchers;
 
   public OSParser(List<OSPattern> patterns) {
     this.patterns = patterns;
+    this.prefilter = prefilter(patterns);
+    this.matchers = ReusableMatchers.perThread(prefilter, patterns.size());
   }
 
   /**
@@ -42,35 +46,85 @@ public class OSParser {
    * @return operating system parser
    */
   public static OSParser fromList(List<Map<String,String>> configList) {
-    List<OSPattern> configPatterns = new ArrayList<>();
+    return fromList(configList, RegexEngine.JDK);
+  }
 
-    for (Map<String,String> configMap : configList) {
-      configPatterns.add(OSParser.patternFromMap(configMap));
-    }
+  /**
+   * Constructs a thread-safe OSParser whose patterns are compiled by the given engine.
+   * @param configList configure an operating system parser from a list of regexp hashmaps
+   * @param regexEngine engine compiling the regular expressions
+   * @return an operating system parser
+   */
+  public static OSParser fromList(List<Map<String,String>> configList, RegexEngine regexEngine) {
+    List<OSPattern> configPatterns = RuleCompiler.compile("os_parsers", configList, compiler(regexEngine));
     return new OSParser(new CopyOnWriteArrayList<>(configPatterns));
   }
 
+  /**
+   * @return compiles a rule of the list with the given engine
+   */
+  static Function<Map<String,String>, OSPattern> compiler(final RegexEngine regexEngine) {
+    return new Function<Map<String,String>, OSPattern>() {
+      @Override
+      public OSPattern apply(Map<String,String> configMap) {
+        return patternFromMap(configMap, regexEngine);
+      }
+    };
+  }
+
   public OS parse(String agentString) {
+    return parse((CharSequence) agentString);
+  }
+
+  /**
+   * Parses the characters of any sequence, such as a slice of a log line, without copying
+   * them; only the values of the result are strings. The sequence must not change during
+   * the call.
+   */
+  public OS parse(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
 
+    return parse(agentString, agentString);
+  }
+
+  /**
+   * Runs the candidate patterns for agentString against matchInput, a view of the same
+   * characters such as a budgeted one.
+   */
+  OS parse(CharSequence agentString, CharSequence matchInput) {
     OS os;
-    for (OSPattern p : patterns) {
-      if ((os = p.match(agentString)) != null) {
+    ReusableMatchers matchers = this.matchers.get();
+    long[] candidates = prefilter.candidates(agentString, matchers.candidates);
+    for (int i = LiteralPrefilter.nextCandidate(candidates, 0); i >= 0; i = LiteralPrefilter.nextCandidate(candidates, i + 1)) {
+      OSPattern pattern = patterns.get(i);
+      if ((os = pattern.match(matchers.matcher(i, pattern.pattern, matchInput))) != null) {
         return os;
       }
     }
     return OS.OTHER;
   }
 
+  private static LiteralPrefilter prefilter(List<OSPattern> patterns) {
+    List<String[]> literals = new ArrayList<>(patterns.size());
+    for (OSPattern p : patterns) {
+      literals.add(p.literals);
+    }
+    return new LiteralPrefilter(literals);
+  }
+
   protected static OSPattern patternFromMap(Map<String, String> configMap) {
+    return patternFromMap(configMap, RegexEngine.JDK);
+  }
+
+  protected static OSPattern patternFromMap(Map<String, String> configMap, RegexEngine regexEngine) {
     String regex = configMap.get("regex");
     if (regex == null) {
       throw new IllegalArgumentException("OS is missing regex");
     }
 
-    return(new OSPattern(Pattern.compile(regex),
+    return(new OSPattern(regexEngine.compile(regex, 0),
                          configMap.get("os_replacement"),
                          configMap.get("os_v1_replacement"),
                          configMap.get("os_v2_replacement"),
@@ -78,20 +132,38 @@ public class OSParser {
   }
 
   protected static class OSPattern {
-    private final Pattern pattern;
-    private final String osReplacement, v1Replacement, v2Replacement, v3Replacement;
+    private final RegexPattern pattern;
+    private final String[] literals;
+    private final Replacement osReplacement;
+    private final String v1Replacement, v2Replacement, v3Replacement;
+    private final int v1Group, v2Group, v3Group;
 
     public OSPattern(Pattern pattern, String osReplacement, String v1Replacement, String v2Replacement, String v3Replacement) {
+      this(JdkRegexEngine.wrap(pattern), osReplacement, v1Replacement, v2Replacement, v3Replacement);
+    }
+
+    public OSPattern(RegexPattern pattern, String osReplacement, String v1Replacement, String v2Replacement, String v3Replacement) {
       this.pattern = pattern;
-      this.osReplacement = osReplacement;
+      this.literals = RegexLiterals.requiredLiterals(pattern.pattern(), pattern.flags());
+      this.osReplacement = osReplacement == null ? null : Replacement.allGroupOne(osReplacement);
       this.v1Replacement = v1Replacement;
       this.v2Replacement = v2Replacement;
       this.v3Replacement = v3Replacement;
+      this.v1Group = getGroup(v1Replacement);
+      this.v2Group = getGroup(v2Replacement);
+      this.v3Group = getGroup(v3Replacement);
     }
 
     public OS match(String agentString) {
+      return match((CharSequence) agentString);
+    }
+
+    public OS match(CharSequence agentString) {
+      return match(pattern.matcher(agentString));
+    }
+
+    OS match(RegexMatcher matcher) {
       String family = null, v1 = null, v2 = null, v3 = null, v4 = null;
-      Matcher matcher = pattern.matcher(agentString);
 
       if (!matcher.find()) {
         return null;
@@ -101,28 +173,26 @@ public class OSParser {
 
       if (osReplacement != null) {
           if (groupCount >= 1) {
-              family = Pattern.compile("(" + Pattern.quote("$1") + ")")
-                              .matcher(osReplacement)
-                              .replaceAll(matcher.group(1));
+              family = osReplacement.expand(matcher);
           } else { 
-              family = osReplacement; 
+              family = osReplacement.template(); 
           }
       } else if (groupCount >= 1) {
         family = matcher.group(1);
       }
 
       if (v1Replacement != null) {
-        v1 = getReplacement(matcher, v1Replacement);
+        v1 = getReplacement(matcher, v1Replacement, v1Group);
       } else if (groupCount >= 2) {
         v1 = matcher.group(2);
       }
       if (v2Replacement != null) {
-        v2 = getReplacement(matcher, v2Replacement);
+        v2 = getReplacement(matcher, v2Replacement, v2Group);
       } else if (groupCount >= 3) {
         v2 = matcher.group(3);
       }
       if (v3Replacement != null) {
-        v3 = getReplacement(matcher, v3Replacement);
+        v3 = getReplacement(matcher, v3Replacement, v3Group);
       } else if (groupCount >= 4) {
         v3 = matcher.group(4);
       }
@@ -133,27 +203,19 @@ public class OSParser {
       return family == null ? null : new OS(family, v1, v2, v3, v4);
     }
     
-    private String getReplacement(Matcher matcher, String replacement) {
-    	if (isBackReference(replacement)) {
-    		int group = getGroup(replacement);
-    		return matcher.group(group);
-    	} else {
-    		return replacement;
-    	}
-    }
-    
-    /**
-     * Checks if the replacement is a backreference (i.e. $1, $2, $3, etc) to a capturing group in the regular expression.
-     */
-    private boolean isBackReference(String replacement) {
-    	return replacement.startsWith("$");
+    private String getReplacement(RegexMatcher matcher, String replacement, int group) {
+    	return group < 0 ? replacement : matcher.group(group);
     }
     
     /**
      * Extracts the group number from a backreference like $1, $2, $3, etc.
+     * @return the group number, or -1 if the replacement is not a backreference
      */
-    private int getGroup(String backReference) {
-    	return Integer.valueOf(backReference.substring(1));
+    private static int getGroup(String replacement) {
+    	if (replacement == null || !replacement.startsWith("$")) {
+    		return -1;
+    	}
+    	return Integer.parseInt(replacement.substring(1));
     }
   }
 }
@@ -0,0 +1,140 @@
+package ua_parser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the work a single {@link Parser#parse(CharSequence, ParseBudget)} call may spend on regular
+ * expression matching, so a hostile user agent cannot pin the calling thread.
+ *
+ * The budget is counted in characters read by the regex engine and, optionally, in elapsed
+ * time. It covers the whole parse: user agent, OS and device lookups draw from the same
+ * budget in that order, and the lookups still running when it runs out are reported as
+ * timed out in the returned {@link PartialClient}.
+ */
+public final class ParseBudget {
+
+  /** Number of character reads between two checks of the clock. */
+  private static final int CLOCK_CHECK_INTERVAL = 1024;
+
+  private final long maxCharAccesses;
+  private final long maxNanos;
+
+  /**
+   * @param maxCharAccesses maximum number of characters the regex engine may read, or Long.MAX_VALUE
+   * @param timeout maximum time spent matching, or Long.MAX_VALUE
+   * @param unit unit of the timeout
+   */
+  public ParseBudget(long maxCharAccesses, long timeout, TimeUnit unit) {
+    if (maxCharAccesses <= 0 || timeout <= 0) {
+      throw new IllegalArgumentException("Parse budget must be greater than 0");
+    }
+    this.maxCharAccesses = maxCharAccesses;
+    this.maxNanos = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(timeout);
+  }
+
+  /**
+   * @param maxCharAccesses maximum number of characters the regex engine may read
+   * @return a budget limited in character reads only
+   */
+  public static ParseBudget ofCharAccesses(long maxCharAccesses) {
+    return new ParseBudget(maxCharAccesses, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param timeout maximum time spent matching
+   * @param unit unit of the timeout
+   * @return a budget limited in time only
+   */
+  public static ParseBudget ofTime(long timeout, TimeUnit unit) {
+    return new ParseBudget(Long.MAX_VALUE, timeout, unit);
+  }
+
+  public long getMaxCharAccesses() {
+    return maxCharAccesses;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * Starts spending this budget on the given input.
+   * @return a view of the input that throws {@link Exceeded} once the budget is spent
+   */
+  Input start(CharSequence agentString) {
+    return start(agentString, deadline());
+  }
+
+  /**
+   * @return the {@link System#nanoTime()} by which a parse starting now must end, or
+   *         Long.MAX_VALUE if the budget is not limited in time
+   */
+  long deadline() {
+    return maxNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + maxNanos;
+  }
+
+  /**
+   * Starts spending this budget on the given input, against a deadline taken earlier, so
+   * that time spent before matching, such as waiting for another parse, counts as well.
+   * @param deadline the result of {@link #deadline()}
+   * @return a view of the input that throws {@link Exceeded} once the budget is spent
+   */
+  Input start(CharSequence agentString, long deadline) {
+    return new Input(agentString, maxCharAccesses, deadline);
+  }
+
+  /**
+   * Thrown by a budgeted input when the budget is spent. Carries no stack trace, since it
+   * is caught by the parser and only signals which lookup ran out.
+   */
+  static final class Exceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Exceeded() {
+      super("Parse budget exceeded", null, false, false);
+    }
+  }
+
+  /**
+   * Character sequence counting every character read against the budget. Sub sequences
+   * handed out for captured groups are plain strings and are not counted.
+   */
+  static final class Input implements CharSequence {
+    private final CharSequence agentString;
+    private final long deadline;
+    private long remaining;
+
+    private Input(CharSequence agentString, long remaining, long deadline) {
+      this.agentString = agentString;
+      this.remaining = remaining;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public char charAt(int index) {
+      long left = --remaining;
+      if (left < 0) {
+        throw new Exceeded();
+      }
+      if (deadline != Long.MAX_VALUE && left % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0) {
+        throw new Exceeded();
+      }
+      return agentString.charAt(index);
+    }
+
+    @Override
+    public int length() {
+      return agentString.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return agentString.subSequence(start, end).toString();
+    }
+
+    @Override
+    public String toString() {
+      return agentString.toString();
+    }
+  }
+}
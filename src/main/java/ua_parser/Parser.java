@@ -16,49 +16,113 @@
 
 package ua_parser;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import org.yaml.snakeyaml.LoaderOptions;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.constructor.SafeConstructor;
 
 /**
  * Java implementation of <a href="https://github.com/ua-parser">UA Parser</a>
  *
+ * A parser is a view over a {@link RuleSet}: parsers created with {@link #Parser()} share
+ * the bundled rules, compiled once, and {@link #Parser(RuleSet)} shares any other rules.
+ * The rules can be replaced while the parser is in use, see {@link #reload(BinaryRules)}.
+ *
  * @author Steve Jiang (@sjiang) &lt;gh at iamsteve com&gt;
  */
 public class Parser {
 
-  private static final String REGEX_YAML_PATH = "/ua_parser/regexes.yaml";
-
   public static final int CODE_POINT_LIMIT = 3455764;
-  private UserAgentParser uaParser;
-  private OSParser osParser;
-  private DeviceParser deviceParser;
+  private volatile RuleSet rules;
+  private volatile UserAgentDictionary dictionary;
 
   /**
-   * Creates a parser using the regular expression yaml file bundled in the jar.
+   * Creates a parser using the regular expression yaml file bundled in the jar, compiled
+   * once and shared, see {@link RuleSet#getDefault()}.
    * @throws RuntimeException if there's a problem reading the file from the classpath
    */
   public Parser() {
-    this(getDefaultLoaderOptions());
+    this(RuleSet.getDefault());
+  }
+
+  /**
+   * Creates a parser sharing compiled rules.
+   * @param rules the rules
+   */
+  public Parser(RuleSet rules) {
+    this.rules = rules;
   }
 
   /**
-   * Creates a parser using the regular expression yaml file bundled in the jar.
+   * Creates a parser using the regular expression yaml file bundled in the jar, read with
+   * the given options. The yaml is read even if the faster {@link BinaryRules} are bundled,
+   * since those do not go through a yaml loader; prefer {@link #Parser()} unless the
+   * options matter.
    *
    * @param loaderOptions configuration for loading parser safe limits.
    * @throws RuntimeException if there's a problem reading the file from the classpath.
    */
   public Parser(LoaderOptions loaderOptions) {
-    try (InputStream is = Parser.class.getResourceAsStream(REGEX_YAML_PATH)) {
-      initialize(is, loaderOptions);
-    } catch (IOException e) {
-      throw new RuntimeException("failed to initialize parser from regexes.yaml bundled in jar", e);
-    }
+    this(loaderOptions, RegexEngine.JDK);
+  }
+
+  /**
+   * Creates a parser using the regular expression yaml file bundled in the jar, or the
+   * {@link BinaryRules} the build converted it to if they are bundled as well, which load
+   * faster.
+   *
+   * @param regexEngine engine compiling the regular expressions, see {@link RegexEngine#LINEAR}
+   * @throws RuntimeException if there's a problem reading the file from the classpath.
+   */
+  public Parser(RegexEngine regexEngine) {
+    this(RuleSet.bundled(regexEngine));
+  }
+
+  /**
+   * Creates a parser using the regular expression yaml file bundled in the jar, read with
+   * the given options, see {@link #Parser(LoaderOptions)}.
+   *
+   * @param loaderOptions configuration for loading parser safe limits.
+   * @param regexEngine engine compiling the regular expressions
+   * @throws RuntimeException if there's a problem reading the file from the classpath.
+   */
+  public Parser(LoaderOptions loaderOptions, RegexEngine regexEngine) {
+    this(RuleSet.bundledYaml(loaderOptions, regexEngine));
+  }
+
+  /**
+   * Creates a parser using the rules bundled in the jar, compiled in parallel on the
+   * executor, see {@link RuleSet#bundled(RegexEngine, Executor)}.
+   *
+   * @param regexEngine engine compiling the regular expressions
+   * @param executor runs the compilation, such as {@link ForkJoinPool#commonPool()}
+   * @throws RuntimeException if there's a problem reading the file from the classpath.
+   */
+  public Parser(RegexEngine regexEngine, Executor executor) {
+    this(RuleSet.bundled(regexEngine, executor));
+  }
+
+  /**
+   * Creates a parser using rules read with {@link BinaryRules#read(InputStream)}.
+   * @param rules the rules
+   */
+  public Parser(BinaryRules rules) {
+    this(rules, RegexEngine.JDK);
+  }
+
+  /**
+   * Creates a parser using rules read with {@link BinaryRules#read(InputStream)}.
+   * @param rules the rules
+   * @param regexEngine engine compiling the regular expressions
+   */
+  public Parser(BinaryRules rules, RegexEngine regexEngine) {
+    this(RuleSet.compile(rules, regexEngine));
   }
 
   /**
@@ -76,56 +140,384 @@ public class Parser {
    * @param loaderOptions configuration for loading parser safe limits.
    */
   public Parser(InputStream regexYaml, LoaderOptions loaderOptions) {
-    initialize(regexYaml, loaderOptions);
+    this(regexYaml, loaderOptions, RegexEngine.JDK);
+  }
+
+  /**
+   * Creates a parser using the supplied regular expression yaml file.
+   * It is the responsibility of the caller to close the InputStream after construction.
+   * @param regexYaml the yaml file containing the regular expressions
+   * @param regexEngine engine compiling the regular expressions
+   */
+  public Parser(InputStream regexYaml, RegexEngine regexEngine) {
+    this(regexYaml, getDefaultLoaderOptions(), regexEngine);
+  }
+
+  /**
+   * Creates a parser using the supplied regular expression yaml file.
+   * It is the responsibility of the caller to close the InputStream after construction.
+   * @param regexYaml the yaml file containing the regular expressions
+   * @param loaderOptions configuration for loading parser safe limits.
+   * @param regexEngine engine compiling the regular expressions
+   */
+  public Parser(InputStream regexYaml, LoaderOptions loaderOptions, RegexEngine regexEngine) {
+    this(RuleSet.compile(BinaryRules.fromYaml(regexYaml, loaderOptions), regexEngine));
+  }
+
+  /**
+   * Answers the user agents of the dictionary from it, without matching any rule. Other user
+   * agents are parsed as usual.
+   * @param dictionary the dictionary, or null to remove it
+   * @throws IllegalArgumentException if the dictionary was built with other rules
+   */
+  public void setDictionary(UserAgentDictionary dictionary) {
+    if (dictionary != null && !dictionary.matches(this)) {
+      throw new IllegalArgumentException("Dictionary was built with other rules");
+    }
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * @return the results from the dictionary, or null if the user agent is not in it
+   */
+  Client lookup(CharSequence agentString) {
+    UserAgentDictionary dictionary = this.dictionary;
+    if (dictionary == null || agentString == null) {
+      return null;
+    }
+    return dictionary.get(agentString);
+  }
+
+  /**
+   * @return the results known without matching any rule, from the dictionary, or null
+   */
+  Client cached(CharSequence agentString) {
+    return lookup(agentString);
   }
 
   public Client parse(String agentString) {
-    UserAgent ua = parseUserAgent(agentString);
-    OS os = parseOS(agentString);
-    Device device = deviceParser.parse(agentString);
+    return parse((CharSequence) agentString);
+  }
+
+  /**
+   * Parses the characters of any sequence, such as a {@link StringBuilder}, a pooled buffer
+   * or a slice of a log line, without copying them into a string first; only the values of
+   * the results are strings. The sequence must not change during the call.
+   * @param agentString the user agent
+   * @return the parsed client
+   */
+  public Client parse(CharSequence agentString) {
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known;
+    }
+    RuleSet rules = this.rules;
+    UserAgent ua = rules.getUserAgentParser().parse(agentString);
+    OS os = rules.getOSParser().parse(agentString);
+    Device device = rules.getDeviceParser().parse(agentString);
+    return new Client(ua, os, device);
+  }
+
+  /**
+   * Parses a user agent given as bytes, such as the value of a header read by an HTTP
+   * server, without decoding it first. The bytes are read as ISO-8859-1, one character per
+   * byte, as header values are; a user agent with UTF-8 bytes gives the results of the
+   * string those bytes decode to in ISO-8859-1. The rules match the bytes in place, and a
+   * {@link CachingParser} looks them up in its cache as they are, so a hit allocates
+   * nothing; only a miss copies them into a string. The bytes are not kept after the call.
+   * @param agentBytes the bytes of the user agent
+   * @param offset the index of the first byte of the user agent
+   * @param length the number of bytes of the user agent
+   * @return the parsed client, or null if the array is null
+   * @throws IndexOutOfBoundsException if the range is not within the array
+   */
+  public Client parse(byte[] agentBytes, int offset, int length) {
+    if (agentBytes == null) {
+      return null;
+    }
+    Latin1CharSequence agentString = Latin1CharSequence.of(agentBytes, offset, length);
+    try {
+      return parse(agentString);
+    } finally {
+      agentString.release();
+    }
+  }
+
+  /**
+   * Parses the bytes from the position to the limit of a buffer, heap or direct, as a user
+   * agent, see {@link #parse(byte[], int, int)}. The position of the buffer is left as is.
+   * @param agentBytes the bytes of the user agent
+   * @return the parsed client, or null if the buffer is null
+   */
+  public Client parse(ByteBuffer agentBytes) {
+    if (agentBytes == null) {
+      return null;
+    }
+    Latin1CharSequence agentString = Latin1CharSequence.of(agentBytes);
+    try {
+      return parse(agentString);
+    } finally {
+      agentString.release();
+    }
+  }
+
+  /**
+   * Parses the user agent string, giving up on regular expression matching once the budget
+   * is spent.
+   * @param agentString the user agent string
+   * @param budget limit on the matching work of this call
+   * @return the parsed client, or a {@link PartialClient} if the budget ran out
+   */
+  public Client parse(String agentString, ParseBudget budget) {
+    return parse((CharSequence) agentString, budget);
+  }
+
+  /**
+   * Parses the characters of any sequence, see {@link #parse(CharSequence)}, giving up on
+   * regular expression matching once the budget is spent.
+   * @param agentString the user agent
+   * @param budget limit on the matching work of this call
+   * @return the parsed client, or a {@link PartialClient} if the budget ran out; for a null
+   *         user agent, the same as {@link #parse(CharSequence)}
+   */
+  public Client parse(CharSequence agentString, ParseBudget budget) {
+    if (agentString == null) {
+      return parse(agentString);
+    }
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known;
+    }
+    return parse(rules, agentString, budget, null, null, null);
+  }
+
+  /**
+   * Parses a batch of user agents, see {@link #parseAll(String[], Executor)}, on the common
+   * fork-join pool.
+   * @return the results in the order of the user agents
+   */
+  public List<Client> parseAll(List<String> agentStrings) {
+    return parseAll(agentStrings, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Parses a batch of user agents, see {@link #parseAll(String[], Executor)}.
+   * @return the results in the order of the user agents
+   */
+  public List<Client> parseAll(List<String> agentStrings, Executor executor) {
+    return Arrays.asList(parseAll(agentStrings.toArray(new String[0]), executor));
+  }
+
+  /**
+   * Parses a batch of user agents, see {@link #parseAll(String[], Executor)}, on the common
+   * fork-join pool.
+   * @return the results in the order of the user agents
+   */
+  public Client[] parseAll(String[] agentStrings) {
+    return parseAll(agentStrings, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Parses a batch of user agents, such as the lines of a log. Each distinct user agent of
+   * the batch is parsed once, and all its occurrences get the same {@link Client} instance.
+   * The distinct user agents are parsed in parallel on the executor, unless there are only
+   * a few of them.
+   * @param agentStrings the user agents, null ones giving null results
+   * @param executor runs the parses
+   * @return the results in the order of the user agents
+   */
+  public Client[] parseAll(String[] agentStrings, Executor executor) {
+    return BatchParse.run(this, agentStrings, executor);
+  }
+
+  /**
+   * Budgeted parse that only computes the components not already known.
+   */
+  static Client parse(RuleSet rules, CharSequence agentString, ParseBudget budget, UserAgent ua, OS os, Device device) {
+    return parse(rules, agentString, budget.start(agentString), ua, os, device);
+  }
+
+  /**
+   * Budgeted parse that only computes the components not already known, on an input
+   * already started.
+   */
+  static Client parse(RuleSet rules, CharSequence agentString, ParseBudget.Input input, UserAgent ua, OS os, Device device) {
+    boolean uaTimedOut = false, osTimedOut = false, deviceTimedOut = false;
+    try {
+      if (ua == null) {
+        ua = rules.getUserAgentParser().parse(agentString, input);
+      }
+    } catch (ParseBudget.Exceeded e) {
+      uaTimedOut = true;
+    }
+    try {
+      if (os == null) {
+        os = rules.getOSParser().parse(agentString, input);
+      }
+    } catch (ParseBudget.Exceeded e) {
+      osTimedOut = true;
+    }
+    try {
+      if (device == null) {
+        device = rules.getDeviceParser().parse(agentString, input);
+      }
+    } catch (ParseBudget.Exceeded e) {
+      deviceTimedOut = true;
+    }
+    if (uaTimedOut || osTimedOut || deviceTimedOut) {
+      return new PartialClient(ua, os, device, uaTimedOut, osTimedOut, deviceTimedOut);
+    }
     return new Client(ua, os, device);
   }
 
   public UserAgent parseUserAgent(String agentString) {
-    return uaParser.parse(agentString);
+    return parseUserAgent((CharSequence) agentString);
+  }
+
+  /**
+   * @param agentString the user agent, see {@link #parse(CharSequence)}
+   */
+  public UserAgent parseUserAgent(CharSequence agentString) {
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known.userAgent;
+    }
+    return rules.getUserAgentParser().parse(agentString);
   }
 
   public Device parseDevice(String agentString) {
-    return deviceParser.parse(agentString);
+    return parseDevice((CharSequence) agentString);
+  }
+
+  /**
+   * @param agentString the user agent, see {@link #parse(CharSequence)}
+   */
+  public Device parseDevice(CharSequence agentString) {
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known.device;
+    }
+    return rules.getDeviceParser().parse(agentString);
   }
 
   public OS parseOS(String agentString) {
-    return osParser.parse(agentString);
+    return parseOS((CharSequence) agentString);
   }
 
-  public static LoaderOptions getDefaultLoaderOptions(){
-    LoaderOptions options = new LoaderOptions();
-    options.setCodePointLimit(CODE_POINT_LIMIT);
-    return options;
+  /**
+   * @param agentString the user agent, see {@link #parse(CharSequence)}
+   */
+  public OS parseOS(CharSequence agentString) {
+    Client known = lookup(agentString);
+    if (known != null) {
+      return known.os;
+    }
+    return rules.getOSParser().parse(agentString);
   }
 
-  private void initialize(InputStream regexYaml, LoaderOptions loaderOptions) {
-    Yaml yaml = new Yaml(new SafeConstructor(loaderOptions));
+  /**
+   * Warms up the parser with the bundled corpus until its throughput is steady, for at most
+   * 30 seconds, see {@link #warmUp(WarmUpOptions)}.
+   */
+  public WarmUpResult warmUp() {
+    return warmUp(new WarmUpOptions());
+  }
 
-    @SuppressWarnings("unchecked")
-    Map<String,List<Map<String,String>>> regexConfig = (Map<String,List<Map<String,String>>>) yaml.load(regexYaml);
+  /**
+   * Parses a corpus of user agents in rounds until the throughput of the rounds is steady,
+   * so that the just-in-time compiler has compiled the paths of a parse before the first
+   * requests, which would otherwise run several times slower. Every component of the rules
+   * is exercised, with and without a budget; a cache or dictionary of the parser is left
+   * untouched. Returns once the throughput is steady or the options run out, so a readiness
+   * check can wait for it, typically after calling it on a background thread at startup.
+   * @param options the corpus, limits and threads of the warm-up
+   * @return the number of rounds, the throughput before and after, and whether it became
+   *         steady
+   */
+  public WarmUpResult warmUp(WarmUpOptions options) {
+    return WarmUp.run(this, options);
+  }
 
-    List<Map<String,String>> uaParserConfigs = regexConfig.get("user_agent_parsers");
-    if (uaParserConfigs == null) {
-      throw new IllegalArgumentException("user_agent_parsers is missing from yaml");
+  /**
+   * One parse of the warm-up, through the code a parse of this parser runs, bypassing any
+   * cache.
+   * @param budget the budget of a budgeted parse as well, or null
+   */
+  void warmUp(String agentString, ParseBudget budget) {
+    RuleSet rules = this.rules;
+    rules.getUserAgentParser().parse(agentString);
+    rules.getOSParser().parse(agentString);
+    rules.getDeviceParser().parse(agentString);
+    if (budget != null) {
+      parse(rules, agentString, budget, null, null, null);
     }
-    uaParser = UserAgentParser.fromList(uaParserConfigs);
+  }
 
-    List<Map<String,String>> osParserConfigs = regexConfig.get("os_parsers");
-    if (osParserConfigs == null) {
-      throw new IllegalArgumentException("os_parsers is missing from yaml");
-    }
-    osParser = OSParser.fromList(osParserConfigs);
+  /**
+   * @return SHA-256 of the loaded rules, identifying the results they give
+   */
+  byte[] rulesFingerprint() {
+    return rules.fingerprint();
+  }
 
-    List<Map<String,String>> deviceParserConfigs = regexConfig.get("device_parsers");
-    if (deviceParserConfigs == null) {
-      throw new IllegalArgumentException("device_parsers is missing from yaml");
+  /**
+   * @return the compiled rules of the parser, to create more parsers sharing them
+   */
+  public RuleSet getRuleSet() {
+    return rules;
+  }
+
+  /**
+   * Replaces the rules of the parser. Calls already parsing finish with the old rules, and
+   * later calls use the new ones. A dictionary built with other rules is removed.
+   * @param rules the new rules
+   */
+  public synchronized void setRuleSet(RuleSet rules) {
+    if (rules == null) {
+      throw new IllegalArgumentException("Rules are required");
     }
-    deviceParser = DeviceParser.fromList(deviceParserConfigs);
+    this.rules = rules;
+    UserAgentDictionary dictionary = this.dictionary;
+    if (dictionary != null && !Arrays.equals(dictionary.rulesFingerprint(), rules.fingerprint())) {
+      this.dictionary = null;
+    }
+  }
+
+  /**
+   * Compiles the rules in the background, with {@link RegexEngine#JDK} on the common pool,
+   * and then swaps them in, see {@link #reload(BinaryRules, RegexEngine, Executor)}.
+   * @param rules the new rules
+   */
+  public CompletableFuture<RuleReload> reload(BinaryRules rules) {
+    return reload(rules, RegexEngine.JDK, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Compiles the rules in the background, in parallel, and then swaps them in with {@link #setRuleSet(RuleSet)}. The parser keeps using its
+   * current rules while the new ones compile.
+   * @param rules the new rules
+   * @param regexEngine engine compiling the regular expressions
+   * @param executor runs the compilation
+   * @return completes once the new rules are in use, or exceptionally if they fail to
+   *         compile, in which case the current rules are kept
+   * @throws IllegalArgumentException if a section of rules is missing
+   */
+  public CompletableFuture<RuleReload> reload(BinaryRules rules, RegexEngine regexEngine, Executor executor) {
+    final long start = System.nanoTime();
+    return RuleSet.compileAsync(rules, regexEngine, executor).thenApply(new Function<RuleSet, RuleReload>() {
+      @Override
+      public RuleReload apply(RuleSet compiled) {
+        long swapStart = System.nanoTime();
+        setRuleSet(compiled);
+        long end = System.nanoTime();
+        return new RuleReload(compiled, swapStart - start, end - swapStart);
+      }
+    });
+  }
+
+  public static LoaderOptions getDefaultLoaderOptions(){
+    LoaderOptions options = new LoaderOptions();
+    options.setCodePointLimit(CODE_POINT_LIMIT);
+    return options;
   }
 }
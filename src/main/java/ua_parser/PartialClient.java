@@ -0,0 +1,26 @@
+package ua_parser;
+
+/**
+ * Result of a parse that ran out of its {@link ParseBudget}. The components whose lookup
+ * did not finish in time are null and flagged as timed out; the others hold their result.
+ */
+public class PartialClient extends Client {
+  public final boolean userAgentTimedOut, osTimedOut, deviceTimedOut;
+
+  public PartialClient(UserAgent userAgent, OS os, Device device,
+                       boolean userAgentTimedOut, boolean osTimedOut, boolean deviceTimedOut) {
+    super(userAgent, os, device);
+    this.userAgentTimedOut = userAgentTimedOut;
+    this.osTimedOut = osTimedOut;
+    this.deviceTimedOut = deviceTimedOut;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("{\"user_agent\": %s, \"os\": %s, \"device\": %s, \"timed_out\": [%s%s%s]}",
+                         userAgent, os, device,
+                         userAgentTimedOut ? "\"user_agent\"" : "",
+                         osTimedOut ? (userAgentTimedOut ? ", " : "") + "\"os\"" : "",
+                         deviceTimedOut ? (userAgentTimedOut || osTimedOut ? ", " : "") + "\"device\"" : "");
+  }
+}
@@ -0,0 +1,77 @@
+package ua_parser;
+
+/**
+ * Records the accesses a cache counts in its {@link FrequencySketch}es, so that hits do not
+ * write to the sketches' shared counters one by one.
+ *
+ * Accesses go to small buffers striped by thread, so a hit mostly writes to memory that only
+ * its own thread uses. A buffer is drained into the sketches in one batch when it fills up,
+ * and a cache drains the caller's buffer before it decides on admission, so that the caller's
+ * own recent hits count. Buffers are written without synchronization: when two threads
+ * sharing a buffer race, an access may be lost or counted twice, which only makes the
+ * estimate a little less accurate, as the sketch already allows.
+ */
+final class ReadBuffer {
+
+  static final int BUFFER_SIZE = 32;
+
+  private final FrequencySketch[] sketches;
+  private final Buffer[] buffers;
+  private final int bufferMask;
+
+  /**
+   * @param sketches the sketches of the cache, indexed as in {@link #record(int, int)}
+   */
+  ReadBuffer(FrequencySketch[] sketches) {
+    int bufferCount = FrequencySketch.ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+    this.sketches = sketches;
+    this.buffers = new Buffer[bufferCount];
+    this.bufferMask = bufferCount - 1;
+    for (int i = 0; i < bufferCount; i++) {
+      buffers[i] = new Buffer();
+    }
+  }
+
+  /**
+   * Records an access, to be counted in a sketch once the calling thread's buffer is drained.
+   * @param sketch the index of the sketch
+   * @param hash the hash of the key, as the sketch takes it
+   */
+  void record(int sketch, int hash) {
+    Buffer buffer = buffer();
+    int size = buffer.size;
+    if (size < BUFFER_SIZE) {
+      buffer.accesses[size] = ((long) sketch << 32) | (hash & 0xffffffffL);
+      buffer.size = ++size;
+    }
+    if (size >= BUFFER_SIZE) {
+      drain(buffer);
+    }
+  }
+
+  /**
+   * Counts the accesses buffered by the calling thread.
+   */
+  void drain() {
+    drain(buffer());
+  }
+
+  private void drain(Buffer buffer) {
+    int size = Math.min(buffer.size, BUFFER_SIZE);
+    buffer.size = 0;
+    for (int i = 0; i < size; i++) {
+      long access = buffer.accesses[i];
+      sketches[(int) (access >>> 32)].increment((int) access);
+    }
+  }
+
+  private Buffer buffer() {
+    return buffers[(int) Thread.currentThread().getId() & bufferMask];
+  }
+
+  private static final class Buffer {
+    // sketch index in the high half, hash in the low half
+    final long[] accesses = new long[BUFFER_SIZE];
+    int size;
+  }
+}
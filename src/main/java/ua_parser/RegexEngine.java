@@ -0,0 +1,34 @@
+package ua_parser;
+
+/**
+ * Compiles the regular expressions of the parser rules.
+ *
+ * The parsers only need to find the first match of a pattern in a user agent string
+ * and read its capturing groups, so an engine implements just that. Two engines are
+ * built in: {@link #JDK}, backed by java.util.regex, and {@link #LINEAR}, which runs
+ * in time linear in the length of the input for the regex syntax used by uap-core.
+ */
+public interface RegexEngine {
+
+  /**
+   * Backtracking engine of java.util.regex; supports the full java regex syntax.
+   */
+  RegexEngine JDK = new JdkRegexEngine();
+
+  /**
+   * Pike VM simulating all alternatives in lockstep, so a search never takes longer than
+   * the input length times the pattern size. It supports literals, character classes,
+   * groups, alternation, greedy and lazy quantifiers and the anchors ^, $, \b and \B.
+   * Back-references, lookaround and possessive quantifiers are rejected at compile time.
+   */
+  RegexEngine LINEAR = new LinearRegexEngine();
+
+  /**
+   * @param regex regular expression in java.util.regex syntax
+   * @param flags match flags, a bit mask of java.util.regex.Pattern flags;
+   *        only Pattern.CASE_INSENSITIVE is used by the parsers
+   * @return the compiled pattern
+   * @throws IllegalArgumentException if the expression is invalid or not supported by the engine
+   */
+  RegexPattern compile(String regex, int flags);
+}
@@ -0,0 +1,358 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the literal fragments a regular expression requires from its input.
+ *
+ * The result of {@link #requiredLiterals(String)} is a set of literals of which
+ * at least one occurs in every string the expression can match, or null when no
+ * such set can be derived. Literals are folded to lower case (ASCII only) so they
+ * can be looked up in a folded input regardless of the expression's case flags.
+ * Anything the extractor does not understand makes it give up rather than guess.
+ */
+final class RegexLiterals {
+
+  /**
+   * The tokens of the template nearly every browser's user agent follows, e.g.
+   * {@code Mozilla/5.0 (Linux; Android 10; K) AppleWebKit/537.36 (KHTML, like Gecko)
+   * Chrome/120.0 Mobile Safari/537.36}: the compatibility product tokens, the layout engine
+   * and the platform words. A literal made only of these, of digits and of punctuation rules
+   * out next to nothing, however long it is. Folded.
+   */
+  private static final String[] TEMPLATE_TOKENS = {
+    "mozilla", "compatible", "applewebkit", "khtml", "like", "gecko", "safari", "chrome", "mobile",
+    "version", "build", "linux", "android", "windows", "nt", "win64", "x64", "wow64", "x11",
+    "macintosh", "intel", "mac", "os", "x", "iphone", "cpu", "u", "wv",
+  };
+  // ranks any literal with a token of its own above every template literal
+  private static final int SPECIFIC = 1 << 16;
+
+  private final String regex;
+  private int pos;
+
+  private RegexLiterals(String regex) {
+    this.regex = regex;
+  }
+
+  /**
+   * @param regex java.util.regex source
+   * @return folded literals, at least one of which every match contains, or null if unknown
+   */
+  static String[] requiredLiterals(String regex) {
+    return requiredLiterals(regex, 0);
+  }
+
+  /**
+   * @param regex java.util.regex source
+   * @param flags the Pattern flags it is compiled with
+   * @return folded literals, at least one of which every match contains, or null if unknown,
+   *         as for flags other than CASE_INSENSITIVE, which the folded literals already allow for
+   */
+  static String[] requiredLiterals(String regex, int flags) {
+    if ((flags & ~Pattern.CASE_INSENSITIVE) != 0) {
+      return null;
+    }
+    RegexLiterals parser = new RegexLiterals(regex);
+    try {
+      List<String> literals = parser.alternation();
+      if (parser.pos != regex.length() || literals == null) {
+        return null;
+      }
+      return literals.toArray(new String[0]);
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  static char fold(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private List<String> alternation() {
+    List<String> literals = new ArrayList<>();
+    boolean known = true;
+    while (true) {
+      List<String> branch = sequence();
+      if (branch == null) {
+        known = false;
+      } else if (known) {
+        literals.addAll(branch);
+      }
+      if (pos < regex.length() && regex.charAt(pos) == '|') {
+        pos++;
+      } else {
+        return known ? literals : null;
+      }
+    }
+  }
+
+  private List<String> sequence() {
+    List<String> best = null;
+    StringBuilder run = new StringBuilder();
+    while (pos < regex.length()) {
+      char c = regex.charAt(pos);
+      if (c == '|' || c == ')') {
+        break;
+      }
+      if (c == '(') {
+        best = better(best, flush(run));
+        List<String> inner = group();
+        if (quantifier() > 0) {
+          best = better(best, inner);
+        }
+      } else if (c == '[') {
+        best = better(best, flush(run));
+        skipClass();
+        quantifier();
+      } else if (c == '.' || c == '^' || c == '$') {
+        best = better(best, flush(run));
+        pos++;
+        quantifier();
+      } else if (c == '\\') {
+        int literal = escape();
+        if (literal < 0) {
+          best = better(best, flush(run));
+          quantifier();
+        } else {
+          best = literal(run, best, (char) literal);
+        }
+      } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+        throw new UnsupportedOperationException();
+      } else {
+        pos++;
+        if (c > 0x7f) {
+          best = better(best, flush(run));
+          quantifier();
+        } else {
+          best = literal(run, best, c);
+        }
+      }
+    }
+    return better(best, flush(run));
+  }
+
+  private List<String> literal(StringBuilder run, List<String> best, char c) {
+    int start = pos;
+    int min = quantifier();
+    if (min == 0) {
+      return better(best, flush(run));
+    }
+    run.append(fold(c));
+    if (pos != start) {
+      // repeated literal: what follows is not necessarily adjacent to this run
+      return better(best, flush(run));
+    }
+    return best;
+  }
+
+  /**
+   * Parses a group starting at '(' and returns the literals its contents require.
+   * Zero-width and flag-only groups require nothing.
+   */
+  private List<String> group() {
+    pos++;
+    if (pos < regex.length() && regex.charAt(pos) == '?') {
+      pos++;
+      char kind = charAt(pos);
+      if (kind == ':') {
+        pos++;
+      } else if (kind == '=' || kind == '!' || kind == '>' || (kind == '<' && (charAt(pos + 1) == '=' || charAt(pos + 1) == '!'))) {
+        throw new UnsupportedOperationException();
+      } else if (kind == '<') {
+        int end = regex.indexOf('>', pos);
+        if (end < 0) {
+          throw new UnsupportedOperationException();
+        }
+        pos = end + 1;
+      } else {
+        while (pos < regex.length() && regex.charAt(pos) != ')' && regex.charAt(pos) != ':') {
+          char flag = regex.charAt(pos++);
+          if (flag == 'x' || flag == 'u' || flag == 'U') {
+            throw new UnsupportedOperationException();
+          }
+        }
+        if (charAt(pos) == ')') {
+          // inline flags only, e.g. (?i)
+          pos++;
+          return null;
+        }
+        pos++;
+      }
+    }
+    List<String> inner = alternation();
+    if (charAt(pos) != ')') {
+      throw new UnsupportedOperationException();
+    }
+    pos++;
+    return inner;
+  }
+
+  /**
+   * Parses an escape starting at '\' and returns the literal character it stands for,
+   * or -1 if it matches something other than a single fixed character.
+   */
+  private int escape() {
+    pos++;
+    if (pos >= regex.length()) {
+      throw new UnsupportedOperationException();
+    }
+    char c = regex.charAt(pos++);
+    if (c > 0x7f) {
+      return -1;
+    }
+    if (Character.isLetterOrDigit(c)) {
+      if ("dDwWsShHvVbBAGZzR".indexOf(c) >= 0) {
+        return -1;
+      }
+      if (c >= '1' && c <= '9') {
+        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+          pos++;
+        }
+        return -1;
+      }
+      throw new UnsupportedOperationException();
+    }
+    return c;
+  }
+
+  private void skipClass() {
+    int depth = 0;
+    do {
+      char c = charAt(pos);
+      if (c == 0) {
+        throw new UnsupportedOperationException();
+      } else if (c == '\\') {
+        pos++;
+      } else if (c == '[') {
+        depth++;
+        if (charAt(pos + 1) == '^') {
+          pos++;
+        }
+        if (charAt(pos + 1) == ']') {
+          pos++;
+        }
+      } else if (c == ']') {
+        depth--;
+      }
+      pos++;
+    } while (depth > 0);
+  }
+
+  /**
+   * Consumes an optional quantifier and returns its lower bound (1 if there is none).
+   */
+  private int quantifier() {
+    char c = charAt(pos);
+    int min;
+    if (c == '?' || c == '*') {
+      pos++;
+      min = 0;
+    } else if (c == '+') {
+      pos++;
+      min = 1;
+    } else if (c == '{') {
+      int end = regex.indexOf('}', pos);
+      if (end < 0) {
+        throw new UnsupportedOperationException();
+      }
+      String bounds = regex.substring(pos + 1, end);
+      int comma = bounds.indexOf(',');
+      try {
+        min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+      } catch (NumberFormatException e) {
+        throw new UnsupportedOperationException();
+      }
+      pos = end + 1;
+      min = Math.min(min, 1);
+    } else {
+      return 1;
+    }
+    c = charAt(pos);
+    if (c == '?' || c == '+') {
+      pos++;
+    }
+    return min;
+  }
+
+  private char charAt(int index) {
+    return index < regex.length() ? regex.charAt(index) : 0;
+  }
+
+  private static List<String> flush(StringBuilder run) {
+    if (run.length() == 0) {
+      return null;
+    }
+    List<String> literal = new ArrayList<>(1);
+    literal.add(run.toString());
+    run.setLength(0);
+    return literal;
+  }
+
+  /**
+   * Prefers the set whose shortest literal is longest, since it rules out the most inputs.
+   */
+  private static List<String> better(List<String> a, List<String> b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    int scoreA = shortest(a), scoreB = shortest(b);
+    if (scoreA != scoreB) {
+      return scoreA > scoreB ? a : b;
+    }
+    return a.size() <= b.size() ? a : b;
+  }
+
+  private static int shortest(List<String> literals) {
+    int min = Integer.MAX_VALUE;
+    for (String literal : literals) {
+      min = Math.min(min, isTemplate(literal) ? literal.length() : SPECIFIC + literal.length());
+    }
+    return min;
+  }
+
+  /**
+   * @return whether each alphanumeric run of the literal is a number or a template token,
+   *         where a run at either end of the literal may be cut off from its token
+   */
+  static boolean isTemplate(String literal) {
+    int i = 0, n = literal.length();
+    while (i < n) {
+      if (!isAlphanumeric(literal.charAt(i))) {
+        i++;
+        continue;
+      }
+      int start = i;
+      boolean digits = true;
+      while (i < n && isAlphanumeric(literal.charAt(i))) {
+        digits &= literal.charAt(i) <= '9';
+        i++;
+      }
+      if (!digits && !isTemplateToken(literal.substring(start, i), start == 0, i == n)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isTemplateToken(String run, boolean cutStart, boolean cutEnd) {
+    for (String token : TEMPLATE_TOKENS) {
+      if (cutStart && cutEnd ? token.contains(run)
+          : cutStart ? token.endsWith(run)
+          : cutEnd ? token.startsWith(run)
+          : token.equals(run)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isAlphanumeric(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+  }
+}
@@ -0,0 +1,31 @@
+package ua_parser;
+
+/**
+ * Searches an input for a {@link RegexPattern} and exposes the capturing groups of the match.
+ */
+public interface RegexMatcher {
+
+  /**
+   * Finds the first match of the pattern in the input.
+   * @return true if the pattern matches somewhere in the input
+   */
+  boolean find();
+
+  /**
+   * Discards the current match and makes the matcher search a new input, so that a
+   * single matcher can be reused for many inputs.
+   * @param input the text to search
+   */
+  void reset(CharSequence input);
+
+  /**
+   * @return the number of capturing groups in the pattern
+   */
+  int groupCount();
+
+  /**
+   * @param group index of a capturing group, 0 being the whole match
+   * @return the text captured by the group, or null if the group did not take part in the match
+   */
+  String group(int group);
+}
@@ -0,0 +1,23 @@
+package ua_parser;
+
+/**
+ * A regular expression compiled by a {@link RegexEngine}. Instances are immutable and thread-safe.
+ */
+public interface RegexPattern {
+
+  /**
+   * @return the source of the regular expression
+   */
+  String pattern();
+
+  /**
+   * @return the java.util.regex.Pattern flags it was compiled with
+   */
+  int flags();
+
+  /**
+   * @param input the text to search
+   * @return a matcher over the input, for use by a single thread
+   */
+  RegexMatcher matcher(CharSequence input);
+}
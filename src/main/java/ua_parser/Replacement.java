@@ -0,0 +1,157 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replacement string of a parser rule, split once into literal pieces and references to
+ * capturing groups so a match only has to append the pieces.
+ *
+ * The rules file uses $1 .. $9 to refer to groups; which references are honoured differs
+ * per parser for historical reasons, hence the factory methods.
+ */
+final class Replacement {
+
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(64);
+    }
+  };
+
+  private final String template;
+  private final String[] literals;
+  private final int[] groups;
+  private final boolean trim;
+
+  private Replacement(String template, List<String> literals, List<Integer> groups, boolean trim) {
+    this.template = template;
+    this.literals = literals.toArray(new String[0]);
+    this.groups = new int[groups.size()];
+    for (int i = 0; i < this.groups.length; i++) {
+      this.groups[i] = groups.get(i);
+    }
+    this.trim = trim;
+    if (trim && this.groups.length == 0) {
+      this.literals[0] = this.literals[0].trim();
+    }
+  }
+
+  /**
+   * @return a replacement where only the first "$1" refers to group 1 (user agent family)
+   */
+  static Replacement firstGroupOne(String template) {
+    return parse(template, true, false, false);
+  }
+
+  /**
+   * @return a replacement where every "$1" refers to group 1 (OS family)
+   */
+  static Replacement allGroupOne(String template) {
+    return parse(template, false, false, false);
+  }
+
+  /**
+   * @return a replacement where every "$" followed by a digit refers to a group and the
+   *         result is trimmed if the template contains a "$" (device family)
+   */
+  static Replacement allGroups(String template) {
+    return parse(template, false, true, template.indexOf('$') >= 0);
+  }
+
+  private static Replacement parse(String template, boolean firstOnly, boolean anyDigit, boolean trim) {
+    List<String> literals = new ArrayList<>();
+    List<Integer> groups = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < template.length() - 1; i++) {
+      char next = template.charAt(i + 1);
+      if (template.charAt(i) == '$' && (anyDigit ? next >= '0' && next <= '9' : next == '1')
+          && !(firstOnly && !groups.isEmpty())) {
+        literals.add(template.substring(start, i));
+        groups.add(next - '0');
+        start = i + 2;
+        i++;
+      }
+    }
+    literals.add(template.substring(start));
+    return new Replacement(template, literals, groups, trim);
+  }
+
+  /**
+   * @return whether every referenced group exists in the pattern and took part in the match
+   */
+  boolean groupsMatched(RegexMatcher matcher) {
+    for (int group : groups) {
+      if (group > matcher.groupCount() || matcher.group(group) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Substitutes the groups of the match; groups missing from the match are left empty.
+   */
+  String expand(RegexMatcher matcher) {
+    if (groups.length == 0) {
+      return literals[0];
+    }
+    StringBuilder buffer = BUFFER.get();
+    buffer.setLength(0);
+    buffer.append(literals[0]);
+    for (int i = 0; i < groups.length; i++) {
+      int group = groups[i];
+      if (group <= matcher.groupCount()) {
+        String value = matcher.group(group);
+        if (value != null) {
+          buffer.append(value);
+        }
+      }
+      buffer.append(literals[i + 1]);
+    }
+    if (!trim) {
+      return buffer.toString();
+    }
+    int start = 0, end = buffer.length();
+    while (start < end && buffer.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && buffer.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return buffer.substring(start, end);
+  }
+
+  /**
+   * @return the literal pieces around the group references, one more than the references
+   */
+  String[] literals() {
+    return literals.clone();
+  }
+
+  /**
+   * @return the referenced groups, in order
+   */
+  int[] groups() {
+    return groups.clone();
+  }
+
+  /**
+   * @return whether the expansion is trimmed
+   */
+  boolean trims() {
+    return trim;
+  }
+
+  /**
+   * @return the replacement string as written in the rules
+   */
+  String template() {
+    return template;
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+}
@@ -0,0 +1,41 @@
+package ua_parser;
+
+/**
+ * Matchers of one parser's patterns for use by a single thread, created when a pattern
+ * is first tried and reset for every later input, plus the prefilter's candidate set.
+ *
+ * Holding one of these per thread keeps a parse from allocating anything but its result.
+ * The matchers keep a reference to the last input they searched until they are reused.
+ */
+final class ReusableMatchers {
+
+  final long[] candidates;
+  private final RegexMatcher[] matchers;
+
+  ReusableMatchers(LiteralPrefilter prefilter, int patternCount) {
+    this.candidates = prefilter.newCandidateSet();
+    this.matchers = new RegexMatcher[patternCount];
+  }
+
+  /**
+   * @return the matcher of the pattern at the given index, reset to search the input
+   */
+  RegexMatcher matcher(int index, RegexPattern pattern, CharSequence input) {
+    RegexMatcher matcher = matchers[index];
+    if (matcher == null) {
+      matcher = matchers[index] = pattern.matcher(input);
+    } else {
+      matcher.reset(input);
+    }
+    return matcher;
+  }
+
+  static ThreadLocal<ReusableMatchers> perThread(final LiteralPrefilter prefilter, final int patternCount) {
+    return new ThreadLocal<ReusableMatchers>() {
+      @Override
+      protected ReusableMatchers initialValue() {
+        return new ReusableMatchers(prefilter, patternCount);
+      }
+    };
+  }
+}
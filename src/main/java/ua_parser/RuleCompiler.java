@@ -0,0 +1,80 @@
+package ua_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Compiles a list of rules into patterns, in order, either on the calling thread or in
+ * parallel on an executor. A rule that fails to compile is reported with its section and
+ * index in the list.
+ */
+final class RuleCompiler {
+
+  // rules per task, enough to outweigh scheduling the task
+  static final int RULES_PER_TASK = 32;
+
+  private RuleCompiler() {
+  }
+
+  /**
+   * @throws IllegalArgumentException if a rule fails to compile
+   */
+  static <P> List<P> compile(String section, List<Map<String,String>> rules, Function<Map<String,String>, P> compiler) {
+    Object[] patterns = new Object[rules.size()];
+    compile(section, rules, compiler, patterns, 0, patterns.length);
+    return list(patterns);
+  }
+
+  /**
+   * Compiles the rules as tasks of {@link #RULES_PER_TASK} rules run on the executor.
+   * @return completes with the patterns in the order of the rules, or exceptionally with the
+   *         {@link IllegalArgumentException} of the first rule that failed to compile
+   */
+  static <P> CompletableFuture<List<P>> compileAsync(final String section, final List<Map<String,String>> rules,
+                                                     final Function<Map<String,String>, P> compiler, Executor executor) {
+    final Object[] patterns = new Object[rules.size()];
+    final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+    for (int start = 0; start < patterns.length; start += RULES_PER_TASK) {
+      final int from = start;
+      final int to = Math.min(patterns.length, start + RULES_PER_TASK);
+      tasks.add(CompletableFuture.runAsync(new Runnable() {
+        @Override
+        public void run() {
+          compile(section, rules, compiler, patterns, from, to);
+        }
+      }, executor));
+    }
+    return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).handle(new BiFunction<Void, Throwable, List<P>>() {
+      @Override
+      public List<P> apply(Void done, Throwable failure) {
+        // allOf fails with any of the failures, joining in order throws the first one
+        for (CompletableFuture<Void> task : tasks) {
+          task.join();
+        }
+        return list(patterns);
+      }
+    });
+  }
+
+  private static <P> void compile(String section, List<Map<String,String>> rules, Function<Map<String,String>, P> compiler,
+                                  Object[] patterns, int from, int to) {
+    for (int i = from; i < to; i++) {
+      try {
+        patterns[i] = compiler.apply(rules.get(i));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(section + " rule " + i + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <P> List<P> list(Object[] patterns) {
+    return (List<P>) Arrays.asList(patterns);
+  }
+}
@@ -0,0 +1,43 @@
+package ua_parser;
+
+/**
+ * Outcome of {@link Parser#reload(BinaryRules)}: the rules now in use and how long it took
+ * to compile them and to swap them in.
+ */
+public final class RuleReload {
+
+  private final RuleSet ruleSet;
+  private final long compileTime;
+  private final long swapTime;
+
+  RuleReload(RuleSet ruleSet, long compileTime, long swapTime) {
+    this.ruleSet = ruleSet;
+    this.compileTime = compileTime;
+    this.swapTime = swapTime;
+  }
+
+  public RuleSet getRuleSet() {
+    return ruleSet;
+  }
+
+  /**
+   * @return the time from the reload call until the rules were compiled, in nanoseconds,
+   *         during which the parser kept using its old rules
+   */
+  public long getCompileTime() {
+    return compileTime;
+  }
+
+  /**
+   * @return the time to swap the rules in, including invalidating the cache of a
+   *         {@link CachingParser}, in nanoseconds
+   */
+  public long getSwapTime() {
+    return swapTime;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("{\"compile_time\": %d, \"swap_time\": %d}", compileTime, swapTime);
+  }
+}
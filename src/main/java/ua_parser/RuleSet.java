@@ -0,0 +1,219 @@
+package ua_parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.yaml.snakeyaml.LoaderOptions;
+
+/**
+ * Immutable set of compiled rules, shared by any number of parsers.
+ *
+ * Compiling the rules is the bulk of the startup time and heap of a {@link Parser}, so
+ * parsers created from a rule set only hold a reference to it. The rules bundled in the jar
+ * are compiled once per class loader, on first use, into {@link #getDefault()}, which
+ * {@link Parser#Parser()} and {@link CachingParser#CachingParser()} share. The component
+ * parsers of a rule set are thread-safe and can be used directly.
+ */
+public final class RuleSet {
+
+  private static final String REGEX_YAML_PATH = "/ua_parser/regexes.yaml";
+  private static final String BINARY_RULES_PATH = "/ua_parser/regexes.bin";
+
+  private final UserAgentParser uaParser;
+  private final OSParser osParser;
+  private final DeviceParser deviceParser;
+  private final byte[] fingerprint;
+
+  private RuleSet(UserAgentParser uaParser, OSParser osParser, DeviceParser deviceParser, byte[] fingerprint) {
+    this.uaParser = uaParser;
+    this.osParser = osParser;
+    this.deviceParser = deviceParser;
+    this.fingerprint = fingerprint;
+  }
+
+  private static final class DefaultHolder {
+    static final RuleSet DEFAULT = bundled(RegexEngine.JDK);
+  }
+
+  /**
+   * @return the rules bundled in the jar, compiled with {@link RegexEngine#JDK}
+   * @throws RuntimeException if there's a problem reading the rules from the classpath
+   */
+  public static RuleSet getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  /**
+   * Compiles the rules.
+   * @param rules the rules
+   * @param regexEngine engine compiling the regular expressions
+   */
+  public static RuleSet compile(BinaryRules rules, RegexEngine regexEngine) {
+    List<Map<String,String>> uaParserConfigs = rules.section("user_agent_parsers");
+    List<Map<String,String>> osParserConfigs = rules.section("os_parsers");
+    List<Map<String,String>> deviceParserConfigs = rules.section("device_parsers");
+    return new RuleSet(UserAgentParser.fromList(uaParserConfigs, regexEngine),
+        OSParser.fromList(osParserConfigs, regexEngine),
+        DeviceParser.fromList(deviceParserConfigs, regexEngine),
+        fingerprint(uaParserConfigs, osParserConfigs, deviceParserConfigs));
+  }
+
+  /**
+   * Compiles the rules in parallel on the executor, see {@link #compileAsync}, and waits for
+   * them.
+   * @param rules the rules
+   * @param regexEngine engine compiling the regular expressions
+   * @param executor runs the compilation, such as a {@link java.util.concurrent.ForkJoinPool}
+   * @throws IllegalArgumentException if a section of rules is missing, or a rule fails to
+   *         compile, with its index in its section
+   */
+  public static RuleSet compile(BinaryRules rules, RegexEngine regexEngine, Executor executor) {
+    try {
+      return compileAsync(rules, regexEngine, executor).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Compiles the rules on the executor, as tasks of a few dozen rules so that the user agent,
+   * OS and device rules all compile in parallel. The patterns keep the order of the rules.
+   * @param rules the rules
+   * @param regexEngine engine compiling the regular expressions
+   * @param executor runs the compilation
+   * @return completes with the compiled rules, or exceptionally with the
+   *         {@link IllegalArgumentException} of the first rule that failed to compile
+   * @throws IllegalArgumentException if a section of rules is missing
+   */
+  public static CompletableFuture<RuleSet> compileAsync(BinaryRules rules, RegexEngine regexEngine, Executor executor) {
+    final List<Map<String,String>> uaParserConfigs = rules.section("user_agent_parsers");
+    final List<Map<String,String>> osParserConfigs = rules.section("os_parsers");
+    final List<Map<String,String>> deviceParserConfigs = rules.section("device_parsers");
+    final CompletableFuture<List<UserAgentParser.UAPattern>> uaPatterns = RuleCompiler.compileAsync(
+        "user_agent_parsers", uaParserConfigs, UserAgentParser.compiler(regexEngine), executor);
+    final CompletableFuture<List<OSParser.OSPattern>> osPatterns = RuleCompiler.compileAsync(
+        "os_parsers", osParserConfigs, OSParser.compiler(regexEngine), executor);
+    final CompletableFuture<List<DeviceParser.DevicePattern>> devicePatterns = RuleCompiler.compileAsync(
+        "device_parsers", deviceParserConfigs, DeviceParser.compiler(regexEngine), executor);
+    return CompletableFuture.allOf(uaPatterns, osPatterns, devicePatterns).thenApply(new Function<Void, RuleSet>() {
+      @Override
+      public RuleSet apply(Void compiled) {
+        return new RuleSet(new UserAgentParser(new CopyOnWriteArrayList<>(uaPatterns.join())),
+            new OSParser(new CopyOnWriteArrayList<>(osPatterns.join())),
+            new DeviceParser(new CopyOnWriteArrayList<>(devicePatterns.join())),
+            fingerprint(uaParserConfigs, osParserConfigs, deviceParserConfigs));
+      }
+    });
+  }
+
+  /**
+   * Compiles the rules bundled in the jar in parallel on the executor.
+   * @param regexEngine engine compiling the regular expressions
+   * @param executor runs the compilation, such as a {@link java.util.concurrent.ForkJoinPool}
+   * @throws RuntimeException if there's a problem reading the rules from the classpath
+   */
+  public static RuleSet bundled(RegexEngine regexEngine, Executor executor) {
+    return compile(bundledRules(), regexEngine, executor);
+  }
+
+  /**
+   * Compiles the regexes.yaml bundled in the jar, or the {@link BinaryRules} the build
+   * converted it to if they are bundled as well, which load faster.
+   * @throws RuntimeException if there's a problem reading the rules from the classpath
+   */
+  static RuleSet bundled(RegexEngine regexEngine) {
+    return compile(bundledRules(), regexEngine);
+  }
+
+  /**
+   * Compiles the regexes.yaml bundled in the jar, read with the given options, even if the
+   * build converted it to {@link BinaryRules}, since those are read without the options.
+   * @throws RuntimeException if there's a problem reading the rules from the classpath
+   */
+  static RuleSet bundledYaml(LoaderOptions loaderOptions, RegexEngine regexEngine) {
+    return compile(bundledYamlRules(loaderOptions), regexEngine);
+  }
+
+  private static BinaryRules bundledRules() {
+    try (InputStream is = RuleSet.class.getResourceAsStream(BINARY_RULES_PATH)) {
+      if (is != null) {
+        return BinaryRules.read(is);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("failed to initialize parser from regexes.bin bundled in jar", e);
+    }
+    return bundledYamlRules(Parser.getDefaultLoaderOptions());
+  }
+
+  private static BinaryRules bundledYamlRules(LoaderOptions loaderOptions) {
+    try (InputStream is = RuleSet.class.getResourceAsStream(REGEX_YAML_PATH)) {
+      return BinaryRules.fromYaml(is, loaderOptions);
+    } catch (IOException e) {
+      throw new RuntimeException("failed to initialize parser from regexes.yaml bundled in jar", e);
+    }
+  }
+
+
+  public UserAgentParser getUserAgentParser() {
+    return uaParser;
+  }
+
+  public OSParser getOSParser() {
+    return osParser;
+  }
+
+  public DeviceParser getDeviceParser() {
+    return deviceParser;
+  }
+
+  /**
+   * @return SHA-256 of the rules, identifying the results they give
+   */
+  byte[] fingerprint() {
+    return fingerprint.clone();
+  }
+
+  /**
+   * Hashes the rules in order, with the attributes of each sorted by name, so formatting and
+   * comments of the yaml do not matter.
+   */
+  @SafeVarargs
+  private static byte[] fingerprint(List<Map<String,String>>... sections) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    for (List<Map<String,String>> section : sections) {
+      for (Map<String,String> rule : section) {
+        for (Map.Entry<String,String> attribute : new TreeMap<>(rule).entrySet()) {
+          digest.update(attribute.getKey().getBytes(StandardCharsets.UTF_8));
+          digest.update((byte) 0);
+          Object value = attribute.getValue();
+          if (value != null) {
+            digest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+          }
+          digest.update((byte) 0);
+        }
+        digest.update((byte) 1);
+      }
+      digest.update((byte) 2);
+    }
+    return digest.digest();
+  }
+}
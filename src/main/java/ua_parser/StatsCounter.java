@@ -0,0 +1,54 @@
+package ua_parser;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the events of a cache in striped adders, so that threads recording at the same time
+ * do not contend, and forwards them to the {@link CacheListener}, if any.
+ */
+final class StatsCounter {
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder loadTime = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final CacheListener listener;
+
+  StatsCounter(CacheListener listener) {
+    this.listener = listener;
+  }
+
+  void recordHit() {
+    hits.increment();
+    if (listener != null) {
+      listener.onHit();
+    }
+  }
+
+  void recordMiss() {
+    misses.increment();
+    if (listener != null) {
+      listener.onMiss();
+    }
+  }
+
+  void recordLoad(long nanos) {
+    loads.increment();
+    loadTime.add(nanos);
+    if (listener != null) {
+      listener.onLoad(nanos);
+    }
+  }
+
+  void recordEviction() {
+    evictions.increment();
+    if (listener != null) {
+      listener.onEviction();
+    }
+  }
+
+  CacheStats snapshot(int size) {
+    return new CacheStats(hits.sum(), misses.sum(), loads.sum(), loadTime.sum(), evictions.sum(), size);
+  }
+}
@@ -0,0 +1,360 @@
+package ua_parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable table of the parse results of a fixed set of user agents, typically the few
+ * thousand that make up most of the traffic. A {@link Parser} given a dictionary answers
+ * those user agents without matching any rule, and parses all others as usual.
+ *
+ * The user agents are placed with a minimal perfect hash (hash and displace): a 128-bit hash
+ * of the user agent picks a bucket, and each bucket has a displacement chosen at build time
+ * so that its user agents land in distinct slots of a table with exactly one slot per user
+ * agent. A lookup hashes the user agent once and compares it with the single candidate slot,
+ * without locks. The results are stored once per distinct value and referenced by index.
+ *
+ * A dictionary is built from a corpus with {@link #main(String[])}, and records the
+ * fingerprint of the rules it was built with, since other rules may give other results.
+ */
+public final class UserAgentDictionary {
+
+  static final int MAGIC = 0x55415044; // "UAPD"
+  static final int VERSION = 1;
+
+  // average number of user agents per bucket
+  private static final int BUCKET_SIZE = 4;
+  private static final int MAX_DISPLACEMENT = 1 << 24;
+
+  private final byte[] rulesFingerprint;
+  private final int[] displacements;
+  private final String[] agentStrings;
+  private final Client[] clients;
+
+  private UserAgentDictionary(byte[] rulesFingerprint, int[] displacements, String[] agentStrings, Client[] clients) {
+    this.rulesFingerprint = rulesFingerprint;
+    this.displacements = displacements;
+    this.agentStrings = agentStrings;
+    this.clients = clients;
+  }
+
+  /**
+   * Parses the user agents and places them in a new dictionary.
+   * @param parser the parser giving the results
+   * @param agentStrings the user agents, duplicates are ignored
+   */
+  public static UserAgentDictionary build(Parser parser, Collection<String> agentStrings) {
+    List<String> keys = new ArrayList<>(new LinkedHashSet<>(agentStrings));
+    keys.remove(null);
+    int size = keys.size();
+    int[] displacements = new int[Math.max(1, size / BUCKET_SIZE)];
+    String[] table = new String[size];
+    Client[] clients = new Client[size];
+
+    List<List<String>> buckets = new ArrayList<>(displacements.length);
+    for (int i = 0; i < displacements.length; i++) {
+      buckets.add(new ArrayList<String>());
+    }
+    for (String key : keys) {
+      buckets.get(bucket(CompactCache.hash(key)[0], displacements.length)).add(key);
+    }
+    Integer[] order = new Integer[displacements.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    // largest buckets first, while most slots are free
+    final List<List<String>> sizes = buckets;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(sizes.get(b).size(), sizes.get(a).size());
+      }
+    });
+
+    int[] slots = new int[BUCKET_SIZE * 4];
+    for (int b : order) {
+      List<String> bucket = buckets.get(b);
+      if (bucket.isEmpty()) {
+        break;
+      }
+      if (slots.length < bucket.size()) {
+        slots = new int[bucket.size()];
+      }
+      int displacement = 0;
+      while (!place(bucket, displacement, table, slots)) {
+        if (++displacement == MAX_DISPLACEMENT) {
+          throw new IllegalStateException("No displacement found for " + bucket.size() + " user agents");
+        }
+      }
+      displacements[b] = displacement;
+      for (int i = 0; i < bucket.size(); i++) {
+        table[slots[i]] = bucket.get(i);
+      }
+    }
+
+    Map<Client, Client> distinct = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      Client client = parser.parse(table[i]);
+      Client shared = distinct.get(client);
+      if (shared == null) {
+        distinct.put(client, client);
+        shared = client;
+      }
+      clients[i] = shared;
+    }
+    return new UserAgentDictionary(parser.rulesFingerprint(), displacements, table, clients);
+  }
+
+  /**
+   * Reads a dictionary written by {@link #write(OutputStream)}.
+   * @throws IOException if the stream cannot be read or does not hold a dictionary
+   */
+  public static UserAgentDictionary read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+      throw new IOException("Not a user agent dictionary");
+    }
+    byte[] fingerprint = new byte[data.readInt()];
+    data.readFully(fingerprint);
+    int[] displacements = new int[data.readInt()];
+    for (int i = 0; i < displacements.length; i++) {
+      displacements[i] = data.readInt();
+    }
+    String[] strings = new String[data.readInt()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = readString(data);
+    }
+    Client[] distinct = new Client[data.readInt()];
+    for (int i = 0; i < distinct.length; i++) {
+      String[] fields = new String[10];
+      for (int field = 0; field < fields.length; field++) {
+        int index = data.readInt();
+        fields[field] = index < 0 ? null : strings[index];
+      }
+      distinct[i] = new Client(new UserAgent(fields[0], fields[1], fields[2], fields[3]),
+          new OS(fields[4], fields[5], fields[6], fields[7], fields[8]),
+          new Device(fields[9]));
+    }
+    String[] agentStrings = new String[data.readInt()];
+    Client[] clients = new Client[agentStrings.length];
+    for (int i = 0; i < agentStrings.length; i++) {
+      agentStrings[i] = readString(data);
+      clients[i] = distinct[data.readInt()];
+    }
+    return new UserAgentDictionary(fingerprint, displacements, agentStrings, clients);
+  }
+
+  /**
+   * Writes the dictionary, the results encoded as indexes into a table of their distinct
+   * strings.
+   */
+  public void write(OutputStream out) throws IOException {
+    Map<String, Integer> stringIndexes = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    Map<Client, Integer> clientIndexes = new HashMap<>();
+    List<int[]> distinct = new ArrayList<>();
+    int[] clientOfSlot = new int[clients.length];
+    for (int i = 0; i < clients.length; i++) {
+      Integer index = clientIndexes.get(clients[i]);
+      if (index == null) {
+        index = distinct.size();
+        clientIndexes.put(clients[i], index);
+        Client c = clients[i];
+        String[] fields = { c.userAgent.family, c.userAgent.major, c.userAgent.minor, c.userAgent.patch,
+            c.os.family, c.os.major, c.os.minor, c.os.patch, c.os.patchMinor, c.device.family };
+        int[] encoded = new int[fields.length];
+        for (int field = 0; field < fields.length; field++) {
+          encoded[field] = index(fields[field], stringIndexes, strings);
+        }
+        distinct.add(encoded);
+      }
+      clientOfSlot[i] = index;
+    }
+
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(rulesFingerprint.length);
+    data.write(rulesFingerprint);
+    data.writeInt(displacements.length);
+    for (int displacement : displacements) {
+      data.writeInt(displacement);
+    }
+    data.writeInt(strings.size());
+    for (String s : strings) {
+      writeString(data, s);
+    }
+    data.writeInt(distinct.size());
+    for (int[] encoded : distinct) {
+      for (int index : encoded) {
+        data.writeInt(index);
+      }
+    }
+    data.writeInt(agentStrings.length);
+    for (int i = 0; i < agentStrings.length; i++) {
+      writeString(data, agentStrings[i]);
+      data.writeInt(clientOfSlot[i]);
+    }
+    data.flush();
+  }
+
+  /**
+   * @return the results for the user agent, or null if it is not in the dictionary
+   */
+  public Client get(String agentString) {
+    return get((CharSequence) agentString);
+  }
+
+  /**
+   * @param agentString the user agent, looked up by its characters without copying them
+   * @return the results for the user agent, or null if it is not in the dictionary
+   */
+  public Client get(CharSequence agentString) {
+    if (agentStrings.length == 0) {
+      return null;
+    }
+    long[] hash = CompactCache.hash(agentString);
+    int slot = slot(hash[1], displacements[bucket(hash[0], displacements.length)], agentStrings.length);
+    return agentStrings[slot].contentEquals(agentString) ? clients[slot] : null;
+  }
+
+  /**
+   * @return the number of user agents
+   */
+  public int size() {
+    return agentStrings.length;
+  }
+
+  byte[] rulesFingerprint() {
+    return rulesFingerprint.clone();
+  }
+
+  /**
+   * @return whether the dictionary was built with the rules of the parser
+   */
+  boolean matches(Parser parser) {
+    return Arrays.equals(rulesFingerprint, parser.rulesFingerprint());
+  }
+
+  private static boolean place(List<String> bucket, int displacement, String[] table, int[] slots) {
+    for (int i = 0; i < bucket.size(); i++) {
+      int slot = slot(CompactCache.hash(bucket.get(i))[1], displacement, table.length);
+      if (table[slot] != null) {
+        return false;
+      }
+      for (int j = 0; j < i; j++) {
+        if (slots[j] == slot) {
+          return false;
+        }
+      }
+      slots[i] = slot;
+    }
+    return true;
+  }
+
+  private static int bucket(long h1, int buckets) {
+    return (int) ((h1 >>> 1) % buckets);
+  }
+
+  private static int slot(long h2, int displacement, int size) {
+    long h = h2 + displacement * 0x9e3779b97f4a7c15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int) ((h >>> 1) % size);
+  }
+
+  private static int index(String s, Map<String, Integer> indexes, List<String> strings) {
+    if (s == null) {
+      return -1;
+    }
+    Integer index = indexes.get(s);
+    if (index == null) {
+      index = strings.size();
+      indexes.put(s, index);
+      strings.add(s);
+    }
+    return index;
+  }
+
+  private static void writeString(DataOutputStream data, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    byte[] bytes = new byte[data.readInt()];
+    data.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builds a dictionary of the most frequent user agents of a corpus.
+   *
+   * Usage: {@code UserAgentDictionary <corpus> <output> [<limit> [<regexes.yaml>]]}, where
+   * the corpus has one user agent per line and the limit (default 10000) is the number of
+   * distinct user agents kept. Without a regexes.yaml the bundled rules are used.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: UserAgentDictionary <corpus> <output> [<limit> [<regexes.yaml>]]");
+      System.exit(1);
+    }
+    int limit = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    Parser parser;
+    if (args.length > 3) {
+      try (InputStream regexYaml = new FileInputStream(args[3])) {
+        parser = new Parser(regexYaml);
+      }
+    } else {
+      parser = new Parser();
+    }
+
+    final Map<String, Integer> counts = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          Integer count = counts.get(line);
+          counts.put(line, count == null ? 1 : count + 1);
+        }
+      }
+    }
+    List<String> agentStrings = new ArrayList<>(counts.keySet());
+    Collections.sort(agentStrings, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Integer.compare(counts.get(b), counts.get(a));
+      }
+    });
+    agentStrings = agentStrings.subList(0, Math.min(limit, agentStrings.size()));
+
+    UserAgentDictionary dictionary = build(parser, agentStrings);
+    Path output = Paths.get(args[1]);
+    try (OutputStream out = Files.newOutputStream(output)) {
+      dictionary.write(out);
+    }
+    System.out.println("Wrote " + dictionary.size() + " user agents to " + output);
+  }
+}
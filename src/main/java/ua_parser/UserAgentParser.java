@@ -20,7 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Matcher;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 /**
@@ -31,9 +31,13 @@ import java.util.regex.Pattern;
 public class UserAgentParser {
 
   private final List<UAPattern> patterns;
+  private final LiteralPrefilter prefilter;
+  private final ThreadLocal<ReusableMatchers> matchers;
 
   public UserAgentParser(List<UAPattern> patterns) {
     this.patterns = patterns;
+    this.prefilter = prefilter(patterns);
+    this.matchers = ReusableMatchers.perThread(prefilter, patterns.size());
   }
 
   /**
@@ -42,54 +46,118 @@ public class UserAgentParser {
    * @return user-agent parser
    */
   public static UserAgentParser fromList(List<Map<String,String>> configList) {
-    List<UAPattern> configPatterns = new ArrayList<>();
+    return fromList(configList, RegexEngine.JDK);
+  }
 
-    for (Map<String, String> configMap : configList) {
-      configPatterns.add(UserAgentParser.patternFromMap(configMap));
-    }
+  /**
+   * Constructs a thread-safe UserAgentParser whose patterns are compiled by the given engine.
+   * @param configList configure a user-agent parser from a list of regexp hashmaps
+   * @param regexEngine engine compiling the regular expressions
+   * @return a user-agent parser
+   */
+  public static UserAgentParser fromList(List<Map<String,String>> configList, RegexEngine regexEngine) {
+    List<UAPattern> configPatterns = RuleCompiler.compile("user_agent_parsers", configList, compiler(regexEngine));
     return new UserAgentParser(new CopyOnWriteArrayList<>(configPatterns));
   }
 
+  /**
+   * @return compiles a rule of the list with the given engine
+   */
+  static Function<Map<String,String>, UAPattern> compiler(final RegexEngine regexEngine) {
+    return new Function<Map<String,String>, UAPattern>() {
+      @Override
+      public UAPattern apply(Map<String,String> configMap) {
+        return patternFromMap(configMap, regexEngine);
+      }
+    };
+  }
+
   public UserAgent parse(String agentString) {
+    return parse((CharSequence) agentString);
+  }
+
+  /**
+   * Parses the characters of any sequence, such as a slice of a log line, without copying
+   * them; only the values of the result are strings. The sequence must not change during
+   * the call.
+   */
+  public UserAgent parse(CharSequence agentString) {
     if (agentString == null) {
       return null;
     }
 
+    return parse(agentString, agentString);
+  }
+
+  /**
+   * Runs the candidate patterns for agentString against matchInput, a view of the same
+   * characters such as a budgeted one.
+   */
+  UserAgent parse(CharSequence agentString, CharSequence matchInput) {
     UserAgent agent;
-    for (UAPattern p : patterns) {
-      if ((agent = p.match(agentString)) != null) {
+    ReusableMatchers matchers = this.matchers.get();
+    long[] candidates = prefilter.candidates(agentString, matchers.candidates);
+    for (int i = LiteralPrefilter.nextCandidate(candidates, 0); i >= 0; i = LiteralPrefilter.nextCandidate(candidates, i + 1)) {
+      UAPattern pattern = patterns.get(i);
+      if ((agent = pattern.match(matchers.matcher(i, pattern.pattern, matchInput))) != null) {
         return agent;
       }
     }
     return UserAgent.OTHER;
   }
 
+  private static LiteralPrefilter prefilter(List<UAPattern> patterns) {
+    List<String[]> literals = new ArrayList<>(patterns.size());
+    for (UAPattern p : patterns) {
+      literals.add(p.literals);
+    }
+    return new LiteralPrefilter(literals);
+  }
+
   protected static UAPattern patternFromMap(Map<String, String> configMap) {
+    return patternFromMap(configMap, RegexEngine.JDK);
+  }
+
+  protected static UAPattern patternFromMap(Map<String, String> configMap, RegexEngine regexEngine) {
     String regex = configMap.get("regex");
     if (regex == null) {
       throw new IllegalArgumentException("User agent is missing regex");
     }
 
-    return(new UAPattern(Pattern.compile(regex),
+    return(new UAPattern(regexEngine.compile(regex, 0),
                          configMap.get("family_replacement"),
                          configMap.get("v1_replacement"),
                          configMap.get("v2_replacement")));
   }
 
   protected static class UAPattern {
-    private final Pattern pattern;
-    private final String familyReplacement, v1Replacement, v2Replacement;
+    private final RegexPattern pattern;
+    private final String[] literals;
+    private final Replacement familyReplacement;
+    private final String v1Replacement, v2Replacement;
 
     public UAPattern(Pattern pattern, String familyReplacement, String v1Replacement, String v2Replacement) {
+      this(JdkRegexEngine.wrap(pattern), familyReplacement, v1Replacement, v2Replacement);
+    }
+
+    public UAPattern(RegexPattern pattern, String familyReplacement, String v1Replacement, String v2Replacement) {
       this.pattern = pattern;
-      this.familyReplacement = familyReplacement;
+      this.literals = RegexLiterals.requiredLiterals(pattern.pattern(), pattern.flags());
+      this.familyReplacement = familyReplacement == null ? null : Replacement.firstGroupOne(familyReplacement);
       this.v1Replacement = v1Replacement;
       this.v2Replacement = v2Replacement;
     }
 
     public UserAgent match(String agentString) {
+      return match((CharSequence) agentString);
+    }
+
+    public UserAgent match(CharSequence agentString) {
+      return match(pattern.matcher(agentString));
+    }
+
+    UserAgent match(RegexMatcher matcher) {
       String family = null, v1 = null, v2 = null, v3 = null;
-      Matcher matcher = pattern.matcher(agentString);
 
       if (!matcher.find()) {
         return null;
@@ -98,10 +166,10 @@ public class UserAgentParser {
       int groupCount = matcher.groupCount();
 
       if (familyReplacement != null) {
-        if (familyReplacement.contains("$1") && groupCount >= 1 && matcher.group(1) != null) {
-          family = familyReplacement.replaceFirst("\\$1", Matcher.quoteReplacement(matcher.group(1)));
+        if (familyReplacement.groupsMatched(matcher)) {
+          family = familyReplacement.expand(matcher);
         } else {
-          family = familyReplacement;
+          family = familyReplacement.template();
         }
       } else if (groupCount >= 1) {
         family = matcher.group(1);
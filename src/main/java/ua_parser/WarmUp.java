@@ -0,0 +1,156 @@
+package ua_parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the warm-up of {@link Parser#warmUp(WarmUpOptions)}: rounds over the corpus, each
+ * timed, until the throughput of the last {@link #STEADY_ROUNDS} rounds is within
+ * {@link #TOLERANCE} of their mean. The just-in-time compiler keeps recompiling the hot
+ * paths for a while after they first reach full speed, so a single fast round is not enough.
+ */
+final class WarmUp {
+
+  private static final String CORPUS_PATH = "/ua_parser/warmup.txt";
+
+  static final int STEADY_ROUNDS = 3;
+  static final double TOLERANCE = 0.1;
+  // rounds shorter than this are dominated by timer and scheduling noise
+  private static final int MINIMUM_ROUND_PARSES = 1000;
+  private static final int MINIMUM_ROUNDS = 5;
+  // share of the user agents also parsed with a budget
+  private static final int BUDGET_INTERVAL = 8;
+
+  private static final ParseBudget BUDGET = ParseBudget.ofCharAccesses(Long.MAX_VALUE);
+
+  private WarmUp() {
+  }
+
+  static WarmUpResult run(final Parser parser, WarmUpOptions options) {
+    final List<String> corpus = options.getCorpus() != null ? options.getCorpus() : bundledCorpus();
+    final int passes = (MINIMUM_ROUND_PARSES + corpus.size() - 1) / corpus.size();
+    final int threads = options.getThreads();
+    ExecutorService executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ua-parser-warm-up");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    List<Callable<Void>> slices = new ArrayList<>(threads);
+    for (int t = 0; t < threads; t++) {
+      final int first = t;
+      slices.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int pass = 0; pass < passes; pass++) {
+            for (int i = first; i < corpus.size(); i += threads) {
+              parser.warmUp(corpus.get(i), i % BUDGET_INTERVAL == 0 ? BUDGET : null);
+            }
+          }
+          return null;
+        }
+      });
+    }
+
+    long roundParses = (long) passes * corpus.size();
+    // throughputs of the last rounds
+    double[] throughputs = new double[STEADY_ROUNDS];
+    long start = System.nanoTime();
+    int rounds = 0;
+    double initialThroughput = 0;
+    boolean steady = false;
+    try {
+      while (rounds < options.getMaximumRounds() && System.nanoTime() - start < options.getMaximumDuration()) {
+        long roundStart = System.nanoTime();
+        if (executor == null) {
+          slices.get(0).call();
+        } else {
+          for (Future<Void> slice : executor.invokeAll(slices)) {
+            slice.get();
+          }
+        }
+        double throughput = roundParses * 1e9 / Math.max(1, System.nanoTime() - roundStart);
+        if (rounds == 0) {
+          initialThroughput = throughput;
+        }
+        throughputs[rounds % throughputs.length] = throughput;
+        rounds++;
+        if (rounds >= MINIMUM_ROUNDS && isSteady(throughputs, rounds)) {
+          steady = true;
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    return new WarmUpResult(rounds, rounds * roundParses, System.nanoTime() - start, initialThroughput,
+        recentThroughput(throughputs, rounds), steady);
+  }
+
+  private static boolean isSteady(double[] throughputs, int rounds) {
+    double mean = recentThroughput(throughputs, rounds);
+    for (int i = rounds - STEADY_ROUNDS; i < rounds; i++) {
+      if (Math.abs(throughputs[i % throughputs.length] - mean) > TOLERANCE * mean) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the mean throughput of the last rounds
+   */
+  private static double recentThroughput(double[] throughputs, int rounds) {
+    int count = Math.min(rounds, STEADY_ROUNDS);
+    double sum = 0;
+    for (int i = rounds - count; i < rounds; i++) {
+      sum += throughputs[i % throughputs.length];
+    }
+    return count == 0 ? 0 : sum / count;
+  }
+
+  /**
+   * @throws RuntimeException if there's a problem reading the corpus from the classpath
+   */
+  static List<String> bundledCorpus() {
+    List<String> corpus = new ArrayList<>();
+    try (InputStream is = WarmUp.class.getResourceAsStream(CORPUS_PATH)) {
+      if (is == null) {
+        throw new IllegalStateException("warmup.txt is not bundled in jar");
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          corpus.add(line);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("failed to read warmup.txt bundled in jar", e);
+    }
+    return corpus;
+  }
+}
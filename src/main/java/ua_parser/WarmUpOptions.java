@@ -0,0 +1,91 @@
+package ua_parser;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of {@link Parser#warmUp(WarmUpOptions)}.
+ *
+ * The warm-up parses its corpus in rounds until the throughput of the rounds is steady, or
+ * until its duration or number of rounds runs out, whichever comes first.
+ */
+public class WarmUpOptions {
+
+  private List<String> corpus;
+  private long maximumDuration = TimeUnit.SECONDS.toNanos(30);
+  private int maximumRounds = Integer.MAX_VALUE;
+  private int threads = 1;
+
+  /**
+   * @return the user agents parsed in each round, or null for the bundled corpus
+   */
+  public List<String> getCorpus() {
+    return corpus;
+  }
+
+  /**
+   * @param corpus the user agents parsed in each round, such as a sample of the traffic, or
+   *        null for the bundled corpus of about a thousand user agents of varied browsers,
+   *        operating systems and devices
+   */
+  public void setCorpus(List<String> corpus) {
+    if (corpus != null && corpus.isEmpty()) {
+      throw new IllegalArgumentException("Empty warm-up corpus");
+    }
+    this.corpus = corpus;
+  }
+
+  /**
+   * @return the maximum duration of the warm-up in nanoseconds
+   */
+  public long getMaximumDuration() {
+    return maximumDuration;
+  }
+
+  /**
+   * @param duration the maximum duration of the warm-up, checked between rounds
+   * @param unit the unit of the duration
+   */
+  public void setMaximumDuration(long duration, TimeUnit unit) {
+    if (duration <= 0) {
+      throw new IllegalArgumentException("Invalid warm-up duration " + duration);
+    }
+    this.maximumDuration = unit.toNanos(duration);
+  }
+
+  /**
+   * @return the maximum number of rounds over the corpus
+   */
+  public int getMaximumRounds() {
+    return maximumRounds;
+  }
+
+  /**
+   * @param maximumRounds the maximum number of rounds over the corpus
+   */
+  public void setMaximumRounds(int maximumRounds) {
+    if (maximumRounds <= 0) {
+      throw new IllegalArgumentException("Invalid warm-up rounds " + maximumRounds);
+    }
+    this.maximumRounds = maximumRounds;
+  }
+
+  /**
+   * @return the number of threads parsing the corpus
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param threads the number of threads parsing the corpus, each a share of every round;
+   *        more threads warm up sooner on machines with idle cores, as the compiler queues
+   *        fill faster
+   */
+  public void setThreads(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Invalid warm-up threads " + threads);
+    }
+    this.threads = threads;
+  }
+}
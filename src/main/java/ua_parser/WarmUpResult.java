@@ -0,0 +1,66 @@
+package ua_parser;
+
+/**
+ * Outcome of {@link Parser#warmUp(WarmUpOptions)}.
+ */
+public final class WarmUpResult {
+
+  private final int rounds;
+  private final long parseCount;
+  private final long elapsedTime;
+  private final double initialThroughput;
+  private final double throughput;
+  private final boolean steady;
+
+  WarmUpResult(int rounds, long parseCount, long elapsedTime, double initialThroughput, double throughput, boolean steady) {
+    this.rounds = rounds;
+    this.parseCount = parseCount;
+    this.elapsedTime = elapsedTime;
+    this.initialThroughput = initialThroughput;
+    this.throughput = throughput;
+    this.steady = steady;
+  }
+
+  public int getRounds() {
+    return rounds;
+  }
+
+  public long getParseCount() {
+    return parseCount;
+  }
+
+  /**
+   * @return the duration of the warm-up in nanoseconds
+   */
+  public long getElapsedTime() {
+    return elapsedTime;
+  }
+
+  /**
+   * @return the parses per second of the first round
+   */
+  public double getInitialThroughput() {
+    return initialThroughput;
+  }
+
+  /**
+   * @return the parses per second of the last rounds
+   */
+  public double getThroughput() {
+    return throughput;
+  }
+
+  /**
+   * @return whether the throughput became steady, rather than the warm-up running out of
+   *         time or rounds first
+   */
+  public boolean isSteady() {
+    return steady;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("{\"rounds\": %d, \"parses\": %d, \"elapsed_time\": %d, \"initial_throughput\": %.0f, \"throughput\": %.0f, \"steady\": %b}",
+                         rounds, parseCount, elapsedTime, initialThroughput, throughput, steady);
+  }
+}
@@ -0,0 +1,21 @@
+package ua_parser;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor an {@link AsyncParser} parses misses on when none is supplied: on Java
+ * 21 and later a virtual thread per miss, so waiting misses hold no platform thread. Like the
+ * threads of the pool used before Java 21, virtual threads are daemons.
+ */
+final class DefaultExecutor {
+
+  static final String THREAD_NAME = "ua-parser-async";
+
+  private DefaultExecutor() {
+  }
+
+  static ExecutorService create() {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(THREAD_NAME).factory());
+  }
+}
@@ -0,0 +1,223 @@
+package ua_parser;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Parses a {@link Flow} of user agents into their clients, in the order of the user agents,
+ * with backpressure: at most a window of user agents is requested from upstream and not yet
+ * delivered downstream, and more are requested in batches as the subscriber's demand and the
+ * parses let the window drain.
+ *
+ * Each user agent goes through {@link AsyncParser#parseAsync(CharSequence)}, so hits are
+ * served inline and misses are parsed on its executor. A miss it sheds because too many are
+ * pending is parsed on the thread delivering the user agent instead of failing the stream,
+ * which slows the publisher down to the pace of the parser.
+ *
+ * The processor has a single subscriber. Requires Java 9; the rest of the library runs on
+ * Java 8.
+ */
+public final class ParseProcessor implements Flow.Processor<String, Client> {
+
+  static final int DEFAULT_WINDOW = 256;
+
+  private final AsyncParser parser;
+  private final int window;
+  // requested from upstream when at least that many fit in the window
+  private final int batch;
+
+  // results in the order of the user agents, added by the upstream thread only
+  private final ConcurrentLinkedQueue<CompletableFuture<Client>> results = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<Flow.Subscriber<? super Client>> downstream = new AtomicReference<>();
+  private final AtomicLong requested = new AtomicLong();
+  // serializes drain(), counting the calls it still has to make up for
+  private final AtomicInteger work = new AtomicInteger();
+  private final BiConsumer<Client, Throwable> drainOnCompletion = new BiConsumer<Client, Throwable>() {
+    @Override
+    public void accept(Client client, Throwable error) {
+      drain();
+    }
+  };
+  private volatile Flow.Subscription upstream;
+  private volatile boolean subscribed, done, cancelled;
+  private volatile Throwable error;
+  // requested from upstream and not yet delivered, only used by drain()
+  private long inFlight;
+
+  /**
+   * @param parser parses the user agents, see {@link AsyncParser#parseAsync(CharSequence)}
+   */
+  public ParseProcessor(AsyncParser parser) {
+    this(parser, DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param parser parses the user agents, see {@link AsyncParser#parseAsync(CharSequence)}
+   * @param window the number of user agents that may be requested from upstream and not
+   *        yet delivered downstream; keep it within the pending misses the parser allows
+   */
+  public ParseProcessor(AsyncParser parser, int window) {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Window must be greater than 0");
+    }
+    this.parser = parser;
+    this.window = window;
+    this.batch = window - (window >> 2);
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super Client> subscriber) {
+    Objects.requireNonNull(subscriber);
+    if (!downstream.compareAndSet(null, subscriber)) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("A parse processor has a single subscriber"));
+      return;
+    }
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          error = new IllegalArgumentException("Non-positive request " + n);
+        } else {
+          long current, next;
+          do {
+            current = requested.get();
+            next = current + n < 0 ? Long.MAX_VALUE : current + n;
+          } while (!requested.compareAndSet(current, next));
+        }
+        drain();
+      }
+
+      @Override
+      public void cancel() {
+        cancelled = true;
+        drain();
+      }
+    });
+    subscribed = true;
+    drain();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (upstream != null || cancelled) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    drain();
+  }
+
+  @Override
+  public void onNext(String agentString) {
+    if (done || cancelled) {
+      return;
+    }
+    CompletableFuture<Client> result = parser.parseAsync(agentString);
+    if (result.isCompletedExceptionally()) {
+      // shed or closed: parse it here, which holds back the publisher
+      result = new CompletableFuture<>();
+      try {
+        result.complete(parser.parser().parse(agentString));
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+    results.add(result);
+    result.whenComplete(drainOnCompletion);
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    error = throwable;
+    done = true;
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    done = true;
+    drain();
+  }
+
+  /**
+   * Delivers the results parsed so far, in order and as far as the demand goes, ends the
+   * stream once done, and tops up the window. Runs on one thread at a time; a call made
+   * while it runs makes it go round again.
+   */
+  private void drain() {
+    if (work.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      Flow.Subscriber<? super Client> subscriber = subscribed ? downstream.get() : null;
+      if (subscriber != null && !cancelled) {
+        deliver(subscriber);
+      }
+      if (cancelled) {
+        Flow.Subscription subscription = upstream;
+        if (subscription != null && !done) {
+          done = true;
+          subscription.cancel();
+        }
+        results.clear();
+      }
+      missed = work.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void deliver(Flow.Subscriber<? super Client> subscriber) {
+    long demand = requested.get();
+    long delivered = 0;
+    while (delivered != demand && error == null) {
+      CompletableFuture<Client> head = results.peek();
+      if (head == null || !head.isDone()) {
+        break;
+      }
+      results.poll();
+      inFlight--;
+      try {
+        subscriber.onNext(head.join());
+      } catch (CompletionException e) {
+        error = e.getCause();
+        break;
+      }
+      delivered++;
+    }
+    if (delivered > 0 && demand != Long.MAX_VALUE) {
+      requested.addAndGet(-delivered);
+    }
+    if (error != null) {
+      cancelled = true;
+      subscriber.onError(error);
+      return;
+    }
+    if (done && results.isEmpty()) {
+      cancelled = true;
+      subscriber.onComplete();
+      return;
+    }
+    Flow.Subscription subscription = upstream;
+    long free = window - inFlight;
+    if (subscription != null && !done && free >= batch) {
+      inFlight += free;
+      subscription.request(free);
+    }
+  }
+}
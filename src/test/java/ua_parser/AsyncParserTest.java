@@ -0,0 +1,143 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the inline hits, the executor misses and the bound on pending misses of the async parser
+ */
+public class AsyncParserTest {
+
+  private static final String IPHONE = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+  private static final String CHROME = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+
+  /**
+   * Holds the tasks until they are run by the test.
+   */
+  private static final class QueueingExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      List<Runnable> queued = new ArrayList<>(tasks);
+      tasks.clear();
+      for (Runnable task : queued) {
+        task.run();
+      }
+    }
+  }
+
+  @Test
+  public void testHitsAreServedInline() {
+    CachingParser parser = new CachingParser();
+    Client client = parser.parse(IPHONE);
+    QueueingExecutor executor = new QueueingExecutor();
+    AsyncParser async = new AsyncParser(parser, executor, 1);
+
+    CompletableFuture<Client> hit = async.parseAsync(new StringBuilder(IPHONE));
+    MatcherAssert.assertThat(hit.isDone(), is(true));
+    MatcherAssert.assertThat(hit.join(), is(sameInstance(client)));
+    MatcherAssert.assertThat(async.parseAsync(null).join(), is(nullValue()));
+    MatcherAssert.assertThat(executor.tasks.isEmpty(), is(true));
+  }
+
+  @Test
+  public void testMissesAreBounded() {
+    CachingParser parser = new CachingParser();
+    QueueingExecutor executor = new QueueingExecutor();
+    AsyncParser async = new AsyncParser(parser, executor, 2);
+
+    CompletableFuture<Client> first = async.parseAsync(IPHONE);
+    CompletableFuture<Client> second = async.parseAsync(CHROME);
+    CompletableFuture<Client> rejected = async.parseAsync("Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)");
+    MatcherAssert.assertThat(first.isDone() || second.isDone(), is(false));
+    MatcherAssert.assertThat(async.getPendingCount(), is(2));
+    MatcherAssert.assertThat(rejected.isCompletedExceptionally(), is(true));
+    MatcherAssert.assertThat(async.getRejectedCount(), is(1L));
+
+    executor.runAll();
+    MatcherAssert.assertThat(first.join(), is(parser.parse(IPHONE)));
+    MatcherAssert.assertThat(second.join(), is(new Parser().parse(CHROME)));
+    MatcherAssert.assertThat(async.getPendingCount(), is(0));
+    // now a hit, served inline
+    MatcherAssert.assertThat(async.parseAsync(IPHONE).isDone(), is(true));
+  }
+
+  @Test
+  public void testRejectedMissFails() throws Exception {
+    AsyncParser async = new AsyncParser(new Parser(), new QueueingExecutor(), 1);
+    async.parseAsync(IPHONE);
+    try {
+      async.parseAsync(CHROME).get();
+      MatcherAssert.assertThat("expected a rejection", false);
+    } catch (ExecutionException e) {
+      MatcherAssert.assertThat(e.getCause(), instanceOf(java.util.concurrent.RejectedExecutionException.class));
+    }
+  }
+
+  @Test
+  public void testBatch() {
+    Parser parser = new Parser();
+    List<String> corpus = WarmUp.bundledCorpus().subList(0, 150);
+    List<String> batch = new ArrayList<>();
+    for (int i = 0; i < 400; i++) {
+      batch.add(i % 37 == 0 ? null : corpus.get((i * 7) % corpus.size()));
+    }
+    QueueingExecutor executor = new QueueingExecutor();
+    AsyncParser async = new AsyncParser(parser, executor, 3);
+
+    CompletableFuture<List<Client>> clients = async.parseAllAsync(batch);
+    // 150 distinct misses, in tasks of 64
+    MatcherAssert.assertThat(async.getPendingCount(), is(3));
+    MatcherAssert.assertThat(async.parseAllAsync(Arrays.asList(CHROME)).isCompletedExceptionally(), is(true));
+    executor.runAll();
+    MatcherAssert.assertThat(clients.join(), is(parser.parseAll(batch)));
+    MatcherAssert.assertThat(async.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void testDefaultExecutor() throws Exception {
+    try (AsyncParser async = new AsyncParser(new Parser())) {
+      MatcherAssert.assertThat(async.parseAsync(CHROME).get(), is(new Parser().parse(CHROME)));
+      MatcherAssert.assertThat(async.parseAllAsync(Arrays.asList(IPHONE, null, IPHONE)).get(),
+          is(Arrays.asList(new Parser().parse(IPHONE), null, new Parser().parse(IPHONE))));
+    }
+  }
+
+  @Test
+  public void testCloseStopsMissesOnly() throws Exception {
+    CachingParser parser = new CachingParser();
+    AsyncParser async = new AsyncParser(parser);
+    Client chrome = async.parseAsync(CHROME).get();
+    async.close();
+    MatcherAssert.assertThat(async.parseAsync(CHROME).get(), sameInstance(chrome));
+    try {
+      async.parseAsync(IPHONE).get();
+      MatcherAssert.assertThat("miss parsed after close", false);
+    } catch (ExecutionException e) {
+      MatcherAssert.assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMaximumPending() {
+    new AsyncParser(new Parser(), new QueueingExecutor(), 0);
+  }
+}
@@ -0,0 +1,47 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests that the binary rules give the same parser as the yaml they were converted from
+ */
+public class BinaryRulesTest {
+
+  @Test
+  public void testRoundTripKeepsRules() throws Exception {
+    BinaryRules yamlRules;
+    try (InputStream in = Parser.class.getResourceAsStream("/ua_parser/regexes.yaml")) {
+      yamlRules = BinaryRules.fromYaml(in, Parser.getDefaultLoaderOptions());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    yamlRules.write(out);
+    BinaryRules binaryRules = BinaryRules.read(new ByteArrayInputStream(out.toByteArray()));
+
+    Parser fromYaml = new Parser(yamlRules);
+    Parser fromBinary = new Parser(binaryRules);
+    MatcherAssert.assertThat(fromBinary.rulesFingerprint(), is(fromYaml.rulesFingerprint()));
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    MatcherAssert.assertThat(fromBinary.parse(agentString), is(fromYaml.parse(agentString)));
+  }
+
+  @Test
+  public void testBundledRulesMatchYaml() throws Exception {
+    try (InputStream in = Parser.class.getResourceAsStream("/ua_parser/regexes.yaml")) {
+      Parser fromYaml = new Parser(in);
+      MatcherAssert.assertThat(new Parser().rulesFingerprint(), is(fromYaml.rulesFingerprint()));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testYamlIsNotBinary() throws Exception {
+    BinaryRules.read(new ByteArrayInputStream("user_agent_parsers:\n".getBytes("UTF8")));
+  }
+}
@@ -0,0 +1,90 @@
+package ua_parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Throughput of a single CachingParser shared by all benchmark threads. User agents are
+ * drawn from the uap-core test cases with a skewed distribution, so a few are hot and
+ * most are rare, like real traffic. Compare runs with different thread counts to see how
+ * the cache scales, e.g.
+ *
+ * mvn -P benchmark verify -DskipTests -Dbenchmark="CachingParserBenchmark -t 32"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CachingParserBenchmark {
+
+  @Param({ "1000", "10000" })
+  int cacheSize;
+
+  CachingParser parser;
+  String[] agentStrings;
+
+  @Setup
+  public void setUp() {
+    parser = new CachingParser(cacheSize);
+    agentStrings = loadAgentStrings();
+  }
+
+  @State(Scope.Thread)
+  public static class Sequence {
+    int[] indexes;
+    int next;
+
+    @Setup
+    public void setUp(CachingParserBenchmark benchmark) {
+      Random random = new Random(Thread.currentThread().getId());
+      int count = benchmark.agentStrings.length;
+      indexes = new int[1 << 16];
+      for (int i = 0; i < indexes.length; i++) {
+        // cubing a uniform value puts most of the weight on the first user agents
+        double r = random.nextDouble();
+        indexes[i] = (int) (r * r * r * count);
+      }
+    }
+  }
+
+  @Benchmark
+  public Client parse(Sequence sequence) {
+    int i = sequence.next++ & (sequence.indexes.length - 1);
+    return parser.parse(agentStrings[sequence.indexes[i]]);
+  }
+
+  static String[] loadAgentStrings() {
+    Yaml yaml = new Yaml(Parser.getDefaultLoaderOptions());
+    try (InputStream yamlStream = CachingParserBenchmark.class.getResourceAsStream("/ua_parser/test_ua.yaml")) {
+      @SuppressWarnings("unchecked")
+      Map<String, List<Map<String, String>>> entries = (Map<String, List<Map<String, String>>>) yaml.load(yamlStream);
+      List<String> agentStrings = new ArrayList<>();
+      for (Map<String, String> testCase : entries.get("test_cases")) {
+        agentStrings.add(testCase.get("user_agent_string"));
+      }
+      return agentStrings.toArray(new String[0]);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -1,10 +1,31 @@
 package ua_parser;
 
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.hamcrest.MatcherAssert;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * These tests really only redo the same tests as in ParserTest but with a
@@ -16,6 +37,9 @@ import org.junit.Test;
  */
 public class CachingParserTest extends ParserTest {
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Before
   public void initParser() {
     parser = new CachingParser();
@@ -94,4 +118,366 @@ public class CachingParserTest extends ParserTest {
     super.testReplacementQuoting();
   }
 
+  @Test
+  public void testCacheBoundedByBytes() {
+    CacheOptions options = new CacheOptions();
+    options.setMaximumBytes(20000);
+    CachingParser bounded = new CachingParser(options);
+    for (int i = 0; i < 1000; i++) {
+      bounded.parse("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/" + i + ".0.0.0 Safari/537.36");
+    }
+    MatcherAssert.assertThat(bounded.getEstimatedCacheBytes(), is(greaterThan(0L)));
+    MatcherAssert.assertThat(bounded.getEstimatedCacheBytes(), is(lessThanOrEqualTo(20000L)));
+  }
+
+  @Test
+  public void testCompactKeys() {
+    CacheOptions options = new CacheOptions();
+    options.setCompactKeys(true);
+    CachingParser compact = new CachingParser(options);
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    Client client = compact.parse(agentString);
+    MatcherAssert.assertThat(client, is(parser.parse(agentString)));
+    MatcherAssert.assertThat(compact.parse(new String(agentString)), is(sameInstance(client)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCompactKeysNotBoundedByBytes() {
+    CacheOptions options = new CacheOptions();
+    options.setCompactKeys(true);
+    options.setMaximumBytes(20000);
+    new CachingParser(options);
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() throws Exception {
+    String[] agentStrings = {
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+        "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0",
+        // a lone surrogate, which UTF-8 cannot encode
+        "Mozilla/5.0 (Linux; Android 13) Mobile \ud83d Safari/537.36" };
+    CachingParser saving = new CachingParser();
+    for (String agentString : agentStrings) {
+      saving.parse(agentString);
+    }
+    // only completely parsed user agents are saved
+    saving.parseOS("Opera/9.80 (J2ME/MIDP; Opera Mini/9.80 (S60; SymbOS; Opera Mobi/23.348; U; en) Presto/2.5.25 Version/10.54");
+    Path file = temporaryFolder.getRoot().toPath().resolve("ua-cache.bin");
+    MatcherAssert.assertThat(saving.saveSnapshot(file), is(4));
+
+    CachingParser loading = new CachingParser();
+    MatcherAssert.assertThat(loading.loadSnapshot(file), is(4));
+    for (String agentString : agentStrings) {
+      MatcherAssert.assertThat(loading.parse(agentString), is(saving.parse(agentString)));
+    }
+    MatcherAssert.assertThat(loading.getCacheStats().getMissCount(), is(0L));
+    MatcherAssert.assertThat(loading.loadSnapshot(file.resolveSibling("missing.bin")), is(0));
+  }
+
+  @Test
+  public void testStaleSnapshotIsIgnored() throws Exception {
+    CachingParser saving = new CachingParser();
+    saving.parse("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36");
+    Path file = temporaryFolder.getRoot().toPath().resolve("ua-cache.bin");
+    saving.saveSnapshot(file);
+
+    String otherRules = "user_agent_parsers:\n"
+                      + "  - regex: '(Chrome)/(\\d+)'\n"
+                      + "os_parsers:\n"
+                      + "  - regex: '(Windows NT)'\n"
+                      + "device_parsers:\n"
+                      + "  - regex: '(Win64)'\n";
+    CachingParser loading = (CachingParser) parserFromStringConfig(otherRules);
+    MatcherAssert.assertThat(loading.loadSnapshot(file), is(0));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCompactKeysCannotBeSaved() throws Exception {
+    CacheOptions options = new CacheOptions();
+    options.setCompactKeys(true);
+    new CachingParser(options).saveSnapshot(temporaryFolder.getRoot().toPath().resolve("ua-cache.bin"));
+  }
+
+  @Test
+  public void testCacheStats() {
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    CachingParser counted = new CachingParser();
+    counted.parse(agentString);
+    counted.parse(agentString);
+    counted.parseOS(agentString);
+    CacheStats stats = counted.getCacheStats();
+    MatcherAssert.assertThat(stats.getHitCount(), is(2L));
+    MatcherAssert.assertThat(stats.getMissCount(), is(1L));
+    MatcherAssert.assertThat(stats.getLoadCount(), is(1L));
+    MatcherAssert.assertThat(stats.getTotalLoadTime(), is(greaterThan(0L)));
+    MatcherAssert.assertThat(stats.getSize(), is(1));
+  }
+
+  @Test
+  public void testCacheListener() {
+    final AtomicLong events = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    CacheOptions options = new CacheOptions();
+    options.setMaximumSize(10);
+    options.setListener(new CacheListener() {
+      @Override
+      public void onHit() {
+        events.incrementAndGet();
+      }
+
+      @Override
+      public void onMiss() {
+        events.incrementAndGet();
+      }
+
+      @Override
+      public void onLoad(long nanos) {
+      }
+
+      @Override
+      public void onEviction() {
+        evictions.incrementAndGet();
+      }
+    });
+    CachingParser counted = new CachingParser(options);
+    for (int i = 0; i < 50; i++) {
+      counted.parseUserAgent("Mozilla/5.0 (X11; Linux x86_64; rv:" + i + ".0) Gecko/20100101 Firefox/" + i + ".0");
+    }
+    CacheStats stats = counted.getCacheStats();
+    MatcherAssert.assertThat(events.get(), is(50L));
+    MatcherAssert.assertThat(stats.getEvictionCount(), is(greaterThanOrEqualTo(40L)));
+    MatcherAssert.assertThat(evictions.get(), is(stats.getEvictionCount()));
+    MatcherAssert.assertThat(stats.getSize(), is(lessThanOrEqualTo(10)));
+  }
+
+  @Test
+  public void testConcurrentMissesParseOnce() throws Exception {
+    final String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    final CachingParser shared = new CachingParser();
+    final CountDownLatch start = new CountDownLatch(1);
+    final Client[] results = new Client[8];
+    Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          results[index] = shared.parse(agentString);
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Client result : results) {
+      MatcherAssert.assertThat(result, is(sameInstance(results[0])));
+    }
+    MatcherAssert.assertThat(shared.getCacheStats().getLoadCount(), is(1L));
+    MatcherAssert.assertThat(shared.getCacheStats().getMissCount(), is(1L));
+  }
+
+  @Test
+  public void testComponentsShareCacheEntry() {
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+
+    OS os = parser.parseOS(agentString);
+    Client client = parser.parse(agentString);
+    MatcherAssert.assertThat(client.os, is(sameInstance(os)));
+    MatcherAssert.assertThat(parser.parseUserAgent(agentString), is(sameInstance(client.userAgent)));
+    MatcherAssert.assertThat(parser.parseDevice(agentString), is(sameInstance(client.device)));
+    MatcherAssert.assertThat(parser.parse(agentString), is(sameInstance(client)));
+  }
+
+  @Test
+  public void testBytesShareCacheWithStrings() {
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    byte[] bytes = agentString.getBytes(StandardCharsets.ISO_8859_1);
+    for (CacheOptions options : Arrays.asList(new CacheOptions(), compactOptions(false), compactOptions(true))) {
+      CachingParser cached = new CachingParser(options);
+      Client client = cached.parse(bytes, 0, bytes.length);
+      MatcherAssert.assertThat(client, is(parser.parse(agentString)));
+      MatcherAssert.assertThat(cached.parse(agentString), is(sameInstance(client)));
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).flip();
+      MatcherAssert.assertThat(cached.parse(direct), is(sameInstance(client)));
+      MatcherAssert.assertThat(cached.getCacheStats().getMissCount(), is(1L));
+      MatcherAssert.assertThat(cached.getCacheStats().getHitCount(), is(2L));
+      // a prefix of a cached user agent is another user agent
+      MatcherAssert.assertThat(cached.parse(bytes, 0, bytes.length - 1), is(not(sameInstance(client))));
+    }
+  }
+
+  @Test
+  public void testCharSequencesShareCacheWithStrings() {
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    for (CacheOptions options : Arrays.asList(new CacheOptions(), compactOptions(false), compactOptions(true))) {
+      CachingParser cached = new CachingParser(options);
+      StringBuilder builder = new StringBuilder(agentString);
+      Client client = cached.parse(builder);
+      // the cache kept a copy
+      builder.setLength(10);
+      MatcherAssert.assertThat(cached.parse(agentString), is(sameInstance(client)));
+      MatcherAssert.assertThat(cached.parse(new StringBuilder(agentString)), is(sameInstance(client)));
+      MatcherAssert.assertThat(cached.parseOS(new StringBuilder(agentString)), is(sameInstance(client.os)));
+      MatcherAssert.assertThat(cached.getCacheStats().getMissCount(), is(1L));
+      MatcherAssert.assertThat(cached.getCacheStats().getHitCount(), is(3L));
+      MatcherAssert.assertThat(cached.parse(builder), is(not(sameInstance(client))));
+    }
+  }
+
+  @Test
+  public void testByteHitAllocatesNothing() {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+    byte[] bytes = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36"
+        .getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    long threadId = Thread.currentThread().getId();
+    int parses = 20000;
+
+    for (int i = 0; i < parses; i++) {
+      parser.parse(bytes, 0, bytes.length);
+      parser.parse(direct);
+    }
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < parses; i++) {
+      parser.parse(bytes, 0, bytes.length);
+      parser.parse(direct);
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+    // less than a byte per hit: no object is created by a hit
+    MatcherAssert.assertThat(allocated, is(lessThan((long) parses)));
+  }
+
+  private static CacheOptions compactOptions(boolean verify) {
+    CacheOptions options = new CacheOptions();
+    options.setCompactKeys(true);
+    options.setVerifyOnHit(verify);
+    return options;
+  }
+
+  @Test
+  public void testReloadInvalidatesCache() throws Exception {
+    String agentString = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+    String otherRules = "user_agent_parsers:\n"
+                      + "  - regex: '(Chrome)/(\\d+)'\n"
+                      + "    family_replacement: 'Reloaded $1'\n"
+                      + "os_parsers:\n"
+                      + "  - regex: '(Windows NT)'\n"
+                      + "device_parsers:\n"
+                      + "  - regex: '(Win64)'\n";
+    CachingParser reloading = new CachingParser();
+    MatcherAssert.assertThat(reloading.parse(agentString).userAgent.family, is("Chrome"));
+    MatcherAssert.assertThat(reloading.getCacheStats().getSize(), is(1));
+
+    BinaryRules rules = BinaryRules.fromYaml(new ByteArrayInputStream(otherRules.getBytes("UTF8")), Parser.getDefaultLoaderOptions());
+    RuleReload reload = reloading.reload(rules).get();
+    MatcherAssert.assertThat(reloading.getRuleSet(), is(sameInstance(reload.getRuleSet())));
+    MatcherAssert.assertThat(reloading.getCacheStats().getSize(), is(0));
+    MatcherAssert.assertThat(reloading.parse(agentString).userAgent.family, is("Reloaded Chrome"));
+    MatcherAssert.assertThat(reloading.parseUserAgent(agentString).family, is("Reloaded Chrome"));
+  }
+
+  @Test
+  public void testBudgetBoundsWaitForAnotherParse() throws Exception {
+    final CountDownLatch matching = new CountDownLatch(1), release = new CountDownLatch(1);
+    final AtomicBoolean blocked = new AtomicBoolean();
+    // the first search blocks, holding the entry of its user agent
+    RegexEngine blocking = new RegexEngine() {
+      @Override
+      public RegexPattern compile(String regex, int flags) {
+        final RegexPattern pattern = RegexEngine.JDK.compile(regex, flags);
+        return new RegexPattern() {
+          @Override
+          public String pattern() {
+            return pattern.pattern();
+          }
+
+          @Override
+          public int flags() {
+            return pattern.flags();
+          }
+
+          @Override
+          public RegexMatcher matcher(CharSequence input) {
+            final RegexMatcher matcher = pattern.matcher(input);
+            return new RegexMatcher() {
+              @Override
+              public boolean find() {
+                if (blocked.compareAndSet(false, true)) {
+                  matching.countDown();
+                  try {
+                    release.await();
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                  }
+                }
+                return matcher.find();
+              }
+
+              @Override
+              public void reset(CharSequence input) {
+                matcher.reset(input);
+              }
+
+              @Override
+              public int groupCount() {
+                return matcher.groupCount();
+              }
+
+              @Override
+              public String group(int group) {
+                return matcher.group(group);
+              }
+            };
+          }
+        };
+      }
+    };
+    String rules = "user_agent_parsers:\n"
+                 + "  - regex: '(Slow)'\n"
+                 + "os_parsers:\n"
+                 + "  - regex: '(Slow)'\n"
+                 + "device_parsers:\n"
+                 + "  - regex: '(Slow)'\n";
+    final CachingParser slow = new CachingParser(RuleSet.compile(BinaryRules.fromYaml(
+        new ByteArrayInputStream(rules.getBytes("UTF8")), Parser.getDefaultLoaderOptions()), blocking), new CacheOptions());
+    final String agentString = "Slow/1.0";
+    final Client[] unbudgeted = new Client[1];
+    Thread holder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        unbudgeted[0] = slow.parse(agentString);
+      }
+    });
+    holder.start();
+    matching.await();
+
+    long start = System.nanoTime();
+    Client timed = slow.parse(agentString, ParseBudget.ofTime(50, TimeUnit.MILLISECONDS));
+    MatcherAssert.assertThat(System.nanoTime() - start, is(lessThan(TimeUnit.SECONDS.toNanos(5))));
+    MatcherAssert.assertThat(timed instanceof PartialClient, is(true));
+    MatcherAssert.assertThat(((PartialClient) timed).userAgentTimedOut, is(true));
+
+    // without a time limit the budget cannot cover a wait, the user agent is parsed again
+    Client counted = slow.parse(agentString, ParseBudget.ofCharAccesses(100000));
+    MatcherAssert.assertThat(counted instanceof PartialClient, is(false));
+    MatcherAssert.assertThat(counted.userAgent.family, is("Slow"));
+
+    release.countDown();
+    holder.join();
+    MatcherAssert.assertThat(unbudgeted[0], is(counted));
+    MatcherAssert.assertThat(slow.parse(agentString, ParseBudget.ofTime(50, TimeUnit.MILLISECONDS)), is(sameInstance(unbudgeted[0])));
+  }
 }
@@ -0,0 +1,137 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the hash-keyed cache behind CachingParser with compact keys
+ */
+public class CompactCacheTest {
+
+  @Test
+  public void testGetAndPut() {
+    CompactCache<String> cache = new CompactCache<>(10, false, null);
+    MatcherAssert.assertThat(cache.get("a"), is(nullValue()));
+    cache.put("a", "1");
+    cache.put(new StringBuilder("a"), "2");
+    MatcherAssert.assertThat(cache.get("a"), is("2"));
+    MatcherAssert.assertThat(cache.putIfAbsent("a", "3"), is("2"));
+    MatcherAssert.assertThat(cache.size(), is(1));
+  }
+
+  @Test
+  public void testHashDependsOnEveryChar() {
+    long[] hash = CompactCache.hash("Mozilla/5.0 (X11; Linux x86_64)");
+    long h1 = hash[0], h2 = hash[1];
+    hash = CompactCache.hash("Mozilla/5.0 (X11; Linux x86_65)");
+    MatcherAssert.assertThat(hash[0] == h1 && hash[1] == h2, is(false));
+    hash = CompactCache.hash("Mozilla/5.0 (X11; Linux x86_64)");
+    MatcherAssert.assertThat(hash[0] == h1 && hash[1] == h2, is(true));
+    hash = CompactCache.hash("");
+    MatcherAssert.assertThat(hash[0] != 0 || hash[1] != 0, is(true));
+  }
+
+  @Test
+  public void testEvictionKeepsLookupsConsistent() {
+    CompactCache<Integer> cache = new CompactCache<>(100, false, null);
+    int hits = 0;
+    for (int i = 0; i < 20000; i++) {
+      int key = (i * 31) % 300;
+      Integer value = cache.get(Integer.toString(key));
+      if (value == null) {
+        cache.put(Integer.toString(key), key);
+      } else {
+        // entries moved back on removal must still be found under their own key
+        MatcherAssert.assertThat(value, is(key));
+        hits++;
+      }
+      MatcherAssert.assertThat(cache.size(), lessThanOrEqualTo(100));
+    }
+    MatcherAssert.assertThat(hits, is(greaterThan(0)));
+  }
+
+  @Test
+  public void testFrequentKeysSurviveScan() {
+    CompactCache<String> cache = new CompactCache<>(100, false, null);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 50; i++) {
+        String key = "hot" + i;
+        if (cache.get(key) == null) {
+          cache.put(key, key);
+        }
+      }
+    }
+    for (int i = 0; i < 10000; i++) {
+      String key = "once" + i;
+      cache.get(key);
+      cache.put(key, key);
+      if (i % 4 == 0) {
+        String hot = "hot" + (i / 4) % 50;
+        if (cache.get(hot) == null) {
+          cache.put(hot, hot);
+        }
+      }
+    }
+    int hits = 0;
+    for (int i = 0; i < 50; i++) {
+      if (cache.get("hot" + i) != null) {
+        hits++;
+      }
+    }
+    MatcherAssert.assertThat(hits, is(greaterThan(40)));
+  }
+
+  @Test
+  public void testVerifyOnHitRetainsKeys() {
+    CompactCache<String> compact = new CompactCache<>(1000, false, null);
+    CompactCache<String> verified = new CompactCache<>(1000, true, null);
+    for (int i = 0; i < 1000; i++) {
+      String key = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/" + i + ".0.0.0";
+      compact.put(key, "");
+      verified.put(key, "");
+    }
+    MatcherAssert.assertThat(verified.get("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/7.0.0.0"), is(not(nullValue())));
+    MatcherAssert.assertThat(verified.weight(), is(greaterThan(compact.weight() + 1000 * 100)));
+  }
+
+  @Test
+  public void testRejectedNewcomersAreNotEvictions() {
+    StatsCounter stats = new StatsCounter(null);
+    CompactCache<String> cache = new CompactCache<>(64, false, null, stats);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 64; i++) {
+        cache.get("hot" + i);
+        cache.putIfAbsent("hot" + i, "");
+      }
+    }
+    for (int i = 0; i < 100; i++) {
+      cache.put("once" + i, "");
+    }
+    MatcherAssert.assertThat(cache.size(), is(64));
+    MatcherAssert.assertThat(stats.snapshot(cache.size()).getEvictionCount(), is(0L));
+  }
+
+  @Test
+  public void testWeightFollowsEvictedKeys() {
+    CompactCache<String> cache = new CompactCache<>(64, true, null);
+    for (int i = 0; i < 64; i++) {
+      cache.put("first" + (1000 + i), "");
+    }
+    long weight = cache.weight();
+    for (int i = 0; i < 64; i++) {
+      String key = "later" + (1000 + i);
+      for (int j = 0; j < 5; j++) {
+        cache.get(key);
+      }
+      cache.put(key, "");
+    }
+    MatcherAssert.assertThat(cache.get("later1063"), is(""));
+    MatcherAssert.assertThat(cache.weight(), is(weight));
+  }
+}
@@ -0,0 +1,135 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the bounds and admission policy of the cache behind CachingParser
+ */
+public class ConcurrentCacheTest {
+
+  @Test
+  public void testGetAndPut() {
+    ConcurrentCache<String, String> cache = ConcurrentCache.ofSize(10, null);
+    MatcherAssert.assertThat(cache.get("a"), is(nullValue()));
+    cache.put("a", "1");
+    cache.put("a", "2");
+    MatcherAssert.assertThat(cache.get("a"), is("2"));
+    MatcherAssert.assertThat(cache.size(), is(1));
+  }
+
+  @Test
+  public void testSizeIsBounded() {
+    ConcurrentCache<Integer, Integer> cache = ConcurrentCache.ofSize(100, null);
+    for (int i = 0; i < 10000; i++) {
+      cache.get(i);
+      cache.put(i, i);
+    }
+    MatcherAssert.assertThat(cache.size(), lessThanOrEqualTo(100));
+  }
+
+  @Test
+  public void testWeightIsBounded() {
+    ConcurrentCache<String, String> cache = ConcurrentCache.ofWeight(10000, 100, new Cache.Weigher<String, String>() {
+      @Override
+      public int weigh(String key, String value) {
+        return value.length();
+      }
+    });
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      value.append('x');
+      cache.put("key" + i, value.toString());
+      MatcherAssert.assertThat(cache.weight(), lessThanOrEqualTo(10000L));
+    }
+    cache.put("big", value.toString());
+    cache.put("big", "small");
+    MatcherAssert.assertThat(cache.weight(), lessThanOrEqualTo(10000L));
+  }
+
+  @Test
+  public void testFrequentKeysSurviveScan() {
+    ConcurrentCache<String, String> cache = ConcurrentCache.ofSize(100, null);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 50; i++) {
+        String key = "hot" + i;
+        if (cache.get(key) == null) {
+          cache.put(key, key);
+        }
+      }
+    }
+    // the hot keys are used far less recently than capacity allows, an LRU would lose them
+    for (int i = 0; i < 10000; i++) {
+      String key = "once" + i;
+      cache.get(key);
+      cache.put(key, key);
+      if (i % 4 == 0) {
+        String hot = "hot" + (i / 4) % 50;
+        if (cache.get(hot) == null) {
+          cache.put(hot, hot);
+        }
+      }
+    }
+    for (int i = 0; i < 50; i++) {
+      MatcherAssert.assertThat(cache.get("hot" + i), is("hot" + i));
+    }
+  }
+
+  @Test
+  public void testReadsAreCountedInBatches() {
+    FrequencySketch sketch = new FrequencySketch(100);
+    ReadBuffer reads = new ReadBuffer(new FrequencySketch[] { sketch });
+    for (int i = 1; i < ReadBuffer.BUFFER_SIZE; i++) {
+      reads.record(0, 42);
+    }
+    MatcherAssert.assertThat(sketch.frequency(42), is(0));
+    reads.record(0, 42);
+    MatcherAssert.assertThat(sketch.frequency(42), is(15));
+    reads.record(0, 7);
+    reads.drain();
+    MatcherAssert.assertThat(sketch.frequency(7), is(1));
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final ConcurrentCache<Integer, Integer> cache = ConcurrentCache.ofSize(1000, null);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int seed = t;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 100000; i++) {
+              int key = (i * 31 + seed) % 5000;
+              Integer value = cache.get(key);
+              if (value == null) {
+                cache.put(key, key);
+              } else if (value != key) {
+                throw new AssertionError("wrong value " + value + " for " + key);
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    MatcherAssert.assertThat(failure.get(), is(nullValue()));
+    MatcherAssert.assertThat(cache.size(), lessThanOrEqualTo(1000));
+  }
+}
@@ -0,0 +1,20 @@
+package ua_parser;
+
+import org.junit.Before;
+
+/**
+ * Runs the conformance tests against the parser generated from regexes.yaml, which the build
+ * generates and compiles with the tests, see {@link ParserGenerator}.
+ */
+public class GeneratedParserTest extends ParserTest {
+
+  @Before
+  @Override
+  public void initParser() {
+    try {
+      parser = (Parser) Class.forName("ua_parser.GeneratedParser").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("ua_parser.GeneratedParser is generated by the build before the tests", e);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.ByteArrayInputStream;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests that the lazy engine gives the same results while only compiling the patterns tried
+ */
+public class LazyRegexEngineTest {
+
+  @Test
+  public void testCompilesOnlyTriedPatterns() {
+    LazyRegexEngine engine = new LazyRegexEngine(RegexEngine.JDK);
+    Parser lazy = new Parser(engine);
+    MatcherAssert.assertThat(engine.getPatternCount(), is(greaterThan(1000)));
+    MatcherAssert.assertThat(engine.getCompiledCount(), is(0));
+
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    MatcherAssert.assertThat(lazy.parse(agentString), is(new Parser().parse(agentString)));
+    int compiled = engine.getCompiledCount();
+    MatcherAssert.assertThat(compiled, is(greaterThan(0)));
+    MatcherAssert.assertThat(compiled, is(lessThan(engine.getPatternCount() / 4)));
+
+    lazy.parse(agentString);
+    MatcherAssert.assertThat(engine.getCompiledCount(), is(compiled));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPatternFailsWhenTried() throws Exception {
+    String testConfig = "user_agent_parsers:\n"
+                      + "  - regex: 'Agent(/'\n"
+                      + "os_parsers:\n"
+                      + "  - regex: 'OS'\n"
+                      + "device_parsers:\n"
+                      + "  - regex: 'Device'\n";
+    Parser lazy = new Parser(new ByteArrayInputStream(testConfig.getBytes("UTF8")), new LazyRegexEngine(RegexEngine.JDK));
+    lazy.parseUserAgent("Agent/1");
+  }
+}
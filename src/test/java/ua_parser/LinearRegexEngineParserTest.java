@@ -0,0 +1,24 @@
+package ua_parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Before;
+
+/**
+ * Runs the same tests as ParserTest with the patterns compiled by the linear regex engine.
+ */
+public class LinearRegexEngineParserTest extends ParserTest {
+
+  @Before
+  public void initParser() {
+    parser = new Parser(RegexEngine.LINEAR);
+  }
+
+  @Override
+  Parser parserFromStringConfig(String configYamlAsString) throws Exception {
+    InputStream yamlInput = new ByteArrayInputStream(
+        configYamlAsString.getBytes("UTF8"));
+    return new Parser(yamlInput, RegexEngine.LINEAR);
+  }
+}
@@ -0,0 +1,94 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.util.regex.Pattern;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Checks the linear regex engine finds the same matches and groups as java.util.regex.
+ */
+public class LinearRegexEngineTest {
+
+  private void assertSameAsJdk(String regex, int flags, String... inputs) {
+    RegexPattern jdk = RegexEngine.JDK.compile(regex, flags);
+    RegexPattern linear = RegexEngine.LINEAR.compile(regex, flags);
+    for (String input : inputs) {
+      RegexMatcher expected = jdk.matcher(input), actual = linear.matcher(input);
+      boolean found = expected.find();
+      MatcherAssert.assertThat(regex + " on " + input, actual.find(), is(found));
+      MatcherAssert.assertThat(actual.groupCount(), is(expected.groupCount()));
+      for (int i = 0; found && i <= expected.groupCount(); i++) {
+        MatcherAssert.assertThat(regex + " group " + i + " on " + input, actual.group(i), is(expected.group(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testGroupsAndAlternation() {
+    assertSameAsJdk("(Firefox)/(\\d+)\\.(\\d+)(?:\\.(\\d+)|)", 0,
+        "Mozilla/5.0 Firefox/3.5.5", "Firefox/3.5", "Firefox/3", "firefox/3.5");
+    assertSameAsJdk("(a|ab)(c|bcd)(d*)", 0, "abcd", "xabcdd");
+    assertSameAsJdk("(?:(a)|b)*", 0, "ab", "ba", "");
+  }
+
+  @Test
+  public void testQuantifiers() {
+    assertSameAsJdk("^(.{0,10}?)(\\d{2,3})", 0, "abc12345", "1", "ab1234");
+    assertSameAsJdk("HTC[ _-]?([^;]{1,20}?)(?: {0,2}Build|[;)]|$)", 0,
+        "HTC Desire Build/1", "HTC_One;", "HTC-X", "HTC Y)");
+    assertSameAsJdk("x+?y*", 0, "xxyy", "y");
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    assertSameAsJdk("(Kindle)[ /]([A-Z\\d]+)", Pattern.CASE_INSENSITIVE, "KINDLE fire", "kindle/3x");
+    assertSameAsJdk("a(?i)b(?-i)c", 0, "aBc", "abC", "ABc");
+    assertSameAsJdk("[^a-c]x", Pattern.CASE_INSENSITIVE, "Bx", "dx");
+  }
+
+  @Test
+  public void testAnchors() {
+    assertSameAsJdk("(Ice)$", 0, "Ice", "Ice\n", "Ice\r\n", "Ice\n\n", "Iced");
+    assertSameAsJdk("\\bBot\\b", 0, "a Bot", "aBot", "Bot_", "éBot");
+    assertSameAsJdk("^LG\\B", 0, "LGE", "LG-");
+    assertSameAsJdk("\\b\u0301+Bot\\b|x\\b", 0, "a\u0301\u0301Bot", " \u0301\u0301Bot", "\u0301Bot x",
+        "e\u0301\u0301x", "-\u0301x", "\ud835\udc00\u0301x", "\u0301");
+  }
+
+  @Test
+  public void testPatternsShareThreadState() {
+    RegexMatcher large = RegexEngine.LINEAR.compile("(a)(b)(c)(d)(e)(f)|(x+)y", 0).matcher("xxxy");
+    RegexMatcher small = RegexEngine.LINEAR.compile("(\\d+)", 0).matcher("v12");
+    MatcherAssert.assertThat(large.find(), is(true));
+    MatcherAssert.assertThat(small.find(), is(true));
+    MatcherAssert.assertThat(large.group(7), is("xxx"));
+    MatcherAssert.assertThat(small.group(1), is("12"));
+    large.reset("abcdef");
+    MatcherAssert.assertThat(large.find(), is(true));
+    MatcherAssert.assertThat(large.group(6), is("f"));
+    MatcherAssert.assertThat(small.group(1), is("12"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testBackReferenceUnsupported() {
+    RegexEngine.LINEAR.compile("(a)\\1", 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testLookaheadUnsupported() {
+    RegexEngine.LINEAR.compile("a(?=b)", 0);
+  }
+
+  @Test
+  public void testLinearOnBacktrackingBomb() {
+    String marks = new String(new char[20000]).replace('\0', '\u0301');
+    RegexMatcher boundary = RegexEngine.LINEAR.compile("\\bz", 0).matcher("a" + marks);
+    MatcherAssert.assertThat(boundary.find(), is(false));
+    String input = new String(new char[30]).replace('\0', 'a');
+    RegexMatcher matcher = RegexEngine.LINEAR.compile("^(a+)+$", 0).matcher(input + "!");
+    MatcherAssert.assertThat(matcher.find(), is(false));
+  }
+}
@@ -0,0 +1,77 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the literal extraction and candidate selection done in front of the regex parsers
+ */
+public class LiteralPrefilterTest {
+
+  @Test
+  public void testRequiredLiterals() {
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("(Firefox)/(\\d+)\\.(\\d+)"), arrayContainingInAnyOrder("firefox"));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("Opera Mini(?:/att|)/?(\\d+)"), arrayContainingInAnyOrder("opera mini"));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("(iPad|iPhone|iPod)"), arrayContainingInAnyOrder("ipad", "iphone", "ipod"));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("Nexus 5X?"), arrayContainingInAnyOrder("nexus 5"));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("\\bSmart[ _\\-]?TV\\b"), arrayContainingInAnyOrder("smart"));
+    // longer, but found in almost every user agent
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("; {0,2}OPPO ?([^;/]{1,100}?)(?: Build|\\) AppleWebKit)"), arrayContainingInAnyOrder("oppo"));
+  }
+
+  @Test
+  public void testTemplateLiterals() {
+    MatcherAssert.assertThat(RegexLiterals.isTemplate(") applewebkit/"), is(true));
+    MatcherAssert.assertThat(RegexLiterals.isTemplate("; android 10; "), is(true));
+    MatcherAssert.assertThat(RegexLiterals.isTemplate("droid"), is(true));
+    MatcherAssert.assertThat(RegexLiterals.isTemplate(" build/"), is(true));
+    MatcherAssert.assertThat(RegexLiterals.isTemplate("oppo"), is(false));
+    MatcherAssert.assertThat(RegexLiterals.isTemplate("; sm-"), is(false));
+    // a whole token, not part of one
+    MatcherAssert.assertThat(RegexLiterals.isTemplate(" in "), is(false));
+  }
+
+  @Test
+  public void testNoRequiredLiterals() {
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("^(.{0,200})(\\d+)"), is(nullValue()));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("(?:Chrome|)/(\\d+)"), arrayContainingInAnyOrder("/"));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("(?:Chrome|)(\\d+)"), is(nullValue()));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("(?=Chrome)\\w+"), is(nullValue()));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("\\QChrome\\E"), is(nullValue()));
+  }
+
+  @Test
+  public void testFlagsBeyondCaseInsensitiveHaveNoLiterals() {
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("Smart TV", Pattern.CASE_INSENSITIVE), arrayContainingInAnyOrder("smart tv"));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("Smart TV", Pattern.COMMENTS), is(nullValue()));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("Smart TV", Pattern.LITERAL), is(nullValue()));
+    MatcherAssert.assertThat(RegexLiterals.requiredLiterals("Smart TV", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE), is(nullValue()));
+
+    // with COMMENTS the space is not part of the pattern, so "Smart TV" is not required
+    UserAgentParser parser = new UserAgentParser(Arrays.asList(
+        new UserAgentParser.UAPattern(Pattern.compile("(Smart TV)", Pattern.COMMENTS), null, null, null)));
+    MatcherAssert.assertThat(parser.parse("Browser SmartTV/1.0").family, is("SmartTV"));
+  }
+
+  @Test
+  public void testCandidatesKeepOrder() {
+    LiteralPrefilter prefilter = new LiteralPrefilter(Arrays.asList(
+        new String[] { "chrome" },
+        null,
+        new String[] { "safari", "webkit" },
+        new String[] { "firefox" }));
+
+    long[] candidates = prefilter.candidates("Mozilla/5.0 AppleWebKit/537.36 Chrome/120.0");
+    MatcherAssert.assertThat(LiteralPrefilter.nextCandidate(candidates, 0), is(0));
+    MatcherAssert.assertThat(LiteralPrefilter.nextCandidate(candidates, 1), is(1));
+    MatcherAssert.assertThat(LiteralPrefilter.nextCandidate(candidates, 2), is(2));
+    MatcherAssert.assertThat(LiteralPrefilter.nextCandidate(candidates, 3), is(-1));
+  }
+}
@@ -0,0 +1,88 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests finding the user agents of access logs and enriching their lines
+ */
+public class LogEnricherTest {
+
+  private static final String IPHONE = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+  private static final String CHROME = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+  @After
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void testCombinedLogFormat() throws Exception {
+    StringBuilder log = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      log.append(combined(i % 3 == 0 ? CHROME : IPHONE)).append(i % 2 == 0 ? "\r\n" : "\n");
+    }
+    log.append("127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] \"GET / HTTP/1.0\" 200 2326 \"-\" \"say \\\"hi\\\"\"\n");
+    log.append("not a log line\n");
+    Path file = write(log.toString());
+
+    // small chunks, so that lines are split among many of them
+    LogEnricher enricher = new LogEnricher(new CachingParser(), -1, (byte) '\t', 300, 1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MatcherAssert.assertThat(enricher.enrich(file, out, executor), is(52L));
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n", -1);
+    MatcherAssert.assertThat(lines.length, is(53));
+    for (int i = 0; i < 50; i++) {
+      String expected = i % 3 == 0 ? "\tChrome\t120\tWindows\t10\tOther" : "\tMobile Safari\t5\tiOS\t5\tiPhone";
+      MatcherAssert.assertThat(lines[i], is(combined(i % 3 == 0 ? CHROME : IPHONE) + expected));
+    }
+    MatcherAssert.assertThat(lines[50].endsWith("\"say \\\"hi\\\"\"\tOther\t\tOther\t\tOther"), is(true));
+    MatcherAssert.assertThat(lines[51], is("not a log line\t\t\t\t\t"));
+  }
+
+  @Test
+  public void testCountsByField() throws Exception {
+    StringBuilder log = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      log.append(i).append('\t').append(i % 4 == 0 ? CHROME : IPHONE).append("\t200\n");
+    }
+    Path file = write(log.toString());
+
+    LogEnricher enricher = new LogEnricher(new Parser(), 1, (byte) '\t', 200, 1);
+    Map<String, Map<String, Long>> counts = enricher.count(file, executor);
+    MatcherAssert.assertThat(counts.get("user_agent").get("Chrome"), is(10L));
+    MatcherAssert.assertThat(counts.get("user_agent").get("Mobile Safari"), is(30L));
+    MatcherAssert.assertThat(counts.get("os").get("iOS"), is(30L));
+    MatcherAssert.assertThat(counts.get("device").get("iPhone"), is(30L));
+    MatcherAssert.assertThat(counts.get("device").get("Other"), is(10L));
+  }
+
+  private static String combined(String agentString) {
+    return "127.0.0.1 - frank [10/Oct/2000:13:55:36 -0700] \"GET /apache_pb.gif HTTP/1.0\" 200 2326 \"http://www.example.com/start.html\" \""
+        + agentString + "\"";
+  }
+
+  private Path write(String log) throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("access.log");
+    Files.write(file, log.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
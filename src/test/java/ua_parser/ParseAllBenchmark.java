@@ -0,0 +1,80 @@
+package ua_parser;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * User agents parsed per millisecond in a batch with many duplicates, as in a log: a loop of
+ * parse calls, parseAll on the calling thread, which only deduplicates, and parseAll on the
+ * common fork-join pool, which also parses in parallel. Divide the last by the cores used
+ * for the throughput per core, e.g.
+ *
+ * mvn -P benchmark verify -DskipTests -Dbenchmark=ParseAllBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseAllBenchmark {
+
+  static final int BATCH_SIZE = 4096;
+
+  private static final Executor CALLING_THREAD = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  Parser parser;
+  String[] batch;
+
+  @Setup
+  public void setUp() {
+    parser = new Parser();
+    String[] agentStrings = CachingParserBenchmark.loadAgentStrings();
+    Random random = new Random(42);
+    batch = new String[BATCH_SIZE];
+    for (int i = 0; i < batch.length; i++) {
+      // cubing a uniform value puts most of the weight on the first user agents
+      double r = random.nextDouble();
+      batch[i] = agentStrings[(int) (r * r * r * agentStrings.length)];
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void parseLoop(Blackhole blackhole) {
+    for (String agentString : batch) {
+      blackhole.consume(parser.parse(agentString));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public Client[] parseAllOnCallingThread() {
+    return parser.parseAll(batch, CALLING_THREAD);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public Client[] parseAll() {
+    return parser.parseAll(batch);
+  }
+}
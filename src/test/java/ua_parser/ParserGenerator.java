@@ -0,0 +1,397 @@
+package ua_parser;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the source of {@code ua_parser.GeneratedParser}, a {@link Parser} with the rules
+ * of a regexes.yaml compiled into code: one static pattern per rule and the replacements
+ * expanded by straight-line code. Each pattern is guarded by a constant test of its bit in the
+ * candidate set of the {@link LiteralPrefilter}, which finds the literals of all rules in one
+ * pass; testing each rule's literals with {@code indexOf} instead would scan the user agent
+ * once per rule.
+ *
+ * It is not part of the library: matching the patterns dominates a parse, and the generated
+ * parser measured no faster than {@link Parser}, so it is not worth an API whose rules cannot
+ * be replaced. The build runs it before the tests, which check that code generated from the
+ * rules gives the same results as the generic parser. Usage:
+ * {@code ParserGenerator <regexes.yaml> <source directory>}
+ */
+public final class ParserGenerator {
+
+  // rules per generated method, keeping methods well below the JIT's size limits
+  private static final int RULES_PER_METHOD = 32;
+
+  private final StringBuilder out = new StringBuilder();
+
+  private ParserGenerator() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: ParserGenerator <regexes.yaml> <source directory>");
+      System.exit(1);
+    }
+    BinaryRules rules;
+    try (InputStream in = new FileInputStream(args[0])) {
+      rules = BinaryRules.fromYaml(in, Parser.getDefaultLoaderOptions());
+    }
+    Path file = Paths.get(args[1], "ua_parser", "GeneratedParser.java");
+    Files.createDirectories(file.getParent());
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      writer.write(generate(rules));
+    }
+  }
+
+  static String generate(BinaryRules rules) {
+    ParserGenerator generator = new ParserGenerator();
+    generator.generateClass(rules.section("user_agent_parsers"), rules.section("os_parsers"), rules.section("device_parsers"));
+    return generator.out.toString();
+  }
+
+  private void generateClass(List<Map<String, String>> uaRules, List<Map<String, String>> osRules, List<Map<String, String>> deviceRules) {
+    line("// Generated by ua_parser.ParserGenerator from regexes.yaml, do not edit.");
+    line("package ua_parser;");
+    line("");
+    line("import java.util.Arrays;");
+    line("import java.util.regex.Matcher;");
+    line("import java.util.regex.Pattern;");
+    line("");
+    line("/**");
+    line(" * Parser with the bundled rules compiled into code. Budgeted parses use the generic rules.");
+    line(" */");
+    line("public class GeneratedParser extends Parser {");
+    line("");
+    for (int i = 0; i < uaRules.size(); i++) {
+      patternField("UA", i, uaRules.get(i), 0);
+    }
+    for (int i = 0; i < osRules.size(); i++) {
+      patternField("OS", i, osRules.get(i), 0);
+    }
+    for (int i = 0; i < deviceRules.size(); i++) {
+      Map<String, String> rule = deviceRules.get(i);
+      patternField("DEVICE", i, rule, "i".equals(rule.get("regex_flag")) ? Pattern.CASE_INSENSITIVE : 0);
+    }
+    line("");
+    line("  private static final LiteralPrefilter UA_PREFILTER = new LiteralPrefilter(Arrays.asList(uaLiterals()));");
+    line("  private static final LiteralPrefilter OS_PREFILTER = new LiteralPrefilter(Arrays.asList(osLiterals()));");
+    line("  private static final LiteralPrefilter DEVICE_PREFILTER = new LiteralPrefilter(Arrays.asList(deviceLiterals()));");
+    line("");
+    line("  private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {");
+    line("    @Override");
+    line("    protected State initialValue() {");
+    line("      return new State();");
+    line("    }");
+    line("  };");
+    line("");
+    line("  public GeneratedParser() {");
+    line("    super(new LazyRegexEngine(RegexEngine.JDK));");
+    line("  }");
+    line("");
+    line("  @Override");
+    line("  public Client parse(CharSequence agentString) {");
+    line("    Client known = lookup(agentString);");
+    line("    if (known != null) {");
+    line("      return known;");
+    line("    }");
+    line("    return new Client(parseUserAgent(agentString), parseOS(agentString), parseDevice(agentString));");
+    line("  }");
+    line("");
+    line("  @Override");
+    line("  void warmUp(String agentString, ParseBudget budget) {");
+    line("    parseUserAgent(agentString);");
+    line("    parseOS(agentString);");
+    line("    parseDevice(agentString);");
+    line("    if (budget != null) {");
+    line("      super.warmUp(agentString, budget);");
+    line("    }");
+    line("  }");
+    line("");
+    line("  /**");
+    line("   * @throws UnsupportedOperationException always, the rules are compiled into the class");
+    line("   */");
+    line("  @Override");
+    line("  public void setRuleSet(RuleSet rules) {");
+    line("    throw new UnsupportedOperationException(\"Rules of a generated parser cannot be replaced\");");
+    line("  }");
+    line("");
+    entryPoint("UserAgent", "parseUserAgent", "userAgent", "ua", uaRules.size(), "UserAgent.OTHER");
+    entryPoint("OS", "parseOS", "os", "os", osRules.size(), "OS.OTHER");
+    entryPoint("Device", "parseDevice", "device", "device", deviceRules.size(), "Device.OTHER");
+
+    literalsMethod("ua", uaRules);
+    literalsMethod("os", osRules);
+    literalsMethod("device", deviceRules);
+
+    for (int start = 0; start < uaRules.size(); start += RULES_PER_METHOD) {
+      ruleMethod("UserAgent", "ua", "UA", uaRules, start);
+    }
+    for (int start = 0; start < osRules.size(); start += RULES_PER_METHOD) {
+      ruleMethod("OS", "os", "OS", osRules, start);
+    }
+    for (int start = 0; start < deviceRules.size(); start += RULES_PER_METHOD) {
+      ruleMethod("Device", "device", "DEVICE", deviceRules, start);
+    }
+
+    line("  private static Matcher matcher(Matcher[] matchers, int index, Pattern pattern, CharSequence agentString) {");
+    line("    Matcher matcher = matchers[index];");
+    line("    if (matcher == null) {");
+    line("      return matchers[index] = pattern.matcher(agentString);");
+    line("    }");
+    line("    return matcher.reset(agentString);");
+    line("  }");
+    line("");
+    line("  private static String group(Matcher matcher, int group) {");
+    line("    String value = matcher.group(group);");
+    line("    return value == null ? \"\" : value;");
+    line("  }");
+    line("");
+    line("  private static String nonEmpty(String value) {");
+    line("    return value == null || value.isEmpty() ? null : value;");
+    line("  }");
+    line("");
+    line("  /**");
+    line("   * Per thread: the candidate sets and reusable matchers.");
+    line("   */");
+    line("  private static final class State {");
+    line("    final long[] uaCandidates = UA_PREFILTER.newCandidateSet();");
+    line("    final long[] osCandidates = OS_PREFILTER.newCandidateSet();");
+    line("    final long[] deviceCandidates = DEVICE_PREFILTER.newCandidateSet();");
+    line("    final Matcher[] ua = new Matcher[" + uaRules.size() + "];");
+    line("    final Matcher[] os = new Matcher[" + osRules.size() + "];");
+    line("    final Matcher[] device = new Matcher[" + deviceRules.size() + "];");
+    line("  }");
+    line("}");
+  }
+
+  private void patternField(String prefix, int index, Map<String, String> rule, int flags) {
+    String regex = rule.get("regex");
+    if (regex == null) {
+      throw new IllegalArgumentException(prefix + " rule " + index + " is missing regex");
+    }
+    line("  private static final Pattern " + prefix + "_" + index + " = Pattern.compile(" + quote(regex)
+        + (flags == 0 ? "" : ", Pattern.CASE_INSENSITIVE") + ");");
+  }
+
+  private void entryPoint(String type, String method, String kind, String prefix, int count, String other) {
+    line("  @Override");
+    line("  public " + type + " " + method + "(CharSequence agentString) {");
+    line("    if (agentString == null) {");
+    line("      return null;");
+    line("    }");
+    line("    Client known = lookup(agentString);");
+    line("    if (known != null) {");
+    line("      return known." + kind + ";");
+    line("    }");
+    line("    State state = STATE.get();");
+    line("    long[] candidates = " + prefix.toUpperCase() + "_PREFILTER.candidates(agentString, state." + prefix + "Candidates);");
+    line("    " + type + " result;");
+    for (int start = 0; start < count; start += RULES_PER_METHOD) {
+      line("    if ((result = " + prefix + start + "(agentString, candidates, state." + prefix + ")) != null) {");
+      line("      return result;");
+      line("    }");
+    }
+    line("    return " + other + ";");
+    line("  }");
+    line("");
+  }
+
+  private void ruleMethod(String type, String prefix, String fieldPrefix, List<Map<String, String>> rules, int start) {
+    line("  private static " + type + " " + prefix + start + "(CharSequence s, long[] c, Matcher[] matchers) {");
+    line("    Matcher m;");
+    for (int i = start; i < Math.min(start + RULES_PER_METHOD, rules.size()); i++) {
+      Map<String, String> rule = rules.get(i);
+      String regex = rule.get("regex");
+      int flags = "device".equals(prefix) && "i".equals(rule.get("regex_flag")) ? Pattern.CASE_INSENSITIVE : 0;
+      int groupCount = Pattern.compile(regex, flags).matcher("").groupCount();
+      // rules without literals are always candidates
+      String guard = RegexLiterals.requiredLiterals(regex) == null ? ""
+          : String.format("(c[%d] & 0x%xL) != 0 && ", i >>> 6, 1L << i);
+
+      line("    // rule " + i);
+      line("    if (" + guard + "(m = matcher(matchers, " + i + ", " + fieldPrefix + "_" + i + ", s)).find()) {");
+      if ("ua".equals(prefix)) {
+        userAgentRule(rule, groupCount);
+      } else if ("os".equals(prefix)) {
+        osRule(rule, groupCount);
+      } else {
+        deviceRule(rule, groupCount);
+      }
+      line("    }");
+    }
+    line("    return null;");
+    line("  }");
+    line("");
+  }
+
+  private void literalsMethod(String prefix, List<Map<String, String>> rules) {
+    line("  private static String[][] " + prefix + "Literals() {");
+    line("    return new String[][] {");
+    for (Map<String, String> rule : rules) {
+      String[] literals = RegexLiterals.requiredLiterals(rule.get("regex"));
+      if (literals == null) {
+        line("        null,");
+      } else {
+        StringBuilder array = new StringBuilder("{ ");
+        for (int i = 0; i < literals.length; i++) {
+          array.append(i == 0 ? "" : ", ").append(quote(literals[i]));
+        }
+        line("        " + array.append(" },"));
+      }
+    }
+    line("    };");
+    line("  }");
+    line("");
+  }
+
+  /**
+   * Mirrors {@code UserAgentParser.UAPattern.match}.
+   */
+  private void userAgentRule(Map<String, String> rule, int groupCount) {
+    String familyReplacement = rule.get("family_replacement");
+    String family;
+    if (familyReplacement != null) {
+      Replacement replacement = Replacement.firstGroupOne(familyReplacement);
+      if (replacement.groups().length == 0) {
+        family = quote(familyReplacement);
+      } else if (groupCount >= 1) {
+        line("      String g1 = m.group(1);");
+        family = "g1 == null ? " + quote(familyReplacement) + " : " + concat(replacement, "g1");
+      } else {
+        family = quote(familyReplacement);
+      }
+    } else {
+      family = groupCount >= 1 ? "m.group(1)" : "null";
+    }
+    String v1 = rule.get("v1_replacement") != null ? quote(rule.get("v1_replacement"))
+        : groupCount >= 2 ? "nonEmpty(m.group(2))" : "null";
+    String v2 = "null", v3 = "null";
+    if (rule.get("v2_replacement") != null) {
+      v2 = quote(rule.get("v2_replacement"));
+    } else if (groupCount >= 3) {
+      v2 = "nonEmpty(m.group(3))";
+      if (groupCount >= 4) {
+        v3 = "nonEmpty(m.group(4))";
+      }
+    }
+    returnUnlessNull("family", family, "new UserAgent(family, " + v1 + ", " + v2 + ", " + v3 + ")");
+  }
+
+  /**
+   * Mirrors {@code OSParser.OSPattern.match}.
+   */
+  private void osRule(Map<String, String> rule, int groupCount) {
+    String osReplacement = rule.get("os_replacement");
+    String family;
+    if (osReplacement != null) {
+      Replacement replacement = Replacement.allGroupOne(osReplacement);
+      family = groupCount >= 1 && replacement.groups().length > 0 ? concat(replacement, "group(m, 1)") : quote(osReplacement);
+    } else {
+      family = groupCount >= 1 ? "m.group(1)" : "null";
+    }
+    String v1 = osVersion(rule.get("os_v1_replacement"), 2, groupCount);
+    String v2 = osVersion(rule.get("os_v2_replacement"), 3, groupCount);
+    String v3 = osVersion(rule.get("os_v3_replacement"), 4, groupCount);
+    String v4 = groupCount >= 5 ? "m.group(5)" : "null";
+    returnUnlessNull("family", family, "new OS(family, " + v1 + ", " + v2 + ", " + v3 + ", " + v4 + ")");
+  }
+
+  private static String osVersion(String replacement, int group, int groupCount) {
+    if (replacement != null) {
+      return replacement.startsWith("$") ? "m.group(" + Integer.parseInt(replacement.substring(1)) + ")" : quote(replacement);
+    }
+    return groupCount >= group ? "m.group(" + group + ")" : "null";
+  }
+
+  /**
+   * Mirrors {@code DeviceParser.DevicePattern.match}.
+   */
+  private void deviceRule(Map<String, String> rule, int groupCount) {
+    String deviceReplacement = rule.get("device_replacement");
+    String family;
+    if (deviceReplacement != null) {
+      Replacement replacement = Replacement.allGroups(deviceReplacement);
+      if (replacement.groups().length == 0) {
+        family = quote(replacement.literals()[0]);
+      } else {
+        String[] literals = replacement.literals();
+        int[] groups = replacement.groups();
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i <= groups.length; i++) {
+          if (!literals[i].isEmpty()) {
+            expression.append(expression.length() == 0 ? "" : " + ").append(quote(literals[i]));
+          }
+          // references to groups the pattern does not have expand to nothing
+          if (i < groups.length && groups[i] <= groupCount) {
+            expression.append(expression.length() == 0 ? "" : " + ").append("group(m, ").append(groups[i]).append(")");
+          }
+        }
+        family = expression.length() == 0 ? "\"\"" : expression.toString();
+        if (replacement.trims()) {
+          family = "(" + family + ").trim()";
+        }
+      }
+    } else {
+      family = groupCount >= 1 ? "m.group(1)" : "null";
+    }
+    returnUnlessNull("family", family, "new Device(family)");
+  }
+
+  private void returnUnlessNull(String variable, String expression, String result) {
+    line("      String " + variable + " = " + expression + ";");
+    line("      if (" + variable + " != null) {");
+    line("        return " + result + ";");
+    line("      }");
+  }
+
+  /**
+   * @return an expression concatenating the literals of the replacement with the value
+   */
+  private static String concat(Replacement replacement, String value) {
+    String[] literals = replacement.literals();
+    StringBuilder expression = new StringBuilder();
+    for (int i = 0; i < literals.length; i++) {
+      if (i > 0) {
+        expression.append(expression.length() == 0 ? "" : " + ").append(value);
+      }
+      if (!literals[i].isEmpty()) {
+        expression.append(expression.length() == 0 ? "" : " + ").append(quote(literals[i]));
+      }
+    }
+    return expression.toString();
+  }
+
+  private static String quote(String s) {
+    StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': quoted.append("\\\""); break;
+        case '\\': quoted.append("\\\\"); break;
+        case '\n': quoted.append("\\n"); break;
+        case '\r': quoted.append("\\r"); break;
+        case '\t': quoted.append("\\t"); break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            quoted.append(String.format("\\u%04x", (int) c));
+          } else {
+            quoted.append(c);
+          }
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  private void line(String s) {
+    out.append(s).append('\n');
+  }
+}
@@ -17,15 +17,30 @@
 package ua_parser;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.hamcrest.MatcherAssert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
 
 /**
@@ -90,6 +105,79 @@ public class ParserTest {
     MatcherAssert.assertThat(parser.parse(agentString2), is(expected2));
   }
 
+  @Test
+  public void testParseBatch() {
+    List<String> corpus = WarmUp.bundledCorpus().subList(0, 200);
+    List<String> batch = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      batch.add(i % 101 == 0 ? null : corpus.get((i * 7) % corpus.size()));
+    }
+    List<Client> clients = parser.parseAll(batch);
+    MatcherAssert.assertThat(clients.size(), is(batch.size()));
+    Map<String, Client> first = new HashMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      String agentString = batch.get(i);
+      if (agentString == null) {
+        MatcherAssert.assertThat(clients.get(i), is(nullValue()));
+        continue;
+      }
+      MatcherAssert.assertThat(clients.get(i), is(parser.parse(agentString)));
+      if (first.containsKey(agentString)) {
+        MatcherAssert.assertThat(clients.get(i), is(sameInstance(first.get(agentString))));
+      } else {
+        first.put(agentString, clients.get(i));
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      String[] array = batch.toArray(new String[0]);
+      MatcherAssert.assertThat(Arrays.asList(parser.parseAll(array, executor)), is(clients));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testParseBytes() {
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    Client expected = parser.parse(agentString);
+    byte[] header = ("User-Agent: " + agentString + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    int offset = "User-Agent: ".length();
+
+    MatcherAssert.assertThat(parser.parse(header, offset, agentString.length()), is(expected));
+    ByteBuffer heap = ByteBuffer.wrap(header, offset, agentString.length());
+    MatcherAssert.assertThat(parser.parse(heap), is(expected));
+    MatcherAssert.assertThat(heap.position(), is(offset));
+    ByteBuffer direct = ByteBuffer.allocateDirect(header.length);
+    direct.put(header);
+    direct.position(offset);
+    direct.limit(offset + agentString.length());
+    MatcherAssert.assertThat(parser.parse(direct), is(expected));
+    MatcherAssert.assertThat(parser.parse(direct.slice()), is(expected));
+    MatcherAssert.assertThat(parser.parse((byte[]) null, 0, 0), is(nullValue()));
+  }
+
+  @Test
+  public void testParseCharSequence() {
+    String agentString = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+    Client expected = parser.parse(agentString);
+    String line = "127.0.0.1 \"" + agentString + "\" 200";
+    CharSequence slice = CharBuffer.wrap(line).subSequence(line.indexOf('"') + 1, line.lastIndexOf('"'));
+
+    MatcherAssert.assertThat(parser.parse(slice), is(expected));
+    MatcherAssert.assertThat(parser.parse(new StringBuilder(agentString)), is(expected));
+    MatcherAssert.assertThat(parser.parseUserAgent(slice), is(expected.userAgent));
+    MatcherAssert.assertThat(parser.parseOS(slice), is(expected.os));
+    MatcherAssert.assertThat(parser.parseDevice(slice), is(expected.device));
+    MatcherAssert.assertThat(parser.parse(slice, ParseBudget.ofCharAccesses(Long.MAX_VALUE)), is(expected));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testParseBytesOutOfBounds() {
+    parser.parse(new byte[10], 5, 6);
+  }
+
   @Test
   public void testReplacementQuoting() throws Exception {
     String testConfig = "user_agent_parsers:\n"
@@ -109,6 +197,74 @@ public class ParserTest {
     MatcherAssert.assertThat(result.device.family, is("CashPhone $9"));
   }
 
+  @Test (expected = RuntimeException.class)
+  public void testBundledRulesHonorLoaderOptions() {
+    LoaderOptions options = Parser.getDefaultLoaderOptions();
+    options.setCodePointLimit(1000);
+    new Parser(options);
+  }
+
+  @Test
+  public void testParseWithBudget() {
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+
+    Client exhausted = parser.parse(agentString, ParseBudget.ofCharAccesses(1));
+    MatcherAssert.assertThat(exhausted instanceof PartialClient, is(true));
+    PartialClient partial = (PartialClient) exhausted;
+    MatcherAssert.assertThat(partial.userAgentTimedOut && partial.osTimedOut && partial.deviceTimedOut, is(true));
+    MatcherAssert.assertThat(partial.userAgent, is(nullValue()));
+
+    Client unlimited = parser.parse(agentString, ParseBudget.ofTime(1, TimeUnit.MINUTES));
+    MatcherAssert.assertThat(unlimited instanceof PartialClient, is(false));
+    MatcherAssert.assertThat(unlimited, is(parser.parse(agentString)));
+  }
+
+  @Test
+  public void testParseNullWithBudget() {
+    MatcherAssert.assertThat(parser.parse((String) null, ParseBudget.ofCharAccesses(1)), is(parser.parse((String) null)));
+  }
+
+  @Test
+  public void testBudgetStopsCatastrophicBacktracking() throws Exception {
+    String testConfig = "user_agent_parsers:\n"
+                      + "  - regex: '^(Bad(?:a{1,3}){1,40})$'\n"
+                      + "os_parsers:\n"
+                      + "  - regex: '(Bad)'\n"
+                      + "device_parsers:\n"
+                      + "  - regex: '(Bad)'\n";
+    Parser backtracking = new Parser(new ByteArrayInputStream(testConfig.getBytes("UTF8")));
+    String agentString = "Bad" + new String(new char[40]).replace('\0', 'a') + "!";
+
+    Client result = backtracking.parse(agentString, ParseBudget.ofCharAccesses(100000));
+    MatcherAssert.assertThat(result instanceof PartialClient, is(true));
+    PartialClient partial = (PartialClient) result;
+    MatcherAssert.assertThat(partial.userAgentTimedOut, is(true));
+    MatcherAssert.assertThat(partial.osTimedOut, is(true));
+  }
+
+  @Test
+  public void testParseAllocatesOnlyResults() {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+    String agentString = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    long threadId = Thread.currentThread().getId();
+    int parses = 2000;
+
+    // first parses create the matchers and get the parse compiled
+    for (int i = 0; i < parses; i++) {
+      parser.parse(agentString);
+    }
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < parses; i++) {
+      parser.parse(agentString);
+    }
+    long perParse = (threads.getThreadAllocatedBytes(threadId) - before) / parses;
+
+    // the Client, UserAgent, OS and Device with their strings
+    MatcherAssert.assertThat(perParse, lessThan(1024L));
+  }
+
   @Test (expected=IllegalArgumentException.class)
   public void testInvalidConfigThrows() throws Exception {
     parserFromStringConfig("user_agent_parsers:\n  - family_replacement: 'a'");
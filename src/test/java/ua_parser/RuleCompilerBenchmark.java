@@ -0,0 +1,62 @@
+package ua_parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold start: compiling the bundled rules once in a fresh JVM, on the calling thread
+ * (threads = 0) or in parallel on a pool of that many threads. Every fork measures a single
+ * compilation, so the JIT has not warmed up, as at the startup of a service. The rules are
+ * read before the measurement. The speedup depends on the cores available, e.g.
+ *
+ * mvn -P benchmark verify -DskipTests -Dbenchmark=RuleCompilerBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Benchmark)
+public class RuleCompilerBenchmark {
+
+  @Param({ "0", "2", "4", "8" })
+  int threads;
+
+  BinaryRules rules;
+  ForkJoinPool pool;
+
+  @Setup
+  public void setUp() throws IOException {
+    try (InputStream in = RuleCompilerBenchmark.class.getResourceAsStream("/ua_parser/regexes.bin")) {
+      rules = BinaryRules.read(in);
+    }
+    pool = threads == 0 ? null : new ForkJoinPool(threads);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public RuleSet compile() {
+    return pool == null ? RuleSet.compile(rules, RegexEngine.JDK) : RuleSet.compile(rules, RegexEngine.JDK, pool);
+  }
+}
@@ -0,0 +1,146 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that parsers share compiled rules
+ */
+public class RuleSetTest {
+
+  private static final String AGENT_STRING = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+
+  @Test
+  public void testBundledRulesAreShared() {
+    RuleSet rules = new Parser().getRuleSet();
+    MatcherAssert.assertThat(rules, sameInstance(RuleSet.getDefault()));
+    MatcherAssert.assertThat(new Parser().getRuleSet(), sameInstance(rules));
+    MatcherAssert.assertThat(new CachingParser().getRuleSet(), sameInstance(rules));
+    MatcherAssert.assertThat(new CachingParser(new CacheOptions()).getRuleSet(), sameInstance(rules));
+  }
+
+  @Test
+  public void testOtherRulesAreNotShared() throws Exception {
+    try (InputStream in = Parser.class.getResourceAsStream("/ua_parser/regexes.yaml")) {
+      Parser fromYaml = new Parser(in);
+      MatcherAssert.assertThat(fromYaml.getRuleSet(), not(sameInstance(RuleSet.getDefault())));
+      MatcherAssert.assertThat(fromYaml.rulesFingerprint(), is(RuleSet.getDefault().fingerprint()));
+    }
+  }
+
+  @Test
+  public void testViewsGiveSameResults() {
+    RuleSet rules = RuleSet.getDefault();
+    Parser parser = new Parser(rules);
+    CachingParser cachingParser = new CachingParser(rules, new CacheOptions());
+    Client client = parser.parse(AGENT_STRING);
+    MatcherAssert.assertThat(cachingParser.parse(AGENT_STRING), is(client));
+    MatcherAssert.assertThat(rules.getUserAgentParser().parse(AGENT_STRING), is(client.userAgent));
+    MatcherAssert.assertThat(rules.getOSParser().parse(AGENT_STRING), is(client.os));
+    MatcherAssert.assertThat(rules.getDeviceParser().parse(AGENT_STRING), is(client.device));
+  }
+
+  @Test
+  public void testCompileAsyncMatchesCompile() throws Exception {
+    BinaryRules rules;
+    try (InputStream in = Parser.class.getResourceAsStream("/ua_parser/regexes.yaml")) {
+      rules = BinaryRules.fromYaml(in, Parser.getDefaultLoaderOptions());
+    }
+    RuleSet compiled = RuleSet.compileAsync(rules, RegexEngine.JDK, ForkJoinPool.commonPool()).get();
+    MatcherAssert.assertThat(compiled.fingerprint(), is(RuleSet.getDefault().fingerprint()));
+    MatcherAssert.assertThat(new Parser(compiled).parse(AGENT_STRING), is(new Parser().parse(AGENT_STRING)));
+  }
+
+  @Test
+  public void testReloadSwapsRules() throws Exception {
+    Parser parser = new Parser();
+    parser.setDictionary(UserAgentDictionary.build(parser, Arrays.asList(AGENT_STRING)));
+    RuleReload reload = parser.reload(rules("'(iPhone)'", "'Reloaded $1'")).get();
+
+    MatcherAssert.assertThat(parser.getRuleSet(), is(sameInstance(reload.getRuleSet())));
+    MatcherAssert.assertThat(reload.getCompileTime(), greaterThan(0L));
+    MatcherAssert.assertThat(reload.getSwapTime(), greaterThan(0L));
+    // the dictionary was built with the old rules
+    MatcherAssert.assertThat(parser.lookup(AGENT_STRING), is(nullValue()));
+    MatcherAssert.assertThat(parser.parse(AGENT_STRING).userAgent.family, is("Reloaded iPhone"));
+    MatcherAssert.assertThat(RuleSet.getDefault().getUserAgentParser().parse(AGENT_STRING).family, is("Mobile Safari"));
+  }
+
+  @Test
+  public void testFailedReloadKeepsRules() throws Exception {
+    Parser parser = new Parser();
+    try {
+      parser.reload(rules("'(iPhone'", "'Reloaded $1'")).get();
+      Assert.fail("Expected the reload to fail");
+    } catch (ExecutionException e) {
+      MatcherAssert.assertThat(parser.getRuleSet(), is(sameInstance(RuleSet.getDefault())));
+    }
+  }
+
+  @Test
+  public void testParallelCompileKeepsOrder() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      RuleSet compiled = RuleSet.bundled(RegexEngine.JDK, pool);
+      MatcherAssert.assertThat(compiled.fingerprint(), is(RuleSet.getDefault().fingerprint()));
+      Parser parallel = new Parser(compiled);
+      Parser sequential = new Parser();
+      for (String agentString : Arrays.asList(AGENT_STRING,
+          "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+          "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)")) {
+        MatcherAssert.assertThat(parallel.parse(agentString), is(sequential.parse(agentString)));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompileErrorGivesRuleIndex() throws Exception {
+    String yaml = "user_agent_parsers:\n"
+                + "  - regex: '(iPhone)'\n"
+                + "  - regex: '(iPhone'\n"
+                + "os_parsers:\n"
+                + "  - regex: '(iPhone OS)'\n"
+                + "device_parsers:\n"
+                + "  - regex: '(iPhone)'\n";
+    BinaryRules rules = BinaryRules.fromYaml(new ByteArrayInputStream(yaml.getBytes("UTF8")), Parser.getDefaultLoaderOptions());
+    try {
+      RuleSet.compile(rules, RegexEngine.JDK, ForkJoinPool.commonPool());
+      Assert.fail("Expected the compile to fail");
+    } catch (IllegalArgumentException e) {
+      MatcherAssert.assertThat(e.getMessage(), startsWith("user_agent_parsers rule 1: "));
+    }
+    try {
+      RuleSet.compile(rules, RegexEngine.JDK);
+      Assert.fail("Expected the compile to fail");
+    } catch (IllegalArgumentException e) {
+      MatcherAssert.assertThat(e.getMessage(), startsWith("user_agent_parsers rule 1: "));
+    }
+  }
+
+  private static BinaryRules rules(String regex, String familyReplacement) throws Exception {
+    String yaml = "user_agent_parsers:\n"
+                + "  - regex: " + regex + "\n"
+                + "    family_replacement: " + familyReplacement + "\n"
+                + "os_parsers:\n"
+                + "  - regex: '(iPhone OS)'\n"
+                + "device_parsers:\n"
+                + "  - regex: '(iPhone)'\n";
+    return BinaryRules.fromYaml(new ByteArrayInputStream(yaml.getBytes("UTF8")), Parser.getDefaultLoaderOptions());
+  }
+}
@@ -0,0 +1,78 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the minimal perfect hash and the serialization of the user agent dictionary
+ */
+public class UserAgentDictionaryTest {
+
+  private static final String RULES = "user_agent_parsers:\n"
+                                    + "  - regex: '(Agent)/(\\d+)'\n"
+                                    + "os_parsers:\n"
+                                    + "  - regex: '(OS) (\\d+)'\n"
+                                    + "device_parsers:\n"
+                                    + "  - regex: '(Device)'\n";
+
+  private static Parser rulesParser() throws Exception {
+    return new Parser(new ByteArrayInputStream(RULES.getBytes("UTF8")));
+  }
+
+  @Test
+  public void testEveryUserAgentIsFound() throws Exception {
+    Parser parser = rulesParser();
+    List<String> agentStrings = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      agentStrings.add("Agent/" + i + " (OS " + (i % 7) + ")");
+    }
+    UserAgentDictionary dictionary = UserAgentDictionary.build(parser, agentStrings);
+    MatcherAssert.assertThat(dictionary.size(), is(5000));
+    for (String agentString : agentStrings) {
+      MatcherAssert.assertThat(dictionary.get(agentString), is(parser.parse(agentString)));
+    }
+    MatcherAssert.assertThat(dictionary.get("Agent/5000 (OS 1)"), is(nullValue()));
+    MatcherAssert.assertThat(dictionary.get(""), is(nullValue()));
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    Parser parser = rulesParser();
+    List<String> agentStrings = Arrays.asList("Agent/1 (OS 2) Device", "Agent/1 (OS 2)", "Agent/3");
+    UserAgentDictionary dictionary = UserAgentDictionary.build(parser, agentStrings);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    dictionary.write(out);
+    UserAgentDictionary read = UserAgentDictionary.read(new ByteArrayInputStream(out.toByteArray()));
+    for (String agentString : agentStrings) {
+      MatcherAssert.assertThat(read.get(agentString), is(parser.parse(agentString)));
+    }
+    MatcherAssert.assertThat(read.get("Agent/2"), is(nullValue()));
+  }
+
+  @Test
+  public void testParserAnswersFromDictionary() throws Exception {
+    Parser parser = rulesParser();
+    UserAgentDictionary dictionary = UserAgentDictionary.build(parser, Arrays.asList("Agent/1 (OS 2) Device"));
+    parser.setDictionary(dictionary);
+    Client client = parser.parse("Agent/1 (OS 2) Device");
+    MatcherAssert.assertThat(client, is(sameInstance(dictionary.get("Agent/1 (OS 2) Device"))));
+    MatcherAssert.assertThat(parser.parseOS("Agent/1 (OS 2) Device"), is(sameInstance(client.os)));
+    MatcherAssert.assertThat(parser.parse("Agent/2").userAgent.major, is("2"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDictionaryOfOtherRulesIsRejected() throws Exception {
+    UserAgentDictionary dictionary = UserAgentDictionary.build(rulesParser(), Arrays.asList("Agent/1"));
+    new Parser().setDictionary(dictionary);
+  }
+}
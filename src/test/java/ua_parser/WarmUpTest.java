@@ -0,0 +1,62 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the limits and reporting of the parser warm-up
+ */
+public class WarmUpTest {
+
+  private static final String AGENT_STRING = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+
+  @Test
+  public void testBundledCorpus() {
+    MatcherAssert.assertThat(WarmUp.bundledCorpus().size(), greaterThan(500));
+  }
+
+  @Test
+  public void testRoundsLimit() {
+    WarmUpOptions options = new WarmUpOptions();
+    options.setCorpus(Arrays.asList(AGENT_STRING, "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)"));
+    options.setMaximumRounds(2);
+    WarmUpResult result = new Parser().warmUp(options);
+    MatcherAssert.assertThat(result.getRounds(), is(2));
+    MatcherAssert.assertThat(result.isSteady(), is(false));
+    // each round is padded to 1000 parses
+    MatcherAssert.assertThat(result.getParseCount(), is(2000L));
+    MatcherAssert.assertThat(result.getInitialThroughput(), greaterThan(0.0));
+    MatcherAssert.assertThat(result.getThroughput(), greaterThan(0.0));
+  }
+
+  @Test
+  public void testRunsUntilSteady() {
+    WarmUpOptions options = new WarmUpOptions();
+    options.setCorpus(Arrays.asList(AGENT_STRING));
+    options.setThreads(2);
+    WarmUpResult result = new Parser().warmUp(options);
+    MatcherAssert.assertThat(result.isSteady(), is(true));
+    MatcherAssert.assertThat(result.getRounds(), greaterThan(WarmUp.STEADY_ROUNDS));
+  }
+
+  @Test
+  public void testCacheIsUntouched() {
+    CachingParser parser = new CachingParser();
+    WarmUpOptions options = new WarmUpOptions();
+    options.setCorpus(Arrays.asList(AGENT_STRING));
+    options.setMaximumRounds(1);
+    parser.warmUp(options);
+    MatcherAssert.assertThat(parser.getCacheStats().getSize(), is(0));
+    MatcherAssert.assertThat(parser.getCacheStats().getMissCount(), is(0L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidThreads() {
+    new WarmUpOptions().setThreads(0);
+  }
+}
@@ -0,0 +1,182 @@
+package ua_parser;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+/**
+ * Tests the order, the backpressure and the termination of the Flow processor
+ */
+public class ParseProcessorTest {
+
+  /**
+   * Publishes user agents as they are requested, on the thread requesting them, recording
+   * how far ahead of the deliveries the requests went.
+   */
+  private static final class ListPublisher implements Flow.Publisher<String> {
+    final List<String> agentStrings;
+    final RuntimeException failure;
+    long requested, sent, maximumAhead;
+
+    ListPublisher(List<String> agentStrings, RuntimeException failure) {
+      this.agentStrings = agentStrings;
+      this.failure = failure;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super String> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        boolean emitting, cancelled;
+
+        @Override
+        public synchronized void request(long n) {
+          requested += n;
+          maximumAhead = Math.max(maximumAhead, requested - sent);
+          if (emitting) {
+            return;
+          }
+          emitting = true;
+          while (!cancelled && sent < requested && sent < agentStrings.size()) {
+            subscriber.onNext(agentStrings.get((int) sent++));
+          }
+          if (!cancelled && sent == agentStrings.size()) {
+            cancelled = true;
+            if (failure != null) {
+              subscriber.onError(failure);
+            } else {
+              subscriber.onComplete();
+            }
+          }
+          emitting = false;
+        }
+
+        @Override
+        public synchronized void cancel() {
+          cancelled = true;
+        }
+      });
+    }
+  }
+
+  /**
+   * Requests one client at a time, and a next one only once it got the previous.
+   */
+  private static class OneByOne implements Flow.Subscriber<Client> {
+    final List<Client> clients = new ArrayList<>();
+    final CountDownLatch finished = new CountDownLatch(1);
+    Flow.Subscription subscription;
+    Throwable error;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public void onNext(Client client) {
+      clients.add(client);
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+      finished.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      finished.countDown();
+    }
+  }
+
+  private static List<String> batch() {
+    List<String> corpus = WarmUp.bundledCorpus();
+    List<String> batch = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      batch.add(corpus.get((i * 7) % 200));
+    }
+    return batch;
+  }
+
+  @Test
+  public void testClientsInOrderWithinWindow() throws Exception {
+    Parser parser = new Parser();
+    List<String> batch = batch();
+    ListPublisher publisher = new ListPublisher(batch, null);
+    OneByOne subscriber = new OneByOne();
+    try (AsyncParser async = new AsyncParser(new CachingParser())) {
+      ParseProcessor processor = new ParseProcessor(async, 16);
+      processor.subscribe(subscriber);
+      publisher.subscribe(processor);
+      MatcherAssert.assertThat(subscriber.finished.await(1, TimeUnit.MINUTES), is(true));
+    }
+    MatcherAssert.assertThat(subscriber.error == null, is(true));
+    MatcherAssert.assertThat(subscriber.clients, is(parser.parseAll(batch)));
+    MatcherAssert.assertThat(publisher.maximumAhead, is(lessThanOrEqualTo(16L)));
+  }
+
+  @Test
+  public void testShedMissesParsedByPublisher() throws Exception {
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    };
+    List<String> batch = batch().subList(0, 50);
+    OneByOne subscriber = new OneByOne();
+    ParseProcessor processor = new ParseProcessor(new AsyncParser(new Parser(), rejecting, 1), 8);
+    processor.subscribe(subscriber);
+    new ListPublisher(batch, null).subscribe(processor);
+    MatcherAssert.assertThat(subscriber.finished.await(1, TimeUnit.MINUTES), is(true));
+    MatcherAssert.assertThat(subscriber.clients, is(new Parser().parseAll(batch)));
+  }
+
+  @Test
+  public void testErrorsEndTheStream() throws Exception {
+    OneByOne subscriber = new OneByOne();
+    ParseProcessor processor = new ParseProcessor(new AsyncParser(new Parser(), new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    }, 1));
+    processor.subscribe(subscriber);
+    IllegalStateException failure = new IllegalStateException("upstream failed");
+    new ListPublisher(batch().subList(0, 3), failure).subscribe(processor);
+    MatcherAssert.assertThat(subscriber.finished.await(1, TimeUnit.MINUTES), is(true));
+    MatcherAssert.assertThat(subscriber.error == failure, is(true));
+
+    OneByOne second = new OneByOne();
+    processor.subscribe(second);
+    MatcherAssert.assertThat(second.error, instanceOf(IllegalStateException.class));
+  }
+
+  @Test
+  public void testNonPositiveRequestFails() {
+    OneByOne subscriber = new OneByOne() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(0);
+      }
+    };
+    try (AsyncParser async = new AsyncParser(new Parser())) {
+      new ParseProcessor(async).subscribe(subscriber);
+    }
+    MatcherAssert.assertThat(subscriber.error, instanceOf(IllegalArgumentException.class));
+  }
+}